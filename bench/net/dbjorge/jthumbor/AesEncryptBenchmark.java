@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the pooled AES engine behind {@link ThumborUtils#aesEncrypt(String, String)}
+ * against the obvious alternative: one shared Cipher guarded by a lock.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AesEncryptBenchmark {
+	private static final String KEY = "my-security-keym";
+	private static final String PLAINTEXT = "300x200/84996242f65a4d864aceb125e1c4c5ba{{{{{{{{";
+
+	private final Cipher mLockedCipher;
+
+	public AesEncryptBenchmark() {
+		try {
+			mLockedCipher = Cipher.getInstance("AES/ECB/NoPadding");
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** The shared static Cipher made safe the simple way */
+	private byte[] lockedEncrypt(String key, String plaintext) {
+		synchronized(mLockedCipher) {
+			try {
+				mLockedCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key.getBytes(), "AES"));
+				return mLockedCipher.doFinal(plaintext.getBytes());
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public byte[] pooledSingleThread() {
+		return ThumborUtils.aesEncrypt(KEY, PLAINTEXT);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public byte[] lockedSingleThread() {
+		return lockedEncrypt(KEY, PLAINTEXT);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public byte[] pooledContended() {
+		return ThumborUtils.aesEncrypt(KEY, PLAINTEXT);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public byte[] lockedContended() {
+		return lockedEncrypt(KEY, PLAINTEXT);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Signed URLs per microsecond from the bulk API as the fork/join parallelism grows, with a plain
+ * getSecureUrl loop as the sequential reference. Compare each parallelism's score to the loop to
+ * read off the speedup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkSigningBenchmark {
+	private static final int BATCH = 100000;
+
+	@Param({"1", "2", "4", "8", "16"})
+	public int parallelism;
+
+	private ThumborServer mServer;
+	private ForkJoinPool mPool;
+	private String[] mImages;
+	private Options mOptions;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		mPool = new ForkJoinPool(parallelism);
+		mServer = new ThumborServer("http://thumbor.example.com", "my-security-key");
+		mServer.setBulkSigningPool(mPool);
+		mOptions = new Options().fitIn().resize(300, 200).smart();
+		mImages = new String[BATCH];
+		for(int i = 0; i < BATCH; i++) {
+			mImages[i] = "images.example.com/catalog/" + (i * 7919) + "/product-" + i + ".jpg";
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		mPool.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public String[] bulk() {
+		return mServer.getSecureUrls(mImages, mOptions);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public String[] sequentialLoop() {
+		String[] results = new String[BATCH];
+		for(int i = 0; i < BATCH; i++) {
+			results[i] = mServer.getSecureUrl(mImages[i], mOptions);
+		}
+		return results;
+	}
+}
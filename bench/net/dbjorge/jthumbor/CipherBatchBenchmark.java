@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.concurrent.TimeUnit;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Average time per signed URL when the AES tokens of each batch are encrypted in one Cipher call,
+ * against one call per URL. A batch of 1 is the per-URL cost of the batching machinery itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherBatchBenchmark {
+	private static final int URLS = 4096;
+
+	@Param({"1", "16", "256", "4096"})
+	public int batch;
+
+	private ThumborServer mServer;
+	private CharSequence[] mImages;
+	private Options[] mOptions;
+	private String[] mResults;
+
+	@Setup
+	public void setup() {
+		mServer = new ThumborServer("http://thumbor.example.com", "my-security-key");
+		mOptions = new Options[] { new Options().fitIn().resize(300, 200).smart() };
+		mImages = new CharSequence[URLS];
+		for(int i = 0; i < URLS; i++) {
+			mImages[i] = "images.example.com/catalog/" + (i * 7919) + "/product-" + i + ".jpg";
+		}
+		mResults = new String[URLS];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(URLS)
+	public String[] batched() {
+		for(int i = 0; i < URLS; i += batch) {
+			mServer.signBatch(mImages, mOptions, i, Math.min(URLS, i + batch), mResults);
+		}
+		return mResults;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(URLS)
+	public String[] perUrl() {
+		for(int i = 0; i < URLS; i++) {
+			mResults[i] = mServer.getSecureUrl(mImages[i].toString(), mOptions[0]);
+		}
+		return mResults;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * md5String and md5Hex against the original md5String, which looked up a new MessageDigest and
+ * built its result with string concatenation on every call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Md5Benchmark {
+	private final String mInput = "my.server.com/some/path/to/image.jpg";
+	private final byte[] mInputBytes = mInput.getBytes();
+	private final byte[] mOut = new byte[32];
+
+	/** md5String as it was first written */
+	static String legacyMd5String(String input) {
+		String result = "";
+		MessageDigest algorithm;
+		try {
+			algorithm = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		algorithm.reset();
+		algorithm.update(input.getBytes());
+		byte[] md5 = algorithm.digest();
+		String tmp = "";
+		for (int i = 0; i < md5.length; i++) {
+			tmp = (Integer.toHexString(0xFF & md5[i]));
+			if (tmp.length() == 1) {
+				result += "0" + tmp;
+			} else {
+				result += tmp;
+			}
+		}
+		return result;
+	}
+
+	@Benchmark
+	public String legacyMd5String() {
+		return legacyMd5String(mInput);
+	}
+
+	@Benchmark
+	public String md5String() {
+		return ThumborUtils.md5String(mInput);
+	}
+
+	@Benchmark
+	public byte[] md5HexIntoBuffer() {
+		ThumborUtils.md5Hex(mInputBytes, 0, mInputBytes.length, mOut, 0);
+		return mOut;
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.concurrent.TimeUnit;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.Options.VerticalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.Preset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the options path on every call against copying a registered preset's
+ * precompiled path, on its own and as part of a whole signed URL.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PresetBenchmark {
+	private static final String IMAGE = "my.server.com/some/path/to/image.jpg";
+
+	private final ThumborServer mServer = new ThumborServer("example.com", "my-security-key");
+	private final Options mOptions = new Options().meta().crop(20, 30, 40, 50).fitIn().resize(300, 200)
+		.horizontalAlign(HorizontalAlignment.RIGHT).verticalAlign(VerticalAlignment.TOP).smart();
+	private final Preset mPreset = mServer.registerPreset("hero", mOptions);
+	private final byte[] mPath = new byte[SigningScratch.MAX_OPTIONS_PATH_LENGTH];
+	private final StringBuilder mUrl = new StringBuilder(256);
+
+	@Benchmark
+	public int pathDynamic() {
+		return ThumborServer.writeOptionsPath(mOptions, mPath, 0);
+	}
+
+	@Benchmark
+	public int pathPreset() {
+		System.arraycopy(mPreset.mPath, 0, mPath, 0, mPreset.mPath.length);
+		return mPreset.mPath.length;
+	}
+
+	@Benchmark
+	public int urlDynamic() {
+		mUrl.setLength(0);
+		mServer.appendSecureUrl(IMAGE, mOptions, mUrl);
+		return mUrl.length();
+	}
+
+	@Benchmark
+	public int urlPreset() {
+		mUrl.setLength(0);
+		mServer.appendSecureUrl(IMAGE, mPreset, mUrl);
+		return mUrl.length();
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.concurrent.TimeUnit;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-token cost with the server's precomputed key schedule against re-initialising the Cipher
+ * with the key on every call, both for the bare encryption and for a whole token.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SecureTokenBenchmark {
+	private static final String KEY = "my-security-key";
+	private static final String PADDED_KEY = "my-security-keym";
+	private static final String PLAINTEXT = "300x200/84996242f65a4d864aceb125e1c4c5ba{{{{{{{{";
+	private static final String IMAGE = "my.server.com/some/path/to/image.jpg";
+
+	private final ThumborServer mServer = new ThumborServer("example.com", KEY);
+	private final AesCipherPool mKeyedCiphers = new AesCipherPool(PADDED_KEY.getBytes(), 4);
+	private final Options mOptions = new Options().resize(300, 200);
+
+	@Benchmark
+	public byte[] encryptReinitialisingKey() {
+		return ThumborUtils.aesEncrypt(PADDED_KEY, PLAINTEXT);
+	}
+
+	@Benchmark
+	public byte[] encryptPrecomputedKey() {
+		return mKeyedCiphers.encrypt(PLAINTEXT.getBytes());
+	}
+
+	/** getSecureToken as it was before the server kept its own initialised Ciphers */
+	@Benchmark
+	public String tokenReinitialisingKey() {
+		String optionsUrl = mServer.getOptionsUrl(IMAGE, mOptions);
+		while(optionsUrl.length() % 16 != 0) optionsUrl += "{";
+		return ThumborUtils.urlSafeBase64Encode(ThumborUtils.aesEncrypt(PADDED_KEY, optionsUrl));
+	}
+
+	@Benchmark
+	public String tokenPrecomputedKey() {
+		return mServer.getSecureToken(IMAGE, mOptions);
+	}
+}
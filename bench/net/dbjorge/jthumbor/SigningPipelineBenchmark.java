@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.concurrent.TimeUnit;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.Options.VerticalAlignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each stage of building a secure URL on its own, then the whole of getSecureUrl, on one thread.
+ * {@link ContendedSigningPipelineBenchmark} runs the same benchmarks on every core at once.
+ *
+ * Run through {@link PipelineBenchmarks} to get allocation rates from the GC profiler as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class SigningPipelineBenchmark {
+	private static final String KEY = "my-security-key";
+	private static final String PADDED_KEY = "my-security-keym";
+
+	/** short: a typical CDN path. long: a deep path with a long query string. */
+	@Param({"short", "long"})
+	public String url;
+
+	/** simple: a plain resize. complex: every option Thumbor knows. */
+	@Param({"simple", "complex"})
+	public String options;
+
+	private ThumborServer mServer;
+	private String mImageUrl;
+	private String mSanitizedUrl;
+	private Options mOptions;
+	private String mPlaintext;
+	private byte[] mCiphertext;
+
+	@Setup
+	public void setup() {
+		mServer = new ThumborServer("example.com", KEY);
+
+		if(url.equals("short")) {
+			mImageUrl = "http://my.server.com/img/1.jpg";
+		} else {
+			StringBuilder b = new StringBuilder("http://images.my.server.com");
+			for(int i = 0; i < 12; i++) {
+				b.append("/directory-").append(i);
+			}
+			b.append("/photograph.jpg?version=1234567890&signature=0123456789abcdef0123456789abcdef&size=original");
+			mImageUrl = b.toString();
+		}
+		mSanitizedUrl = ThumborUtils.sanitizeUrlWithoutProtocol(mImageUrl, "http");
+
+		if(options.equals("simple")) {
+			mOptions = new Options().resize(300, 200);
+		} else {
+			mOptions = new Options().meta().crop(20, 30, 1040, 750).fitIn().resize(640, 480)
+				.flipHorizontal().horizontalAlign(HorizontalAlignment.RIGHT)
+				.verticalAlign(VerticalAlignment.TOP).smart();
+		}
+
+		String plaintext = mServer.getOptionsUrl(mImageUrl, mOptions);
+		while(plaintext.length() % 16 != 0) plaintext += "{";
+		mPlaintext = plaintext;
+		mCiphertext = ThumborUtils.aesEncrypt(PADDED_KEY, mPlaintext);
+	}
+
+	@Benchmark
+	public String optionsPath() {
+		return mServer.getOptionsPath(mOptions);
+	}
+
+	@Benchmark
+	public String md5String() {
+		return ThumborUtils.md5String(mSanitizedUrl);
+	}
+
+	@Benchmark
+	public byte[] aesEncrypt() {
+		return ThumborUtils.aesEncrypt(PADDED_KEY, mPlaintext);
+	}
+
+	@Benchmark
+	public String urlSafeBase64Encode() {
+		return ThumborUtils.urlSafeBase64Encode(mCiphertext);
+	}
+
+	@Benchmark
+	public String sanitizeUrlWithoutProtocol() {
+		return ThumborUtils.sanitizeUrlWithoutProtocol(mImageUrl, "http");
+	}
+
+	@Benchmark
+	public String secureUrl() {
+		return mServer.getSecureUrl(mImageUrl, mOptions);
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Pool of AES-128/ECB/NoPadding Ciphers which may be used from any number of threads at once.
+ * Pools encrypt unless created for decryption with a fixed key.
+ *
+ * Each encryption runs on its own Cipher instance, so concurrent callers never see each other's
+ * state and never wait on one another.
+ *
+ * A pool may be created for one fixed key, in which case its Ciphers are initialised once when
+ * they are created and every later encryption skips the key setup entirely. ECB with no padding
+ * carries no state between doFinal calls, so an initialised Cipher can be reused indefinitely.
+ */
+class AesCipherPool extends InstancePool<Cipher> {
+	private final SecretKeySpec mKey;
+	private final int mOpmode;
+
+	/** Creates a pool whose Ciphers are initialised with a caller-supplied key on every use */
+	public AesCipherPool(int capacity) {
+		super(capacity);
+		mKey = null;
+		mOpmode = Cipher.ENCRYPT_MODE;
+	}
+
+	/** Creates a pool whose Ciphers are all initialised once with the given 16-byte key */
+	public AesCipherPool(byte[] key, int capacity) {
+		this(key, Cipher.ENCRYPT_MODE, capacity);
+	}
+
+	/**
+	 * Creates a pool whose Ciphers are all initialised once with the given 16-byte key, for
+	 * Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 */
+	public AesCipherPool(byte[] key, int opmode, int capacity) {
+		super(capacity);
+		mKey = new SecretKeySpec(key, "AES");
+		mOpmode = opmode;
+	}
+
+	@Override
+	protected Cipher create() {
+		try {
+			Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			if(mKey != null) {
+				cipher.init(mOpmode, mKey);
+			}
+			return cipher;
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Encrypts the given plaintext with the key this pool was created with.
+	 *
+	 * Same requirements as {@link ThumborUtils#aesEncrypt(String, String)}.
+	 */
+	public byte[] encrypt(byte[] plaintext) {
+		requireKey(Cipher.ENCRYPT_MODE);
+		Cipher cipher = acquire();
+		byte[] result;
+		try {
+			result = cipher.doFinal(plaintext);
+		} catch(Exception e) {
+			// the Cipher's state is unknown after a failure, so it is not returned to the pool
+			throw new RuntimeException(e);
+		}
+		release(cipher);
+		return result;
+	}
+
+	/**
+	 * Encrypts in[inOff, inOff+length) into out at outOff with the key this pool was created with.
+	 * The buffers must not overlap.
+	 *
+	 * Same requirements as {@link ThumborUtils#aesEncrypt(String, String)}.
+	 */
+	public void encrypt(byte[] in, int inOff, int length, byte[] out, int outOff) {
+		requireKey(Cipher.ENCRYPT_MODE);
+		run(in, inOff, length, out, outOff);
+	}
+
+	/**
+	 * Decrypts in[inOff, inOff+length) into out at outOff with the key this pool was created
+	 * with. The length must be a multiple of 16, and the buffers must not overlap.
+	 */
+	public void decrypt(byte[] in, int inOff, int length, byte[] out, int outOff) {
+		requireKey(Cipher.DECRYPT_MODE);
+		run(in, inOff, length, out, outOff);
+	}
+
+	private void requireKey(int opmode) {
+		if(mKey == null) {
+			throw new IllegalStateException("Pool was not created with a key");
+		}
+		if(mOpmode != opmode) {
+			throw new IllegalStateException("Pool was created for " + (mOpmode == Cipher.ENCRYPT_MODE ? "encryption" : "decryption"));
+		}
+	}
+
+	private void run(byte[] in, int inOff, int length, byte[] out, int outOff) {
+		Cipher cipher = acquire();
+		try {
+			cipher.doFinal(in, inOff, length, out, outOff);
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+		release(cipher);
+	}
+
+	/**
+	 * Encrypts the given plaintext with the given key.
+	 *
+	 * Same requirements as {@link ThumborUtils#aesEncrypt(String, String)}.
+	 */
+	public byte[] encrypt(byte[] key, byte[] plaintext) {
+		Cipher cipher = acquire();
+		byte[] result;
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+			result = cipher.doFinal(plaintext);
+		} catch(Exception e) {
+			// as in encrypt(byte[]), a Cipher which failed is not returned to the pool
+			throw new RuntimeException(e);
+		}
+		release(cipher);
+		return result;
+	}
+}
@@ -0,0 +1,437 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache which may be used from any number of threads at once.
+ *
+ * Entries are spread over independently locked segments by key hash, so threads working on
+ * different keys rarely contend. Each entry has a weight (1 unless a {@link Weigher} says
+ * otherwise) and the cache evicts entries to keep the total weight within its bound, so the bound
+ * may be a number of entries or an approximate number of bytes.
+ *
+ * Keys and values may not be null.
+ */
+public class BoundedCache<K, V> {
+	/** How a full cache chooses what to evict */
+	public static enum Eviction {
+		/** Evict the least recently used entry */
+		LRU,
+		/**
+		 * W-TinyLFU: new entries enter a small LRU window, and when they fall out of it they are
+		 * only admitted to the main LRU area if they have been requested more often than the entry
+		 * they would displace. Request counts are kept approximately in a small count-min sketch.
+		 * Resists one-off scans flushing out popular entries, at the cost of a little bookkeeping.
+		 */
+		TINY_LFU
+	}
+
+	/** Gives the weight of an entry, for caches bounded by something other than entry count */
+	public static interface Weigher<K, V> {
+		/** Must be positive, and must always give the same weight for the same entry */
+		int weigh(K key, V value);
+	}
+
+	private static final int MAX_SEGMENTS = 16;
+	/** Segments should have room for at least this much weight each, or eviction gets erratic */
+	private static final long MIN_SEGMENT_WEIGHT = 64;
+	/**
+	 * Weighted caches cannot know how many entries they will hold, so TinyLFU sizes its sketch
+	 * assuming entries weigh about this much, which suits caches bounded in bytes.
+	 */
+	private static final long TYPICAL_ENTRY_WEIGHT = 256;
+
+	private final Segment<K, V>[] mSegments;
+	private final Weigher<K, V> mWeigher;
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+	private final AtomicLong mEvictions = new AtomicLong();
+
+	/** Creates a cache of at most maxEntries entries */
+	public BoundedCache(Eviction eviction, long maxEntries) {
+		this(eviction, maxEntries, null);
+	}
+
+	/**
+	 * Creates a cache whose entries' weights, as given by the weigher, total at most maxWeight.
+	 * A null weigher gives every entry weight 1.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BoundedCache(Eviction eviction, long maxWeight, Weigher<K, V> weigher) {
+		if(eviction == null) {
+			throw new IllegalArgumentException("Eviction may not be null");
+		}
+		if(maxWeight <= 0) {
+			throw new IllegalArgumentException("Maximum weight must be positive");
+		}
+
+		int segments = 1;
+		while(segments < MAX_SEGMENTS && maxWeight / (segments * 2) >= MIN_SEGMENT_WEIGHT) {
+			segments *= 2;
+		}
+
+		mWeigher = weigher;
+		mSegments = new Segment[segments];
+		for(int i = 0; i < segments; i++) {
+			long segmentWeight = maxWeight / segments + (i < maxWeight % segments ? 1 : 0);
+			mSegments[i] = eviction == Eviction.LRU
+				? new LruSegment<K, V>(segmentWeight)
+				: new TinyLfuSegment<K, V>(segmentWeight, weigher == null ? segmentWeight : Math.max(16, segmentWeight / TYPICAL_ENTRY_WEIGHT));
+		}
+	}
+
+	/** Returns the cached value for key, or null if there is none */
+	public V get(K key) {
+		int hash = spread(key.hashCode());
+		V value = segmentFor(hash).get(key, hash);
+		if(value == null) {
+			mMisses.incrementAndGet();
+		} else {
+			mHits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Caches value under key, replacing any existing value. Entries heavier than a whole segment
+	 * of the cache are not cached at all.
+	 */
+	public void put(K key, V value) {
+		if(value == null) {
+			throw new IllegalArgumentException("Value may not be null");
+		}
+		int weight = mWeigher == null ? 1 : mWeigher.weigh(key, value);
+		if(weight <= 0) {
+			throw new IllegalArgumentException("Weight must be positive, got " + weight);
+		}
+		int hash = spread(key.hashCode());
+		int evicted = segmentFor(hash).put(key, hash, value, weight);
+		if(evicted > 0) {
+			mEvictions.addAndGet(evicted);
+		}
+	}
+
+	/** Removes the cached value for key, if any */
+	public void remove(K key) {
+		int hash = spread(key.hashCode());
+		segmentFor(hash).remove(key);
+	}
+
+	/** Removes every entry. The counters are not reset. */
+	public void clear() {
+		for(Segment<K, V> segment : mSegments) {
+			segment.clear();
+		}
+	}
+
+	/** Number of entries currently cached */
+	public long size() {
+		long size = 0;
+		for(Segment<K, V> segment : mSegments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/** Total weight of the entries currently cached */
+	public long weight() {
+		long weight = 0;
+		for(Segment<K, V> segment : mSegments) {
+			weight += segment.weight();
+		}
+		return weight;
+	}
+
+	/** Number of gets which found a value */
+	public long getHitCount() { return mHits.get(); }
+	/** Number of gets which found nothing */
+	public long getMissCount() { return mMisses.get(); }
+	/** Number of entries evicted, or refused admission, to stay within the bound */
+	public long getEvictionCount() { return mEvictions.get(); }
+
+	private Segment<K, V> segmentFor(int hash) {
+		return mSegments[(hash >>> 16) & (mSegments.length - 1)];
+	}
+
+	/** Mixes the bits of a hash code so poor hashCode()s still spread over segments */
+	static int spread(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 15);
+	}
+
+	private static final class Entry<V> {
+		V mValue;
+		int mWeight;
+
+		Entry(V value, int weight) {
+			mValue = value;
+			mWeight = weight;
+		}
+	}
+
+	/** A share of the cache's entries, guarded by its own lock */
+	private static abstract class Segment<K, V> {
+		protected final long mMaxWeight;
+		protected long mWeight;
+
+		Segment(long maxWeight) {
+			mMaxWeight = maxWeight;
+		}
+
+		abstract V get(K key, int hash);
+		/** Returns the number of entries evicted or refused */
+		abstract int put(K key, int hash, V value, int weight);
+		abstract void remove(K key);
+		abstract void clear();
+		abstract int size();
+
+		synchronized long weight() {
+			return mWeight;
+		}
+
+		/** Evicts least recently used entries from map until extraWeight more fits in maxWeight */
+		protected int evictLru(LinkedHashMap<K, Entry<V>> map, long maxWeight, long extraWeight) {
+			int evicted = 0;
+			Iterator<Map.Entry<K, Entry<V>>> eldest = map.entrySet().iterator();
+			while(mWeight + extraWeight > maxWeight && eldest.hasNext()) {
+				mWeight -= eldest.next().getValue().mWeight;
+				eldest.remove();
+				evicted++;
+			}
+			return evicted;
+		}
+	}
+
+	private static final class LruSegment<K, V> extends Segment<K, V> {
+		private final LinkedHashMap<K, Entry<V>> mMap = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+		LruSegment(long maxWeight) {
+			super(maxWeight);
+		}
+
+		@Override
+		synchronized V get(K key, int hash) {
+			Entry<V> entry = mMap.get(key);
+			return entry == null ? null : entry.mValue;
+		}
+
+		@Override
+		synchronized int put(K key, int hash, V value, int weight) {
+			// the old value goes even if the new one is refused, or a stale value would linger
+			Entry<V> old = mMap.remove(key);
+			if(old != null) {
+				mWeight -= old.mWeight;
+			}
+			if(weight > mMaxWeight) {
+				return 1;
+			}
+			int evicted = evictLru(mMap, mMaxWeight, weight);
+			mMap.put(key, new Entry<V>(value, weight));
+			mWeight += weight;
+			return evicted;
+		}
+
+		@Override
+		synchronized void remove(K key) {
+			Entry<V> old = mMap.remove(key);
+			if(old != null) {
+				mWeight -= old.mWeight;
+			}
+		}
+
+		@Override
+		synchronized void clear() {
+			mMap.clear();
+			mWeight = 0;
+		}
+
+		@Override
+		synchronized int size() {
+			return mMap.size();
+		}
+	}
+
+	private static final class TinyLfuSegment<K, V> extends Segment<K, V> {
+		/** Share of the segment given to the admission window */
+		private static final int WINDOW_PERCENT = 1;
+
+		private final LinkedHashMap<K, Entry<V>> mWindow = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+		private final LinkedHashMap<K, Entry<V>> mMain = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+		private final long mMaxWindowWeight;
+		private long mWindowWeight;
+		private final FrequencySketch mSketch;
+
+		TinyLfuSegment(long maxWeight, long expectedEntries) {
+			super(maxWeight);
+			mMaxWindowWeight = Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+			mSketch = new FrequencySketch(expectedEntries);
+		}
+
+		@Override
+		synchronized V get(K key, int hash) {
+			mSketch.increment(hash);
+			Entry<V> entry = mWindow.get(key);
+			if(entry == null) {
+				entry = mMain.get(key);
+			}
+			return entry == null ? null : entry.mValue;
+		}
+
+		@Override
+		synchronized int put(K key, int hash, V value, int weight) {
+			removeEntry(key);
+			if(weight > mMaxWeight) {
+				return 1;
+			}
+			// the access is counted by get alone, or the usual miss then put would count twice
+			// everything enters through the window...
+			mWindow.put(key, new Entry<V>(value, weight));
+			mWindowWeight += weight;
+			mWeight += weight;
+
+			// ...and whatever falls out of it must beat the main area's eldest to stay
+			int evicted = 0;
+			Iterator<Map.Entry<K, Entry<V>>> windowEldest = mWindow.entrySet().iterator();
+			while(mWindowWeight > mMaxWindowWeight && mWindow.size() > 1) {
+				Map.Entry<K, Entry<V>> candidate = windowEldest.next();
+				windowEldest.remove();
+				mWindowWeight -= candidate.getValue().mWeight;
+				mWeight -= candidate.getValue().mWeight;
+				evicted += admit(candidate.getKey(), candidate.getValue());
+			}
+
+			// a window entry heavier than the window can leave the segment over its bound
+			if(mWeight > mMaxWeight) {
+				evicted += evictLru(mMain, mMaxWeight, 0);
+			}
+			return evicted;
+		}
+
+		/** Moves a window candidate into the main area if it is worth more than what it displaces */
+		private int admit(K key, Entry<V> candidate) {
+			long mainMax = mMaxWeight - mMaxWindowWeight;
+			int evicted = 0;
+			int candidateFrequency = mSketch.frequency(spread(key.hashCode()));
+			Iterator<Map.Entry<K, Entry<V>>> mainEldest = mMain.entrySet().iterator();
+			long mainWeight = mWeight - mWindowWeight;
+			while(mainWeight + candidate.mWeight > mainMax && mainEldest.hasNext()) {
+				Map.Entry<K, Entry<V>> victim = mainEldest.next();
+				if(mSketch.frequency(spread(victim.getKey().hashCode())) >= candidateFrequency) {
+					return evicted + 1; // the candidate loses and is dropped
+				}
+				mainEldest.remove();
+				mainWeight -= victim.getValue().mWeight;
+				mWeight -= victim.getValue().mWeight;
+				evicted++;
+			}
+			if(mainWeight + candidate.mWeight > mainMax) {
+				return evicted + 1;
+			}
+			mMain.put(key, candidate);
+			mWeight += candidate.mWeight;
+			return evicted;
+		}
+
+		private void removeEntry(K key) {
+			Entry<V> old = mWindow.remove(key);
+			if(old != null) {
+				mWindowWeight -= old.mWeight;
+			} else {
+				old = mMain.remove(key);
+			}
+			if(old != null) {
+				mWeight -= old.mWeight;
+			}
+		}
+
+		@Override
+		synchronized void remove(K key) {
+			removeEntry(key);
+		}
+
+		@Override
+		synchronized void clear() {
+			mWindow.clear();
+			mMain.clear();
+			mWindowWeight = 0;
+			mWeight = 0;
+		}
+
+		@Override
+		synchronized int size() {
+			return mWindow.size() + mMain.size();
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 rows of saturating 4-bit counters, used to estimate how often a key
+	 * has been requested recently. All counts are halved every so often so old popularity fades.
+	 */
+	static final class FrequencySketch {
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = { 0x97CB3127, 0x5F356495, 0x2F54A1C5, 0xC2B2AE35 };
+
+		private final byte[] mCounts;
+		private final int mMask;
+		private final int mResetAfter;
+		private int mIncrements;
+
+		FrequencySketch(long expectedEntries) {
+			// several counters per entry keeps collisions from inflating the estimates
+			int width = 64;
+			while(width < expectedEntries * 8 && width < (1 << 16)) {
+				width *= 2;
+			}
+			mCounts = new byte[width * SEEDS.length];
+			mMask = width - 1;
+			mResetAfter = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(expectedEntries, 64) * 10);
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % SEEDS.length];
+			return row * (mMask + 1) + ((h ^ (h >>> 16)) & mMask);
+		}
+
+		int frequency(int hash) {
+			int min = MAX_COUNT;
+			for(int row = 0; row < SEEDS.length; row++) {
+				min = Math.min(min, mCounts[index(hash, row)]);
+			}
+			return min;
+		}
+
+		void increment(int hash) {
+			for(int row = 0; row < SEEDS.length; row++) {
+				int i = index(hash, row);
+				if(mCounts[i] < MAX_COUNT) {
+					mCounts[i]++;
+				}
+			}
+			if(++mIncrements >= mResetAfter) {
+				for(int i = 0; i < mCounts.length; i++) {
+					mCounts[i] >>= 1;
+				}
+				mIncrements /= 2;
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.concurrent.RecursiveAction;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+
+/**
+ * Signs a range of (image, options) pairs into a results array, splitting itself in half until
+ * the ranges are small enough to be worth running on one fork/join worker.
+ *
+ * Each worker signs through its own thread's SigningScratch and pooled Ciphers/Macs, so there is
+ * no shared mutable state between leaves; the only coordination is the fork/join itself.
+ */
+class BulkSignTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/** Below this many URLs, splitting costs more than it saves */
+	private static final int MIN_LEAF_SIZE = 64;
+
+	/** Most tokens a leaf encrypts in one Cipher call; keeps the batch buffers around 45KB */
+	static final int MAX_CIPHER_BATCH = 256;
+
+	private final ThumborServer mServer;
+	private final CharSequence[] mImageUrls;
+	private final Options[] mOptions;
+	private final String[] mResults;
+	private final int mFrom;
+	private final int mTo;
+	private final int mLeafSize;
+
+	/**
+	 * Signs every image URL into results. options must either have the same length as imageUrls,
+	 * or have length 1 to use the same options for every image.
+	 */
+	BulkSignTask(ThumborServer server, CharSequence[] imageUrls, Options[] options, String[] results, int parallelism) {
+		this(server, imageUrls, options, results, 0, imageUrls.length,
+			// a few leaves per worker lets idle workers steal from slow ones
+			Math.max(MIN_LEAF_SIZE, imageUrls.length / (Math.max(1, parallelism) * 8)));
+	}
+
+	private BulkSignTask(ThumborServer server, CharSequence[] imageUrls, Options[] options, String[] results, int from, int to, int leafSize) {
+		mServer = server;
+		mImageUrls = imageUrls;
+		mOptions = options;
+		mResults = results;
+		mFrom = from;
+		mTo = to;
+		mLeafSize = leafSize;
+	}
+
+	@Override
+	protected void compute() {
+		if(mTo - mFrom <= mLeafSize) {
+			for(int i = mFrom; i < mTo; i += MAX_CIPHER_BATCH) {
+				mServer.signBatch(mImageUrls, mOptions, i, Math.min(mTo, i + MAX_CIPHER_BATCH), mResults);
+			}
+			return;
+		}
+
+		int middle = (mFrom + mTo) >>> 1;
+		invokeAll(
+			new BulkSignTask(mServer, mImageUrls, mOptions, mResults, mFrom, middle, mLeafSize),
+			new BulkSignTask(mServer, mImageUrls, mOptions, mResults, middle, mTo, mLeafSize));
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The index behind {@link ThumborDiskCache}: a hash table from 64-bit key hash to record location,
+ * kept in a direct buffer so that tens of millions of entries cost the heap nothing.
+ *
+ * Open addressing with linear probing. Each slot is SLOT_BYTES: the key hash (0 marks an empty
+ * slot), the record's location, its length and a referenced flag for CLOCK eviction. Different
+ * keys may share a hash, so lookups visit every slot with the hash and the caller checks which,
+ * if any, holds its key. Slots move when the table grows or an entry is removed.
+ *
+ * The table has at most {@link #MAX_CAPACITY} slots, 1.5GB of direct memory, and holds at most
+ * {@link #MAX_ENTRIES}, about 50 million; past that, insert throws rather than allocate more.
+ *
+ * Not thread-safe; the cache guards it with its lock.
+ */
+final class DiskCacheIndex {
+	private static final int SLOT_BYTES = 24;
+	private static final int HASH = 0;
+	private static final int LOCATION = 8;
+	private static final int LENGTH = 16;
+	private static final int REFERENCED = 20;
+	/** Most slots, 2^26 */
+	static final int MAX_CAPACITY = 1 << 26;
+	/** Most entries, which keeps the table at most three quarters full */
+	static final int MAX_ENTRIES = MAX_CAPACITY / 4 * 3;
+
+	private ByteBuffer mSlots;
+	private int mMask;
+	private int mSize;
+
+	/** Creates an index sized for expectedEntries, which may be at most MAX_ENTRIES */
+	DiskCacheIndex(int expectedEntries) {
+		if(expectedEntries < 0 || expectedEntries > MAX_ENTRIES) {
+			throw new IllegalArgumentException("Expected entries must be between 0 and " + MAX_ENTRIES);
+		}
+		int capacity = 16;
+		while(capacity < expectedEntries * 2 && capacity < MAX_CAPACITY) capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		mSlots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+		mMask = capacity - 1;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/** Whether the index holds MAX_ENTRIES, so insert would fail */
+	boolean isFull() {
+		return mSize >= MAX_ENTRIES;
+	}
+
+	/** The first slot holding the given hash, or -1 */
+	int first(long hash) {
+		return scan(hash, (int) hash & mMask);
+	}
+
+	/** The next slot after slot holding the given hash, or -1 */
+	int next(long hash, int slot) {
+		return scan(hash, (slot + 1) & mMask);
+	}
+
+	private int scan(long hash, int slot) {
+		long stored;
+		while((stored = mSlots.getLong(slot * SLOT_BYTES + HASH)) != 0) {
+			if(stored == hash) {
+				return slot;
+			}
+			slot = (slot + 1) & mMask;
+		}
+		return -1;
+	}
+
+	long location(int slot) { return mSlots.getLong(slot * SLOT_BYTES + LOCATION); }
+	int length(int slot) { return mSlots.getInt(slot * SLOT_BYTES + LENGTH); }
+	boolean isReferenced(int slot) { return mSlots.getInt(slot * SLOT_BYTES + REFERENCED) != 0; }
+
+	void setReferenced(int slot, boolean referenced) {
+		mSlots.putInt(slot * SLOT_BYTES + REFERENCED, referenced ? 1 : 0);
+	}
+
+	void set(int slot, long location, int length) {
+		mSlots.putLong(slot * SLOT_BYTES + LOCATION, location);
+		mSlots.putInt(slot * SLOT_BYTES + LENGTH, length);
+		mSlots.putInt(slot * SLOT_BYTES + REFERENCED, 0);
+	}
+
+	/** Adds an entry, which must not already be present, unless the index is full. Hash may not be 0. */
+	void insert(long hash, long location, int length) {
+		if(isFull()) {
+			throw new IllegalStateException("Disk cache index is full");
+		}
+		if(mSize + 1 > (mMask + 1) / 4 * 3) {
+			grow();
+		}
+		int slot = (int) hash & mMask;
+		while(mSlots.getLong(slot * SLOT_BYTES + HASH) != 0) {
+			slot = (slot + 1) & mMask;
+		}
+		mSlots.putLong(slot * SLOT_BYTES + HASH, hash);
+		set(slot, location, length);
+		mSize++;
+	}
+
+	/** Removes the entry in slot, shifting back any entries which probed past it */
+	void remove(int slot) {
+		int hole = slot;
+		int next = slot;
+		while(true) {
+			next = (next + 1) & mMask;
+			long hash = mSlots.getLong(next * SLOT_BYTES + HASH);
+			if(hash == 0) {
+				break;
+			}
+			int home = (int) hash & mMask;
+			// the entry at next stays put if its home lies cyclically in (hole, next]
+			boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+			if(!stays) {
+				copy(next, hole);
+				hole = next;
+			}
+		}
+		mSlots.putLong(hole * SLOT_BYTES + HASH, 0);
+		mSize--;
+	}
+
+	private void copy(int from, int to) {
+		for(int i = 0; i < SLOT_BYTES; i += 8) {
+			mSlots.putLong(to * SLOT_BYTES + i, mSlots.getLong(from * SLOT_BYTES + i));
+		}
+	}
+
+	private void grow() {
+		ByteBuffer old = mSlots;
+		int oldCapacity = mMask + 1;
+		allocate(oldCapacity * 2);
+		for(int from = 0; from < oldCapacity; from++) {
+			long hash = old.getLong(from * SLOT_BYTES + HASH);
+			if(hash == 0) {
+				continue;
+			}
+			int to = (int) hash & mMask;
+			while(mSlots.getLong(to * SLOT_BYTES + HASH) != 0) {
+				to = (to + 1) & mMask;
+			}
+			for(int i = 0; i < SLOT_BYTES; i += 8) {
+				mSlots.putLong(to * SLOT_BYTES + i, old.getLong(from * SLOT_BYTES + i));
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Pool of HMAC-SHA1 Macs, all keyed once with the same key, which may be used from any number of
+ * threads at once. A Mac resets itself after each doFinal, so signing costs only the hash.
+ */
+class HmacSha1Pool extends InstancePool<Mac> {
+	/** Length of an HMAC-SHA1 signature in bytes */
+	public static final int SIGNATURE_LENGTH = 20;
+
+	private final SecretKeySpec mKey;
+
+	public HmacSha1Pool(byte[] key, int capacity) {
+		super(capacity);
+		mKey = new SecretKeySpec(key, "HmacSHA1");
+	}
+
+	@Override
+	protected Mac create() {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA1");
+			mac.init(mKey);
+			return mac;
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Signs the concatenation of a[0, aLength) and b[0, bLength), writing the
+	 * {@link #SIGNATURE_LENGTH} byte signature into out at outOff.
+	 */
+	public void sign(byte[] a, int aLength, byte[] b, int bLength, byte[] out, int outOff) {
+		Mac mac = acquire();
+		try {
+			mac.update(a, 0, aLength);
+			mac.update(b, 0, bLength);
+			mac.doFinal(out, outOff);
+		} catch(Exception e) {
+			// the Mac's state is unknown after a failure, so it is not returned to the pool
+			throw new RuntimeException(e);
+		}
+		release(mac);
+	}
+}
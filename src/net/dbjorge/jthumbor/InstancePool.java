@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free pool of reusable, non-thread-safe instances (Ciphers, Macs, and so on).
+ *
+ * Idle instances are kept in a fixed array of slots. Acquiring claims any occupied slot and
+ * releasing returns the instance to any empty one; neither operation blocks or allocates. When
+ * every slot is empty a fresh instance is created, and when every slot is full a released
+ * instance is simply dropped, so the pool never holds more than its capacity.
+ */
+abstract class InstancePool<T> {
+	private final AtomicReferenceArray<T> mSlots;
+
+	/** Capacity must be positive */
+	protected InstancePool(int capacity) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("Pool capacity must be positive");
+		}
+		mSlots = new AtomicReferenceArray<T>(capacity);
+	}
+
+	/** Creates a new instance for the pool. Called whenever no idle instance is available. */
+	protected abstract T create();
+
+	/** Returns the capacity a pool shared by all threads should have on this machine */
+	static int defaultCapacity() {
+		return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/** Claims an idle instance, or creates one if none are available */
+	public T acquire() {
+		int n = mSlots.length();
+		int start = startSlot(n);
+		for(int i = 0; i < n; i++) {
+			int slot = (start + i) % n;
+			if(mSlots.get(slot) != null) {
+				T instance = mSlots.getAndSet(slot, null);
+				if(instance != null) {
+					return instance;
+				}
+			}
+		}
+		return create();
+	}
+
+	/** Returns an instance to the pool. It must not be used by the caller afterwards. */
+	public void release(T instance) {
+		int n = mSlots.length();
+		int start = startSlot(n);
+		for(int i = 0; i < n; i++) {
+			int slot = (start + i) % n;
+			if(mSlots.get(slot) == null && mSlots.compareAndSet(slot, null, instance)) {
+				return;
+			}
+		}
+	}
+
+	/** Spreads threads over the slots so they rarely contend for the same one */
+	private static int startSlot(int n) {
+		long id = Thread.currentThread().getId();
+		return (int) ((id * 0x9E3779B97F4A7C15L) >>> 33) % n;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies for reporting percentiles while work is still running.
+ *
+ * Values are counted in buckets SUB_BUCKETS to each power of two of nanoseconds, so a percentile
+ * is accurate to within about 1 part in SUB_BUCKETS, from nanoseconds up to centuries, in a few
+ * kilobytes. Recording is a single atomic increment.
+ */
+final class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	void record(long nanos) {
+		if(nanos < 0) {
+			nanos = 0;
+		}
+		mCounts.incrementAndGet(bucket(nanos));
+		mCount.incrementAndGet();
+		long max;
+		while(nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos));
+	}
+
+	long getCount() {
+		return mCount.get();
+	}
+
+	long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * The value at or below which the given fraction (0 to 1) of recordings fall, as the top of its
+	 * bucket. 0 if nothing has been recorded.
+	 */
+	long percentile(double fraction) {
+		long total = mCount.get();
+		if(total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for(int i = 0; i < mCounts.length(); i++) {
+			seen += mCounts.get(i);
+			if(seen >= rank) {
+				return Math.min(top(i), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	/** Values below SUB_BUCKETS get a bucket each; above, each power of two is split SUB_BUCKETS ways */
+	static int bucket(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/** The largest value in bucket i */
+	static long top(int i) {
+		if(i < SUB_BUCKETS) {
+			return i;
+		}
+		int shift = i / SUB_BUCKETS - 1;
+		long sub = i % SUB_BUCKETS + SUB_BUCKETS;
+		long top = ((sub + 1) << shift) - 1;
+		return top < 0 ? Long.MAX_VALUE : top;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.nio.charset.Charset;
+
+import net.dbjorge.jthumbor.BoundedCache.Eviction;
+import net.dbjorge.jthumbor.TokenDecryptor.DecryptedToken;
+
+/**
+ * Checks signed paths for {@link ThumborServer#verify(String)}, remembering recent answers.
+ *
+ * Valid paths are kept in an LRU cache. Invalid ones go in a separate TinyLFU cache, so a flood
+ * of one forged path is answered from memory, while a flood of always-different garbage is
+ * mostly turned away at admission and cannot push out the paths that keep coming back.
+ */
+final class PathVerifier {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int HASH_LENGTH = 32;
+	private static final int SIGNATURE_CHARS = ThumborUtils.urlSafeBase64Length(HmacSha1Pool.SIGNATURE_LENGTH);
+	private static final byte[] NOTHING = new byte[0];
+
+	// exactly one of these is set, depending on the server's signing mode
+	private final TokenDecryptor mDecryptor;
+	private final HmacSha1Pool mMacs;
+
+	final BoundedCache<String, Boolean> mVerified;
+	final BoundedCache<String, Boolean> mRejected;
+
+	PathVerifier(TokenDecryptor decryptor, HmacSha1Pool macs, long verifiedEntries, long rejectedEntries) {
+		mDecryptor = decryptor;
+		mMacs = macs;
+		mVerified = new BoundedCache<String, Boolean>(Eviction.LRU, verifiedEntries);
+		mRejected = new BoundedCache<String, Boolean>(Eviction.TINY_LFU, rejectedEntries);
+	}
+
+	boolean verify(String path) {
+		if(mVerified.get(path) != null) {
+			return true;
+		}
+		if(mRejected.get(path) != null) {
+			return false;
+		}
+
+		boolean valid = check(path);
+		(valid ? mVerified : mRejected).put(path, Boolean.TRUE);
+		return valid;
+	}
+
+	private boolean check(String path) {
+		int start = path.startsWith("/") ? 1 : 0;
+		int slash = path.indexOf('/', start);
+		if(slash <= start || slash == path.length() - 1) {
+			return false;
+		}
+		// what follows the token: the image in AES_TOKEN mode, the options and image otherwise
+		byte[] rest = path.substring(slash + 1).getBytes();
+
+		if(mDecryptor != null) {
+			DecryptedToken token = mDecryptor.decrypt(path.subSequence(start, slash));
+			return token != null && imageMatches(token, rest);
+		}
+
+		if(slash - start != SIGNATURE_CHARS) {
+			return false;
+		}
+		byte[] signature = new byte[HmacSha1Pool.SIGNATURE_LENGTH];
+		mMacs.sign(rest, rest.length, NOTHING, 0, signature, 0);
+		byte[] expected = new byte[SIGNATURE_CHARS];
+		ThumborUtils.urlSafeBase64Encode(signature, 0, signature.length, expected, 0);
+		return constantTimeEquals(expected, path.substring(start, slash).getBytes());
+	}
+
+	/** Whether an AES token was generated for the image URL whose bytes are given */
+	static boolean imageMatches(DecryptedToken token, byte[] image) {
+		byte[] hash = new byte[HASH_LENGTH];
+		ThumborUtils.md5Hex(image, 0, image.length, hash, 0);
+		return constantTimeEquals(hash, token.getImageHash().getBytes(ASCII));
+	}
+
+	/**
+	 * Compares two arrays in time which depends only on their lengths, so a forger cannot learn
+	 * from response times how much of a guessed signature was right.
+	 */
+	static boolean constantTimeEquals(byte[] a, byte[] b) {
+		if(a.length != b.length) {
+			return false;
+		}
+		int difference = 0;
+		for(int i = 0; i < a.length; i++) {
+			difference |= a[i] ^ b[i];
+		}
+		return difference == 0;
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.Options.VerticalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+/**
+ * Splits signed Thumbor paths, /&lt;token&gt;/&lt;options&gt;/&lt;image&gt;, back into their
+ * parts: the reverse of {@link ThumborServer#getSecureUrlPath(String, Options)}. The options are
+ * read into an Options instance which is reused from one path to the next, and the token, options
+ * and image are reported as offsets into the path, so parsing copies nothing and allocates nothing.
+ *
+ * The options path follows Thumbor's own grammar, of which ThumborServer only ever writes a
+ * part: every segment is optional, but those present must come in the order ThumborServer writes
+ * them. Paths in the AES_TOKEN format have no options, since those are in the encrypted token; a
+ * parser for that format takes everything after the token as the image, even where it starts with
+ * what looks like an option.
+ *
+ * A parser is not thread-safe. It is meant to be kept by one thread and used for many paths.
+ */
+public final class SignedPathParser {
+	private final Options mOptions = new Options();
+	private final boolean mPathHasOptions;
+	private int mTokenStart;
+	private int mTokenEnd;
+	private int mOptionsEnd;
+	private int mImageEnd;
+
+	// the value of the last number parseNumber read
+	private int mNumber;
+
+	/** Creates a parser for paths with options between the signature and image, as in HMAC_SHA1 mode */
+	public SignedPathParser() {
+		this(SigningMode.HMAC_SHA1);
+	}
+
+	/** Creates a parser for paths in the format the given signing mode generates */
+	public SignedPathParser(SigningMode mode) {
+		mPathHasOptions = mode != SigningMode.AES_TOKEN;
+	}
+
+	/** Parses the whole of path, as {@link #parse(CharSequence, int, int)} */
+	public boolean parse(CharSequence path) {
+		return parse(path, 0, path.length());
+	}
+
+	/**
+	 * Parses path[start, end), which may leave off the leading '/'. Returns false if it is not a
+	 * token followed by an image, with or without options between. After a successful parse the
+	 * getters describe the path; after a failed one they are undefined.
+	 */
+	public boolean parse(CharSequence path, int start, int end) {
+		if(start < end && path.charAt(start) == '/') {
+			start++;
+		}
+		int slash = start;
+		while(slash < end && path.charAt(slash) != '/') slash++;
+		if(slash == start || slash >= end - 1) {
+			return false;
+		}
+		mTokenStart = start;
+		mTokenEnd = slash;
+		if(mPathHasOptions) {
+			mOptionsEnd = parseOptions(path, slash + 1, end, mOptions);
+		} else {
+			mOptions.reset();
+			mOptionsEnd = slash + 1;
+		}
+		mImageEnd = end;
+		return mOptionsEnd < end;
+	}
+
+	/**
+	 * The options of the last path parsed, which are always the defaults for a parser of
+	 * AES_TOKEN paths. The same instance is reused by every parse.
+	 */
+	public Options getOptions() { return mOptions; }
+	/** Start of the token (or signature) in the last path parsed */
+	public int getTokenStart() { return mTokenStart; }
+	/** End of the token (or signature), which is the index of the '/' following it */
+	public int getTokenEnd() { return mTokenEnd; }
+	/** Start of the options path, the same as its end if there were no options */
+	public int getOptionsStart() { return mTokenEnd + 1; }
+	/** End of the options path, including its trailing '/' */
+	public int getOptionsEnd() { return mOptionsEnd; }
+	/** Start of the image URL */
+	public int getImageStart() { return mOptionsEnd; }
+	/** End of the image URL, which is the end of the path */
+	public int getImageEnd() { return mImageEnd; }
+
+	/**
+	 * Reads as much of an options path as there is at s[i, end) into options, which is reset
+	 * first, and returns the index just past it.
+	 */
+	int parseOptions(CharSequence s, int i, int end, Options options) {
+		options.reset();
+
+		int next = literal(s, i, end, META);
+		if(next > i) {
+			options.meta();
+			i = next;
+		}
+
+		next = crop(s, i, end, options);
+		if(next > i) {
+			i = next;
+		}
+
+		next = literal(s, i, end, FIT_IN);
+		if(next > i) {
+			options.fitIn();
+			i = next;
+		}
+
+		next = dimensions(s, i, end, options);
+		if(next > i) {
+			i = next;
+		}
+
+		for(HorizontalAlignment ha : HORIZONTAL_ALIGNMENTS) {
+			next = literal(s, i, end, HORIZONTAL_NAMES[ha.ordinal()]);
+			if(next > i) {
+				options.horizontalAlign(ha);
+				i = next;
+				break;
+			}
+		}
+
+		for(VerticalAlignment va : VERTICAL_ALIGNMENTS) {
+			next = literal(s, i, end, VERTICAL_NAMES[va.ordinal()]);
+			if(next > i) {
+				options.verticalAlign(va);
+				i = next;
+				break;
+			}
+		}
+
+		next = literal(s, i, end, SMART);
+		if(next > i) {
+			options.smart();
+			i = next;
+		}
+
+		return i;
+	}
+
+	private static final String META = "meta/";
+	private static final String FIT_IN = "fit-in/";
+	private static final String SMART = "smart/";
+	private static final HorizontalAlignment[] HORIZONTAL_ALIGNMENTS = HorizontalAlignment.values();
+	private static final VerticalAlignment[] VERTICAL_ALIGNMENTS = VerticalAlignment.values();
+	private static final String[] HORIZONTAL_NAMES = new String[HORIZONTAL_ALIGNMENTS.length];
+	private static final String[] VERTICAL_NAMES = new String[VERTICAL_ALIGNMENTS.length];
+	static {
+		for(HorizontalAlignment ha : HORIZONTAL_ALIGNMENTS) {
+			HORIZONTAL_NAMES[ha.ordinal()] = ha.toString().toLowerCase() + "/";
+		}
+		for(VerticalAlignment va : VERTICAL_ALIGNMENTS) {
+			VERTICAL_NAMES[va.ordinal()] = va.toString().toLowerCase() + "/";
+		}
+	}
+
+	/** Returns the index past literal if s[i, end) starts with it, or i if not */
+	private static int literal(CharSequence s, int i, int end, String literal) {
+		int length = literal.length();
+		if(end - i < length) {
+			return i;
+		}
+		for(int j = 0; j < length; j++) {
+			if(s.charAt(i + j) != literal.charAt(j)) {
+				return i;
+			}
+		}
+		return i + length;
+	}
+
+	/** Reads "LxT:RxB/" into options, returning the index past it, or i if there is none */
+	private int crop(CharSequence s, int i, int end, Options options) {
+		int j = parseNumber(s, i, end);
+		if(j == i || !expect(s, j, end, 'x')) return i;
+		int left = mNumber;
+		int k = parseNumber(s, ++j, end);
+		if(k == j || !expect(s, k, end, ':')) return i;
+		int top = mNumber;
+		j = parseNumber(s, ++k, end);
+		if(j == k || !expect(s, j, end, 'x')) return i;
+		int right = mNumber;
+		k = parseNumber(s, ++j, end);
+		if(k == j || !expect(s, k, end, '/')) return i;
+		options.crop(left, top, right, mNumber);
+		return k + 1;
+	}
+
+	/**
+	 * Reads "[-]Wx[-]H/" into options, returning the index past it, or i if there is none. As in
+	 * Thumbor, either number may be left out, meaning 0.
+	 */
+	private int dimensions(CharSequence s, int i, int end, Options options) {
+		int j = i;
+		boolean flipHorizontal = expect(s, j, end, '-');
+		if(flipHorizontal) j++;
+		int k = parseNumber(s, j, end);
+		if(k < 0 || !expect(s, k, end, 'x')) return i;
+		int width = k == j ? 0 : mNumber;
+
+		j = k + 1;
+		boolean flipVertical = expect(s, j, end, '-');
+		if(flipVertical) j++;
+		k = parseNumber(s, j, end);
+		if(k < 0 || !expect(s, k, end, '/')) return i;
+		int height = k == j ? 0 : mNumber;
+
+		options.resize(width, height);
+		if(flipHorizontal) options.flipHorizontal();
+		if(flipVertical) options.flipVertical();
+		return k + 1;
+	}
+
+	private static boolean expect(CharSequence s, int i, int end, char c) {
+		return i >= 0 && i < end && s.charAt(i) == c;
+	}
+
+	/**
+	 * Reads the decimal digits at s[i, end) into mNumber and returns the index past them: i if
+	 * there are none, or -1 if they overflow an int.
+	 */
+	private int parseNumber(CharSequence s, int i, int end) {
+		long value = 0;
+		int j = i;
+		while(j < end) {
+			char c = s.charAt(j);
+			if(c < '0' || c > '9') break;
+			value = value * 10 + (c - '0');
+			if(value > Integer.MAX_VALUE) return -1;
+			j++;
+		}
+		mNumber = (int) value;
+		return j;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import net.dbjorge.jthumbor.BoundedCache.Eviction;
+import net.dbjorge.jthumbor.ThumborServer.Options;
+
+/**
+ * Cache of the URLs a ThumborServer has signed, keyed by image URL and options. Attach one to a
+ * server with {@link ThumborServer#setSignedUrlCache(SignedUrlCache)}.
+ *
+ * Signed URLs depend on the server's address and key, so a cache belongs to the first server it
+ * is attached to and may not be attached to any other.
+ */
+public class SignedUrlCache {
+	/**
+	 * Rough per-entry cost in bytes beyond the characters of the two strings: the key, its options
+	 * snapshot, the cache's entry objects and the strings' own headers.
+	 */
+	static final int ENTRY_OVERHEAD_BYTES = 200;
+
+	private final BoundedCache<Key, String> mCache;
+	private ThumborServer mOwner;
+
+	private SignedUrlCache(BoundedCache<Key, String> cache) {
+		mCache = cache;
+	}
+
+	/** A cache holding at most maxEntries signed URLs */
+	public static SignedUrlCache withMaxEntries(Eviction eviction, long maxEntries) {
+		return new SignedUrlCache(new BoundedCache<Key, String>(eviction, maxEntries));
+	}
+
+	/** A cache whose entries take up roughly maxBytes of heap at most */
+	public static SignedUrlCache withMaxBytes(Eviction eviction, long maxBytes) {
+		return new SignedUrlCache(new BoundedCache<Key, String>(eviction, maxBytes, new BoundedCache.Weigher<Key, String>() {
+			public int weigh(Key key, String url) {
+				return ENTRY_OVERHEAD_BYTES + 2 * (key.mImageUrl.length() + url.length());
+			}
+		}));
+	}
+
+	synchronized void attach(ThumborServer server) {
+		if(mOwner != null && mOwner != server) {
+			throw new IllegalStateException("Cache already belongs to another ThumborServer");
+		}
+		mOwner = server;
+	}
+
+	/** Returns the cached URL, or null */
+	String get(String imageUrl, Options options) {
+		// probe with the caller's own options; only stored keys need a private copy
+		return mCache.get(new Key(imageUrl, options));
+	}
+
+	void put(String imageUrl, Options options, String url) {
+		mCache.put(new Key(imageUrl, options.copy()), url);
+	}
+
+	/** Number of lookups which found a signed URL */
+	public long getHitCount() { return mCache.getHitCount(); }
+	/** Number of lookups which had to sign the URL */
+	public long getMissCount() { return mCache.getMissCount(); }
+	/** Number of signed URLs evicted, or never admitted, to stay within the bound */
+	public long getEvictionCount() { return mCache.getEvictionCount(); }
+	/** Number of signed URLs currently cached */
+	public long size() { return mCache.size(); }
+
+	/** Removes every signed URL. The counters are not reset. */
+	public void clear() {
+		mCache.clear();
+	}
+
+	private static final class Key {
+		final String mImageUrl;
+		final Options mOptions;
+
+		Key(String imageUrl, Options options) {
+			mImageUrl = imageUrl;
+			mOptions = options;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return mImageUrl.equals(k.mImageUrl) && mOptions.equals(k.mOptions);
+		}
+
+		@Override
+		public int hashCode() {
+			return mImageUrl.hashCode() * 31 + mOptions.hashCode();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+/**
+ * Per-thread working buffers for building secure URLs without allocating.
+ *
+ * The plaintext, ciphertext and token buffers are sized for the longest possible options path,
+ * so only the image buffer ever grows, and then only until it fits the longest image URL the
+ * thread has seen.
+ */
+final class SigningScratch {
+	/** Longest options path ThumborServer can produce (every option set, every number negative) */
+	static final int MAX_OPTIONS_PATH_LENGTH = 128;
+	static final int MAX_PLAINTEXT_LENGTH = MAX_OPTIONS_PATH_LENGTH + 32 + 16;
+
+	final byte[] mPlaintext = new byte[MAX_PLAINTEXT_LENGTH];
+	final byte[] mCiphertext = new byte[MAX_PLAINTEXT_LENGTH];
+	final byte[] mToken = new byte[(MAX_PLAINTEXT_LENGTH + 2) / 3 * 4];
+	byte[] mImage = new byte[256];
+	int mImageLength;
+	int mOptionsLength;
+	// FrozenOptions are unpacked here for signing
+	final ThumborServer.Options mOptions = new ThumborServer.Options();
+
+	// Room for many AES tokens side by side, see ThumborServer.signBatch. Grown on demand.
+	byte[] mBatchPlaintext = new byte[0];
+	byte[] mBatchCiphertext = new byte[0];
+	int[] mBatchEnds = new int[0];
+	int[] mBatchImageStarts = new int[0];
+
+	private SigningScratch() {}
+
+	private static final ThreadLocal<SigningScratch> mScratch = new ThreadLocal<SigningScratch>() {
+		@Override
+		protected SigningScratch initialValue() {
+			return new SigningScratch();
+		}
+	};
+
+	/** The calling thread's scratch space */
+	static SigningScratch get() {
+		return mScratch.get();
+	}
+
+	/**
+	 * Encodes url[start, url.length()) into mImage the same way String.getBytes() would, and
+	 * returns the number of bytes written, which is also left in mImageLength. ASCII URLs, which
+	 * is nearly all of them, are encoded without allocating.
+	 */
+	int encodeImage(CharSequence url, int start) {
+		int length = url.length() - start;
+		if(mImage.length < length) {
+			mImage = new byte[Math.max(length, mImage.length * 2)];
+		}
+		for(int i = 0; i < length; i++) {
+			char c = url.charAt(start + i);
+			if(c >= 0x80) {
+				byte[] encoded = url.subSequence(start, url.length()).toString().getBytes();
+				if(mImage.length < encoded.length) {
+					mImage = new byte[encoded.length];
+				}
+				System.arraycopy(encoded, 0, mImage, 0, encoded.length);
+				mImageLength = encoded.length;
+				return mImageLength;
+			}
+			mImage[i] = (byte) c;
+		}
+		mImageLength = length;
+		return mImageLength;
+	}
+
+	/** Makes sure the batch buffers can hold the given number of tokens */
+	void ensureBatchCapacity(int tokens) {
+		if(mBatchEnds.length < tokens) {
+			mBatchPlaintext = new byte[tokens * MAX_PLAINTEXT_LENGTH];
+			mBatchCiphertext = new byte[tokens * MAX_PLAINTEXT_LENGTH];
+			mBatchEnds = new int[tokens];
+			mBatchImageStarts = new int[tokens];
+		}
+	}
+}
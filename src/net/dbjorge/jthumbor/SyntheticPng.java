@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Generates PNG images for {@link ThumborStandInServer}: an RGB gradient whose colours come from
+ * a seed, so the same seed and size always give the same bytes. Written by hand rather than with
+ * ImageIO, so it needs nothing beyond java.base and never starts AWT.
+ */
+final class SyntheticPng {
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	private SyntheticPng() {}
+
+	/** A width by height PNG, coloured according to the first three bytes of seed */
+	static byte[] generate(int width, int height, byte[] seed) {
+		try {
+			ByteArrayOutputStream png = new ByteArrayOutputStream(1024 + width * height / 8);
+			png.write(SIGNATURE);
+
+			byte[] header = new byte[13];
+			writeInt(width, header, 0);
+			writeInt(height, header, 4);
+			header[8] = 8; // bits per channel
+			header[9] = 2; // RGB
+			// compression, filter and interlace methods all 0
+			writeChunk(png, "IHDR", header, header.length);
+
+			ByteArrayOutputStream pixels = new ByteArrayOutputStream(width * height / 8 + 64);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			DeflaterOutputStream zlib = new DeflaterOutputStream(pixels, deflater);
+			byte[] row = new byte[1 + 3 * width];
+			for(int y = 0; y < height; y++) {
+				// row[0] stays 0: no filter
+				int green = (seed[1] + y * 255 / height) & 0xFF;
+				for(int x = 0; x < width; x++) {
+					row[1 + 3 * x] = (byte) (seed[0] + x * 255 / width);
+					row[2 + 3 * x] = (byte) green;
+					row[3 + 3 * x] = seed[2];
+				}
+				zlib.write(row);
+			}
+			zlib.finish();
+			deflater.end();
+			byte[] compressed = pixels.toByteArray();
+			writeChunk(png, "IDAT", compressed, compressed.length);
+
+			writeChunk(png, "IEND", new byte[0], 0);
+			return png.toByteArray();
+		} catch(IOException e) {
+			throw new RuntimeException(e); // in-memory streams never throw
+		}
+	}
+
+	private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data, int length) {
+		byte[] word = new byte[4];
+		writeInt(length, word, 0);
+		out.write(word, 0, 4);
+
+		byte[] typeBytes = { (byte) type.charAt(0), (byte) type.charAt(1), (byte) type.charAt(2), (byte) type.charAt(3) };
+		out.write(typeBytes, 0, 4);
+		out.write(data, 0, length);
+
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		writeInt((int) crc.getValue(), word, 0);
+		out.write(word, 0, 4);
+	}
+
+	private static void writeInt(int value, byte[] out, int off) {
+		out[off] = (byte) (value >>> 24);
+		out[off + 1] = (byte) (value >>> 16);
+		out[off + 2] = (byte) (value >>> 8);
+		out[off + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,562 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Preset;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+/**
+ * Signs a stream of image URLs in bulk, one per line, writing the signed URLs out one per line in
+ * the same order. Run {@link #main(String[])} to use it from the command line.
+ *
+ * Each line is an image URL, optionally followed by a separator (a tab unless set otherwise) and
+ * the name of a preset registered with the server. Lines without a preset are signed with the
+ * default options. A line which cannot be signed, because its URL is malformed or its preset
+ * unknown, becomes an empty line, so output lines still match input lines.
+ *
+ * The input is cut into chunks of whole lines, which are signed in parallel on a pool of threads
+ * and written out in order. Lines are read straight out of the input buffer and URLs written
+ * straight into direct output buffers, with no String per line unless the URL is not ASCII, and
+ * buffers are recycled from chunk to chunk. Files are memory-mapped rather than read. Like the
+ * rest of ThumborServer, non-ASCII text is taken to be in the platform charset.
+ */
+public class ThumborBulkSigner {
+	public static final int DEFAULT_CHUNK_BYTES = 1 << 20;
+
+	private final ThumborServer mServer;
+	private final Options mDefaultOptions;
+	private int mThreads = Runtime.getRuntime().availableProcessors();
+	private int mChunkBytes = DEFAULT_CHUNK_BYTES;
+	private byte mSeparator = '\t';
+	// largest region of a file mapped at once; package-private so tests can cross regions
+	long mMaxMapping = 1 << 30;
+
+	private long mLines;
+	private long mBadLines;
+
+	/** Signs with the given server's key and presets, and the given options for lines without a preset */
+	public ThumborBulkSigner(ThumborServer server, Options defaultOptions) {
+		if(server == null || defaultOptions == null) {
+			throw new IllegalArgumentException("Server and options may not be null");
+		}
+		mServer = server;
+		mDefaultOptions = defaultOptions.copy();
+	}
+
+	/** Sets how many threads sign at once. Defaults to the number of processors. */
+	public ThumborBulkSigner setThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Threads must be at least 1");
+		}
+		mThreads = threads;
+		return this;
+	}
+
+	/** Sets roughly how many bytes of input each thread signs at a time */
+	public ThumborBulkSigner setChunkBytes(int bytes) {
+		if(bytes < 1) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		mChunkBytes = bytes;
+		return this;
+	}
+
+	/** Sets the ASCII character between an image URL and its preset name */
+	public ThumborBulkSigner setSeparator(char separator) {
+		if(separator == 0 || separator >= 0x80 || separator == '\n' || separator == '\r') {
+			throw new IllegalArgumentException("Separator must be printable ASCII");
+		}
+		mSeparator = (byte) separator;
+		return this;
+	}
+
+	/** Lines read by the last run */
+	public long getLineCount() {
+		return mLines;
+	}
+
+	/** Lines the last run could not sign, which became empty lines */
+	public long getBadLineCount() {
+		return mBadLines;
+	}
+
+	/** Signs every line read from in, writing to out. Neither channel is closed. */
+	public synchronized void sign(ReadableByteChannel in, WritableByteChannel out) {
+		Pipeline pipeline = new Pipeline(out);
+		try {
+			ByteBuffer buffer = pipeline.inputBuffer(mChunkBytes);
+			boolean eof = false;
+			while(!eof) {
+				eof = in.read(buffer) < 0;
+				if(buffer.hasRemaining() && !eof) {
+					continue;
+				}
+				int end = eof ? buffer.position() : lastLineEnd(buffer, 0, buffer.position());
+				if(end == 0 && !eof) {
+					// one line longer than the buffer
+					buffer = pipeline.grow(buffer);
+					continue;
+				}
+
+				ByteBuffer next = pipeline.inputBuffer(mChunkBytes);
+				ByteBuffer rest = buffer.duplicate();
+				rest.position(end).limit(buffer.position());
+				if(next.capacity() < rest.remaining()) {
+					next = ByteBuffer.allocateDirect(rest.remaining() + mChunkBytes);
+				}
+				next.put(rest);
+
+				buffer.flip().limit(end);
+				pipeline.submit(buffer, true);
+				buffer = next;
+			}
+			pipeline.finish();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	/** Signs every line of the file, which is memory-mapped rather than read, writing to out */
+	public synchronized void sign(Path file, WritableByteChannel out) {
+		Pipeline pipeline = new Pipeline(out);
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long regionStart = 0;
+			while(regionStart < size) {
+				long regionSize = Math.min(mMaxMapping, size - regionStart);
+				ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionSize);
+				boolean last = regionStart + regionSize == size;
+				int start = 0;
+				while(start < regionSize) {
+					int end = (int) Math.min(regionSize, (long) start + mChunkBytes);
+					if(end < regionSize || !last) {
+						int lineEnd = lastLineEnd(region, start, end);
+						if(lineEnd == start) {
+							lineEnd = nextLineEnd(region, end, (int) regionSize);
+						}
+						if(lineEnd < 0 && !last) {
+							break; // a partial line at the end of the region, mapped again with the next
+						}
+						end = lineEnd < 0 ? (int) regionSize : lineEnd;
+					}
+					ByteBuffer chunk = region.duplicate();
+					chunk.position(start).limit(end);
+					pipeline.submit(chunk.slice(), false);
+					start = end;
+				}
+				if(start == 0 && !last) {
+					throw new IllegalArgumentException("Line longer than " + mMaxMapping + " bytes");
+				}
+				regionStart += start;
+			}
+			pipeline.finish();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	/** The index just after the last '\n' in buffer[start, end), or start if there is none */
+	private static int lastLineEnd(ByteBuffer buffer, int start, int end) {
+		for(int i = end - 1; i >= start; i--) {
+			if(buffer.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return start;
+	}
+
+	/** The index just after the first '\n' in buffer[start, end), or -1 if there is none */
+	private static int nextLineEnd(ByteBuffer buffer, int start, int end) {
+		for(int i = start; i < end; i++) {
+			if(buffer.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Hands chunks to the signing threads and writes their results out in order, keeping a few
+	 * chunks per thread in flight. Only the calling thread touches the queue and buffer pools.
+	 */
+	private final class Pipeline {
+		private final WritableByteChannel mOut;
+		private final ExecutorService mExecutor;
+		private final ArrayDeque<Future<Chunk>> mPending = new ArrayDeque<Future<Chunk>>();
+		private final ArrayDeque<Chunk> mFreeChunks = new ArrayDeque<Chunk>();
+		private final ArrayDeque<ByteBuffer> mFreeInputs = new ArrayDeque<ByteBuffer>();
+		private final int mMaxPending;
+
+		Pipeline(WritableByteChannel out) {
+			mOut = out;
+			mExecutor = Executors.newFixedThreadPool(mThreads, r -> {
+				Thread thread = new Thread(r, "thumbor-bulk-signer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			mMaxPending = mThreads * 2;
+			mLines = 0;
+			mBadLines = 0;
+		}
+
+		ByteBuffer inputBuffer(int capacity) {
+			ByteBuffer buffer = mFreeInputs.poll();
+			if(buffer == null || buffer.capacity() < capacity) {
+				buffer = ByteBuffer.allocateDirect(capacity);
+			}
+			buffer.clear();
+			return buffer;
+		}
+
+		ByteBuffer grow(ByteBuffer buffer) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+			buffer.flip();
+			bigger.put(buffer);
+			return bigger;
+		}
+
+		/** Queues input[position, limit) for signing. Recyclable input buffers return to the pool. */
+		void submit(ByteBuffer input, boolean recycleInput) throws IOException {
+			if(mPending.size() >= mMaxPending) {
+				write(mPending.poll());
+			}
+			Chunk chunk = mFreeChunks.poll();
+			if(chunk == null) {
+				chunk = new Chunk();
+			}
+			chunk.mInput = input;
+			chunk.mRecycleInput = recycleInput;
+			mPending.add(mExecutor.submit(chunk));
+		}
+
+		void finish() throws IOException {
+			while(!mPending.isEmpty()) {
+				write(mPending.poll());
+			}
+		}
+
+		private void write(Future<Chunk> future) throws IOException {
+			Chunk chunk;
+			try {
+				chunk = future.get();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", e);
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+			while(chunk.mOutput.hasRemaining()) {
+				mOut.write(chunk.mOutput);
+			}
+			mLines += chunk.mLines;
+			mBadLines += chunk.mBadLines;
+			if(chunk.mRecycleInput) {
+				mFreeInputs.add(chunk.mInput);
+			}
+			chunk.mInput = null;
+			mFreeChunks.add(chunk);
+		}
+
+		void close() {
+			mExecutor.shutdownNow();
+		}
+	}
+
+	/** One chunk of input lines, signed on a pool thread into its own output buffer */
+	private final class Chunk implements Callable<Chunk> {
+		ByteBuffer mInput;
+		boolean mRecycleInput;
+		ByteBuffer mOutput = ByteBuffer.allocateDirect(0);
+		long mLines;
+		long mBadLines;
+		private final ByteChars mUrl = new ByteChars();
+		// presets this chunk has looked up, by name, so names are only made into Strings once
+		private final List<byte[]> mPresetNames = new ArrayList<byte[]>();
+		private final List<Preset> mPresets = new ArrayList<Preset>();
+
+		public Chunk call() {
+			ByteBuffer in = mInput;
+			int length = in.remaining();
+			// signed URLs are typically two or three times the length of the image URL
+			if(mOutput.capacity() < length * 3 + 256) {
+				mOutput = ByteBuffer.allocateDirect(length * 3 + 256);
+			}
+			mOutput.clear();
+			mLines = 0;
+			mBadLines = 0;
+
+			int lineStart = in.position();
+			int end = in.limit();
+			while(lineStart < end) {
+				int lineEnd = lineStart;
+				int separator = -1;
+				boolean ascii = true;
+				byte b;
+				while(lineEnd < end && (b = in.get(lineEnd)) != '\n') {
+					if(b == mSeparator && separator < 0) separator = lineEnd;
+					if(b < 0) ascii = false;
+					lineEnd++;
+				}
+				int next = lineEnd + 1;
+				if(lineEnd > lineStart && in.get(lineEnd - 1) == '\r') lineEnd--;
+
+				mLines++;
+				if(lineEnd > lineStart) {
+					signLine(in, lineStart, separator < 0 ? lineEnd : separator, separator < 0 ? -1 : separator + 1, lineEnd, ascii);
+				}
+				put((byte) '\n');
+				lineStart = next;
+			}
+			mOutput.flip();
+			return this;
+		}
+
+		private void signLine(ByteBuffer in, int urlStart, int urlEnd, int presetStart, int lineEnd, boolean ascii) {
+			Preset preset = null;
+			if(presetStart >= 0 && presetStart < lineEnd) {
+				preset = preset(in, presetStart, lineEnd);
+				if(preset == null) {
+					mBadLines++;
+					return;
+				}
+			}
+
+			CharSequence url;
+			if(ascii) {
+				mUrl.set(in, urlStart, urlEnd);
+				url = mUrl;
+			} else {
+				byte[] bytes = new byte[urlEnd - urlStart];
+				in.duplicate().position(urlStart).get(bytes);
+				// the server encodes it back with the platform charset, so decode with the same
+				url = new String(bytes);
+			}
+
+			int mark = mOutput.position();
+			while(true) {
+				try {
+					if(preset != null) {
+						mServer.appendSecureUrl(url, preset, mOutput);
+					} else {
+						mServer.appendSecureUrl(url, mDefaultOptions, mOutput);
+					}
+					return;
+				} catch(BufferOverflowException e) {
+					mOutput.position(mark);
+					growOutput();
+				} catch(IllegalArgumentException e) {
+					mOutput.position(mark);
+					mBadLines++;
+					return;
+				}
+			}
+		}
+
+		private Preset preset(ByteBuffer in, int start, int end) {
+			for(int i = 0; i < mPresetNames.size(); i++) {
+				byte[] name = mPresetNames.get(i);
+				if(name.length == end - start && equals(in, start, name)) {
+					return mPresets.get(i);
+				}
+			}
+			byte[] name = new byte[end - start];
+			in.duplicate().position(start).get(name);
+			Preset preset = mServer.getPreset(new String(name));
+			if(preset != null) {
+				mPresetNames.add(name);
+				mPresets.add(preset);
+			}
+			return preset;
+		}
+
+		private boolean equals(ByteBuffer in, int start, byte[] name) {
+			for(int i = 0; i < name.length; i++) {
+				if(in.get(start + i) != name[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void put(byte b) {
+			if(!mOutput.hasRemaining()) {
+				growOutput();
+			}
+			mOutput.put(b);
+		}
+
+		private void growOutput() {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(mOutput.capacity() * 2 + 256);
+			mOutput.flip();
+			bigger.put(mOutput);
+			mOutput = bigger;
+		}
+	}
+
+	/** An ASCII view of bytes in a buffer, reused for line after line */
+	private static final class ByteChars implements CharSequence {
+		private ByteBuffer mBuffer;
+		private int mStart;
+		private int mLength;
+
+		void set(ByteBuffer buffer, int start, int end) {
+			mBuffer = buffer;
+			mStart = start;
+			mLength = end - start;
+		}
+
+		public int length() {
+			return mLength;
+		}
+
+		public char charAt(int index) {
+			return (char) mBuffer.get(mStart + index);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			byte[] bytes = new byte[mLength];
+			mBuffer.duplicate().position(mStart).get(bytes);
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
+	}
+
+	/** Parses an options path as ThumborServer writes it, such as "fit-in/300x200/smart" */
+	static Options parseOptions(String path) {
+		if(!path.isEmpty() && !path.endsWith("/")) {
+			path += "/";
+		}
+		Options options = new Options();
+		if(new SignedPathParser().parseOptions(path, 0, path.length(), options) != path.length()) {
+			throw new IllegalArgumentException("Not an options path: " + path);
+		}
+		return options;
+	}
+
+	private static final String USAGE =
+		"Usage: ThumborBulkSigner --server URL --key KEY [--hmac] [--options PATH]\n" +
+		"           [--preset NAME=PATH]... [--threads N] [--separator C] [FILE]\n" +
+		"Signs the image URL on each line of FILE, or of standard input, and writes the signed\n" +
+		"URLs to standard output in the same order. A line may end with the separator (a tab by\n" +
+		"default) and a preset name to sign it with that preset rather than --options. PATHs are\n" +
+		"Thumbor options paths, such as fit-in/300x200/smart.";
+
+	public static void main(String[] args) throws IOException {
+		String server = null;
+		String key = null;
+		SigningMode mode = SigningMode.AES_TOKEN;
+		Options options = new Options();
+		List<String> presets = new ArrayList<String>();
+		// null for the default
+		Integer threads = null;
+		char separator = '\t';
+		String file = null;
+		ThumborBulkSigner signer;
+		try {
+			for(int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("--hmac")) {
+					mode = SigningMode.HMAC_SHA1;
+				} else if(arg.startsWith("--") && i + 1 < args.length) {
+					String value = args[++i];
+					if(arg.equals("--server")) server = value;
+					else if(arg.equals("--key")) key = value;
+					else if(arg.equals("--options")) options = parseOptions(value);
+					else if(arg.equals("--preset")) presets.add(value);
+					else if(arg.equals("--threads")) threads = Integer.parseInt(value);
+					else if(arg.equals("--separator") && value.length() == 1) separator = value.charAt(0);
+					else throw new IllegalArgumentException("Bad argument " + arg);
+				} else if(file == null && !arg.startsWith("--")) {
+					file = arg;
+				} else {
+					throw new IllegalArgumentException("Bad argument " + arg);
+				}
+			}
+			if(server == null || key == null) {
+				throw new IllegalArgumentException("--server and --key are required");
+			}
+
+			ThumborServer thumbor = new ThumborServer(server, key, mode);
+			for(String preset : presets) {
+				int equals = preset.indexOf('=');
+				if(equals < 1) {
+					throw new IllegalArgumentException("Preset must be NAME=PATH: " + preset);
+				}
+				thumbor.registerPreset(preset.substring(0, equals), parseOptions(preset.substring(equals + 1)));
+			}
+
+			signer = new ThumborBulkSigner(thumbor, options).setSeparator(separator);
+			if(threads != null) {
+				signer.setThreads(threads);
+			}
+		} catch(IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		try(FileChannel out = new FileOutputStream(FileDescriptor.out).getChannel()) {
+			if(file == null) {
+				try(FileChannel in = new FileInputStream(FileDescriptor.in).getChannel()) {
+					signer.sign(in, out);
+				}
+			} else {
+				signer.sign(Paths.get(file), out);
+			}
+		}
+		if(signer.getBadLineCount() > 0) {
+			System.err.println(signer.getBadLineCount() + " of " + signer.getLineCount() + " lines could not be signed");
+			System.exit(1);
+		}
+	}
+}
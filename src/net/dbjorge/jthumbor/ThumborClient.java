@@ -0,0 +1,431 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Preset;
+
+/**
+ * Fetches thumbnails from a Thumbor server, asynchronously and over pooled connections.
+ *
+ * Requests go through one {@link HttpClient}, by default shared by every ThumborClient in the
+ * JVM, which keeps connections alive between requests and multiplexes them over HTTP/2 where the
+ * server supports it. At most {@link #setMaxConcurrentRequests(int)} requests are in flight at
+ * once; the rest wait in order without blocking the caller. Each request fails with an
+ * {@link java.net.http.HttpTimeoutException} if no response arrives within the request timeout.
+ *
+ * Futures complete with the thumbnail's bytes, or a stream of them, if Thumbor answers 200. Any
+ * other status fails the future with a {@link StatusException}, and network failures fail it with
+ * the IOException behind them. A ThumborClient may be used from any number of threads.
+ *
+ * Fetches of a URL which is already being fetched are coalesced: rather than sending a request of
+ * their own, they wait for the one in flight and share its bytes or its failure. A burst of
+ * requests for one thumbnail, say when a new page goes live, so costs Thumbor a single request.
+ * Streams are never shared, so never coalesced.
+ */
+public class ThumborClient {
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 64;
+	public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+	private final ThumborServer mServer;
+	private final HttpClient mHttp;
+	private volatile Duration mRequestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+	// the concurrency limit: requests beyond it wait in mWaiting until one in flight finishes
+	private final ArrayDeque<Runnable> mWaiting = new ArrayDeque<Runnable>();
+	private int mMaxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+	private int mInFlight;
+
+	// fetches in flight by URL, for coalescing. Each is removed just before it completes.
+	private final ConcurrentMap<String, CompletableFuture<byte[]>> mFetches = new ConcurrentHashMap<String, CompletableFuture<byte[]>>();
+	private volatile boolean mCoalescing = true;
+	private final AtomicLong mCoalesced = new AtomicLong();
+	private volatile ThumborDiskCache mDiskCache;
+
+	/** Thumbor's answer to a request was not 200 */
+	public static class StatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int mStatusCode;
+		private final String mUrl;
+
+		public StatusException(int statusCode, String url) {
+			super("Thumbor answered " + statusCode + " for " + url);
+			mStatusCode = statusCode;
+			mUrl = url;
+		}
+
+		public int getStatusCode() { return mStatusCode; }
+		public String getUrl() { return mUrl; }
+	}
+
+	private static final class SharedHttpClient {
+		static final HttpClient INSTANCE = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.connectTimeout(Duration.ofSeconds(10))
+			.build();
+	}
+
+	/** Fetches URLs signed by the given server, through the shared HttpClient */
+	public ThumborClient(ThumborServer server) {
+		this(server, SharedHttpClient.INSTANCE);
+	}
+
+	/**
+	 * Fetches URLs signed by the given server through the given HttpClient. Neither may be null.
+	 * Share one HttpClient between as many ThumborClients as possible, so they share connections.
+	 */
+	public ThumborClient(ThumborServer server, HttpClient http) {
+		if(server == null || http == null) {
+			throw new IllegalArgumentException("Server and HttpClient may not be null");
+		}
+		mServer = server;
+		mHttp = http;
+	}
+
+	public ThumborServer getServer() {
+		return mServer;
+	}
+
+	/**
+	 * Sets how many requests may be in flight at once, at least 1. Requests already waiting start
+	 * straight away if the limit is raised.
+	 */
+	public ThumborClient setMaxConcurrentRequests(int max) {
+		if(max < 1) {
+			throw new IllegalArgumentException("Limit must be at least 1");
+		}
+		synchronized(mWaiting) {
+			mMaxConcurrentRequests = max;
+		}
+		// runs whatever now fits without holding a permit of its own
+		while(startWaiting());
+		return this;
+	}
+
+	/** Sets how long each request may wait for a response, once it has been sent. May not be null. */
+	public ThumborClient setRequestTimeout(Duration timeout) {
+		if(timeout == null || timeout.isNegative() || timeout.isZero()) {
+			throw new IllegalArgumentException("Timeout must be positive");
+		}
+		mRequestTimeout = timeout;
+		return this;
+	}
+
+	/** Sets whether fetches of a URL already in flight share its result. On by default. */
+	public ThumborClient setCoalescing(boolean coalescing) {
+		mCoalescing = coalescing;
+		return this;
+	}
+
+	/**
+	 * Sets a disk cache for fetched thumbnails, or null for none. fetch and fetchUrl answer from it
+	 * when they can and save every thumbnail they fetch into it; streams bypass it.
+	 */
+	public ThumborClient setDiskCache(ThumborDiskCache cache) {
+		mDiskCache = cache;
+		return this;
+	}
+
+	/** Fetches which shared another's request rather than sending their own */
+	public long getCoalescedCount() {
+		return mCoalesced.get();
+	}
+
+	/** Requests sent and not yet finished */
+	public int getInFlightCount() {
+		synchronized(mWaiting) {
+			return mInFlight;
+		}
+	}
+
+	/** Requests waiting for one in flight to finish */
+	public int getWaitingCount() {
+		synchronized(mWaiting) {
+			return mWaiting.size();
+		}
+	}
+
+	/** Fetches the thumbnail for the image with the given options */
+	public CompletableFuture<byte[]> fetch(String imageUrl, Options options) {
+		return fetchUrl(mServer.getSecureUrl(imageUrl, options));
+	}
+
+	/** Fetches the thumbnail for the image with the given preset's options */
+	public CompletableFuture<byte[]> fetch(String imageUrl, Preset preset) {
+		return fetchUrl(mServer.getSecureUrl(imageUrl, preset));
+	}
+
+	/** Fetches the thumbnail for the image with the given options */
+	public CompletableFuture<byte[]> fetch(ThumborImage image, Options options) {
+		return fetchUrl(mServer.getSecureUrl(image, options));
+	}
+
+	/**
+	 * Fetches a URL already signed by this client's server. Every fetch coalesced with another
+	 * completes with the same array, which must therefore not be modified.
+	 *
+	 * Each caller gets a future of its own, so cancelling one leaves the others, and the request,
+	 * running.
+	 */
+	public CompletableFuture<byte[]> fetchUrl(String secureUrl) {
+		ThumborDiskCache cache = mDiskCache;
+		String path = null;
+		if(cache != null) {
+			path = cachePath(secureUrl);
+			ByteBuffer hit = cache.get(path);
+			if(hit != null) {
+				byte[] body = new byte[hit.remaining()];
+				hit.get(body);
+				return CompletableFuture.completedFuture(body);
+			}
+		}
+
+		if(!mCoalescing) {
+			CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+			sendAndCache(secureUrl, cache, path, result);
+			return result;
+		}
+
+		CompletableFuture<byte[]> flight = new CompletableFuture<byte[]>();
+		CompletableFuture<byte[]> existing = mFetches.putIfAbsent(secureUrl, flight);
+		if(existing != null) {
+			mCoalesced.incrementAndGet();
+			return follow(existing);
+		}
+
+		CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
+		response.whenComplete((body, failure) -> {
+			// later fetches start afresh rather than joining one which has finished
+			mFetches.remove(secureUrl, flight);
+			complete(flight, body, failure);
+		});
+		sendAndCache(secureUrl, cache, path, response);
+		return follow(flight);
+	}
+
+	/** Sends the request, and caches the body on disk before result completes with it */
+	private void sendAndCache(String url, ThumborDiskCache cache, String path, CompletableFuture<byte[]> result) {
+		if(cache == null) {
+			send(url, BodyHandlers.ofByteArray(), result, true);
+			return;
+		}
+		CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
+		response.whenComplete((body, failure) -> {
+			if(failure == null) {
+				try {
+					cache.put(path, body);
+				} catch(RuntimeException e) {
+					// a cache which cannot be written to is no reason to fail the fetch
+				}
+			}
+			complete(result, body, failure);
+		});
+		send(url, BodyHandlers.ofByteArray(), response, true);
+	}
+
+	/** The path of a signed URL, which is what the disk cache is keyed by */
+	static String cachePath(String secureUrl) {
+		int slash = secureUrl.indexOf('/', ThumborUtils.urlPathStart(secureUrl, "http"));
+		return slash < 0 ? "/" : secureUrl.substring(slash);
+	}
+
+	/** A future which completes exactly as flight does, but which may be cancelled alone */
+	private static <T> CompletableFuture<T> follow(CompletableFuture<T> flight) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		flight.whenComplete((value, failure) -> complete(result, value, failure));
+		return result;
+	}
+
+	private static <T> void complete(CompletableFuture<T> future, T value, Throwable failure) {
+		if(failure != null) {
+			future.completeExceptionally(failure);
+		} else {
+			future.complete(value);
+		}
+	}
+
+	/**
+	 * Fetches the thumbnail for the image with the given options as a stream. The future completes
+	 * once the response headers arrive. The request counts against the concurrency limit until the
+	 * stream is read to the end or closed, so it must always be closed.
+	 */
+	public CompletableFuture<InputStream> stream(String imageUrl, Options options) {
+		return streamUrl(mServer.getSecureUrl(imageUrl, options));
+	}
+
+	/** As {@link #stream(String, Options)}, with the given preset's options */
+	public CompletableFuture<InputStream> stream(String imageUrl, Preset preset) {
+		return streamUrl(mServer.getSecureUrl(imageUrl, preset));
+	}
+
+	/** As {@link #stream(String, Options)}, for a URL already signed by this client's server */
+	public CompletableFuture<InputStream> streamUrl(String secureUrl) {
+		CompletableFuture<InputStream> result = new CompletableFuture<InputStream>();
+		send(secureUrl, BodyHandlers.ofInputStream(), result, false);
+		return result;
+	}
+
+	/**
+	 * Sends the request once the concurrency limit allows, and completes result with its body.
+	 * If releaseOnResponse is false the body is a stream, and the permit is released when the
+	 * stream is finished with instead.
+	 */
+	private <T> void send(String url, BodyHandler<T> handler, CompletableFuture<T> result, boolean releaseOnResponse) {
+		final HttpRequest request;
+		try {
+			request = HttpRequest.newBuilder(URI.create(url)).timeout(mRequestTimeout).GET().build();
+		} catch(IllegalArgumentException e) {
+			result.completeExceptionally(e);
+			return;
+		}
+
+		Runnable start = () -> {
+			try {
+				mHttp.sendAsync(request, handler).whenComplete((response, failure) -> finish(url, response, failure, result, releaseOnResponse));
+			} catch(RuntimeException e) {
+				result.completeExceptionally(e);
+				release();
+			}
+		};
+
+		boolean now;
+		synchronized(mWaiting) {
+			now = mInFlight < mMaxConcurrentRequests;
+			if(now) {
+				mInFlight++;
+			} else {
+				mWaiting.add(start);
+			}
+		}
+		if(now) {
+			start.run();
+		}
+	}
+
+	/**
+	 * Completes result from a response or failure. The permit is released before result completes,
+	 * so whatever runs on completion sees the request finished and may start another.
+	 */
+	private <T> void finish(String url, HttpResponse<T> response, Throwable failure, CompletableFuture<T> result, boolean releaseOnResponse) {
+		if(failure != null) {
+			release();
+			result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+		} else if(response.statusCode() != 200) {
+			closeQuietly(response.body());
+			release();
+			result.completeExceptionally(new StatusException(response.statusCode(), url));
+		} else if(releaseOnResponse) {
+			release();
+			result.complete(response.body());
+		} else {
+			@SuppressWarnings("unchecked")
+			T stream = (T) new PermitStream((InputStream) response.body());
+			if(!result.complete(stream)) {
+				closeQuietly(stream); // cancelled meanwhile
+			}
+		}
+	}
+
+	/** Hands a finished request's permit to the next waiting request, if there is one */
+	private void release() {
+		synchronized(mWaiting) {
+			mInFlight--;
+		}
+		startWaiting();
+	}
+
+	/** Starts the next waiting request if the limit allows, and returns whether it did */
+	private boolean startWaiting() {
+		Runnable next;
+		synchronized(mWaiting) {
+			if(mInFlight >= mMaxConcurrentRequests || mWaiting.isEmpty()) {
+				return false;
+			}
+			next = mWaiting.poll();
+			mInFlight++;
+		}
+		next.run();
+		return true;
+	}
+
+	private static void closeQuietly(Object body) {
+		if(body instanceof InputStream) {
+			try {
+				((InputStream) body).close();
+			} catch(IOException e) {
+				// nothing more to do with it
+			}
+		}
+	}
+
+	/** A response body which gives back its request's permit once read to the end or closed */
+	private final class PermitStream extends FilterInputStream {
+		private final AtomicBoolean mReleased = new AtomicBoolean();
+
+		PermitStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b < 0) finished();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n < 0) finished();
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				finished();
+			}
+		}
+
+		private void finished() {
+			if(mReleased.compareAndSet(false, true)) {
+				release();
+			}
+		}
+	}
+}
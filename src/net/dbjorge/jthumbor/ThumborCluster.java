@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.dbjorge.jthumbor.ThumborServer.FrozenOptions;
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Preset;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+/**
+ * Signs URLs for a cluster of Thumbor servers which share a secure key, sending every image to
+ * the same node every time so that each node's result storage only ever holds its own share.
+ *
+ * Nodes are chosen by rendezvous (highest random weight) hashing of the image's MD5 hash, which
+ * {@link ThumborImage} already holds for signing: every node scores the image with a hash of the
+ * two, and the highest score wins. When a node joins it takes about 1/n of the images, all from
+ * other nodes, and when one leaves only its own images move, spread evenly over the rest. Every
+ * other image stays where it was, so the other nodes' caches stay warm. Choosing is O(nodes),
+ * which for clusters of tens of nodes costs less than the MD5 it is based on.
+ *
+ * A node's identity is its URL, so processes configured with the same URLs, in any order, agree
+ * on where every image goes. Nodes may be added and removed at any time, from any thread.
+ */
+public class ThumborCluster {
+	private static final class Node {
+		final ThumborServer mServer;
+		final long mSeed;
+
+		Node(ThumborServer server) {
+			mServer = server;
+			mSeed = seed(server.getServerUrl());
+		}
+	}
+
+	private final String mSecureKey;
+	private final SigningMode mMode;
+	// replaced whole on every change, so choosing a node needs no lock
+	private volatile Node[] mNodes = new Node[0];
+	// holds the presets, which belong to no one node
+	private final ThumborServer mPresets;
+
+	/** A cluster of the given nodes generating legacy {@link SigningMode#AES_TOKEN} URLs */
+	public ThumborCluster(List<String> nodeUrls, String secureKey) {
+		this(nodeUrls, secureKey, SigningMode.AES_TOKEN);
+	}
+
+	/**
+	 * A cluster of the given nodes, which must share the secure key. There must be at least one
+	 * node, and none may be null or empty.
+	 */
+	public ThumborCluster(List<String> nodeUrls, String secureKey, SigningMode mode) {
+		if(nodeUrls == null || nodeUrls.isEmpty()) {
+			throw new IllegalArgumentException("A cluster needs at least one node");
+		}
+		mPresets = new ThumborServer("localhost", secureKey, mode);
+		mSecureKey = secureKey;
+		mMode = mode;
+		for(String url : nodeUrls) {
+			addNode(url);
+		}
+	}
+
+	/** Adds a node, unless one with the same URL is already in the cluster. Returns whether it did. */
+	public synchronized boolean addNode(String url) {
+		ThumborServer server = new ThumborServer(url, mSecureKey, mMode);
+		for(Node node : mNodes) {
+			if(node.mServer.getServerUrl().equals(server.getServerUrl())) {
+				return false;
+			}
+		}
+		Node[] nodes = Arrays.copyOf(mNodes, mNodes.length + 1);
+		nodes[nodes.length - 1] = new Node(server);
+		mNodes = nodes;
+		return true;
+	}
+
+	/**
+	 * Removes the node with the given URL, returning whether there was one. The last node may not
+	 * be removed.
+	 */
+	public synchronized boolean removeNode(String url) {
+		String serverUrl = ThumborUtils.sanitizeUrlWithProtocol(url, "http");
+		for(int i = 0; i < mNodes.length; i++) {
+			if(mNodes[i].mServer.getServerUrl().equals(serverUrl)) {
+				if(mNodes.length == 1) {
+					throw new IllegalStateException("Cannot remove the last node");
+				}
+				Node[] nodes = new Node[mNodes.length - 1];
+				System.arraycopy(mNodes, 0, nodes, 0, i);
+				System.arraycopy(mNodes, i + 1, nodes, i, nodes.length - i);
+				mNodes = nodes;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** The URLs of the nodes, in the order they were added */
+	public List<String> getNodeUrls() {
+		List<String> urls = new ArrayList<String>();
+		for(Node node : mNodes) {
+			urls.add(node.mServer.getServerUrl());
+		}
+		return urls;
+	}
+
+	public SigningMode getSigningMode() {
+		return mMode;
+	}
+
+	/** The node which serves the given image */
+	public ThumborServer getServer(ThumborImage image) {
+		return choose(image).mServer;
+	}
+
+	/** As {@link #getServer(ThumborImage)} */
+	public ThumborServer getServer(String imageUrl) {
+		return getServer(ThumborImage.of(imageUrl));
+	}
+
+	/** Registers a preset for signing on every node, as {@link ThumborServer#registerPreset(String, Options)} */
+	public Preset registerPreset(String name, Options options) {
+		return mPresets.registerPreset(name, options);
+	}
+
+	/** The preset registered under the given name, or null if there is none */
+	public Preset getPreset(String name) {
+		return mPresets.getPreset(name);
+	}
+
+	/** The secure URL for the image with the given options, on the node which serves it */
+	public String getSecureUrl(String imageUrl, Options options) {
+		return getSecureUrl(ThumborImage.of(imageUrl), options);
+	}
+
+	/** As {@link #getSecureUrl(String, Options)}, with frozen options */
+	public String getSecureUrl(String imageUrl, FrozenOptions options) {
+		return getSecureUrl(ThumborImage.of(imageUrl), options);
+	}
+
+	/** As {@link #getSecureUrl(String, Options)}, with a preset */
+	public String getSecureUrl(String imageUrl, Preset preset) {
+		return getSecureUrl(ThumborImage.of(imageUrl), preset);
+	}
+
+	/** As {@link #getSecureUrl(String, Options)}, with the preset registered under the given name */
+	public String getSecureUrl(String imageUrl, String presetName) {
+		Preset preset = mPresets.getPreset(presetName);
+		if(preset == null) {
+			throw new IllegalArgumentException("No preset named " + presetName);
+		}
+		return getSecureUrl(imageUrl, preset);
+	}
+
+	/** As {@link #getSecureUrl(String, Options)}, for a prepared image */
+	public String getSecureUrl(ThumborImage image, Options options) {
+		return choose(image).mServer.getSecureUrl(image, options);
+	}
+
+	/** As {@link #getSecureUrl(String, Options)}, for a prepared image and frozen options */
+	public String getSecureUrl(ThumborImage image, FrozenOptions options) {
+		return choose(image).mServer.getSecureUrl(image, options);
+	}
+
+	/** As {@link #getSecureUrl(String, Options)}, for a prepared image and a preset */
+	public String getSecureUrl(ThumborImage image, Preset preset) {
+		return choose(image).mServer.getSecureUrl(image, preset);
+	}
+
+	/**
+	 * Checks that a path was signed with the cluster's key, as {@link ThumborServer#verify(String)}.
+	 * Every node shares the key, so this says nothing about which node the path belongs on.
+	 */
+	public boolean verify(String path) {
+		return mPresets.verify(path);
+	}
+
+	private Node choose(ThumborImage image) {
+		long key = imageKey(image.mHash);
+		Node[] nodes = mNodes;
+		Node best = nodes[0];
+		long bestScore = score(best.mSeed, key);
+		for(int i = 1; i < nodes.length; i++) {
+			long score = score(nodes[i].mSeed, key);
+			// ties, vanishingly rare, go to the smaller seed so every process agrees
+			if(score > bestScore || (score == bestScore && nodes[i].mSeed < best.mSeed)) {
+				best = nodes[i];
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/** The first 64 bits of an image's hex MD5 hash */
+	static long imageKey(byte[] hexHash) {
+		long key = 0;
+		for(int i = 0; i < 16; i++) {
+			int c = hexHash[i];
+			key = (key << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+		}
+		return key;
+	}
+
+	static long score(long seed, long key) {
+		return mix(seed ^ key);
+	}
+
+	/** A stable hash of a node URL, the same in every JVM */
+	private static long seed(String url) {
+		long h = 0xcbf29ce484222325L;
+		for(int i = 0; i < url.length(); i++) {
+			h = (h ^ url.charAt(i)) * 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	/** The MurmurHash3 64-bit finalizer */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,699 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of thumbnails on local disk, keyed by signed URL path, which survives
+ * restarts.
+ *
+ * Thumbnails are appended to segment files in a directory, each memory-mapped whole, and hits are
+ * returned as read-only slices of the mapping: no read system call and no copy onto the heap. The
+ * index from key to record lives off-heap too (see {@link DiskCacheIndex}), about 48 bytes per
+ * entry, so tens of millions of entries cost the heap next to nothing. It holds at most
+ * {@link #MAX_ENTRIES}, about 50 million, in 1.5GB of direct memory; once it is full, put caches
+ * nothing new until eviction makes room. Nothing else is written:
+ * on opening, the index is rebuilt by scanning the segments, whose records carry checksums so
+ * that a record torn by a crash is simply dropped.
+ *
+ * The directory is kept within a maximum size by a background thread, which discards the oldest
+ * segment whenever the total goes over. Entries in it which have been read since they were
+ * written or last moved are first copied forward to the newest segment, up to half the segment,
+ * so eviction approximates LRU (it is the CLOCK algorithm). Segments which are mostly overwritten
+ * entries are compacted the same way. The size may briefly run over while the thread catches up.
+ * The thread copies entries without holding up gets and puts, which wait only while it reserves
+ * space for the copies and while it switches the index over to them.
+ *
+ * Buffers returned by {@link #get(String)} stay readable after their entry is evicted or the cache
+ * is closed, as long as the platform lets a deleted file stay mapped, which Linux and macOS do.
+ * A directory must only be open in one cache at a time. I/O errors are thrown as
+ * {@link UncheckedIOException}; one on the background thread is thrown from the next call to
+ * put or flush.
+ */
+public class ThumborDiskCache implements Closeable {
+	public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+	/** Largest segment size; offsets within a segment must fit in an int */
+	public static final int MAX_SEGMENT_BYTES = 1 << 30;
+	/** Most entries the cache can hold, whatever its size */
+	public static final int MAX_ENTRIES = DiskCacheIndex.MAX_ENTRIES;
+
+	// record header: key length (never 0, so an all-zero header marks the end), value length, CRC32
+	// of key and value
+	private static final int HEADER = 12;
+	// key length marking space reserved for a record being copied, whose value length is the
+	// length of the space less HEADER
+	private static final int PADDING = -1;
+	private static final String SUFFIX = ".segment";
+
+	private final Path mDirectory;
+	private final long mMaxBytes;
+	private final int mSegmentBytes;
+
+	private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+	private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+	private final DiskCacheIndex mIndex = new DiskCacheIndex(1024);
+	private Segment mActive;
+	private long mBytes;
+	private boolean mClosed;
+
+	private final ExecutorService mCompactor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "thumbor-disk-cache-compactor");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicBoolean mCompactionQueued = new AtomicBoolean();
+	// held by compact() throughout, so only one compaction runs at a time
+	private final Object mCompactionLock = new Object();
+	private final AtomicReference<UncheckedIOException> mCompactionFailure = new AtomicReference<UncheckedIOException>();
+
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+
+	/** One mapped segment file. Records run from 0 to mEnd. */
+	private static final class Segment {
+		final int mId;
+		final Path mFile;
+		final FileChannel mChannel;
+		final MappedByteBuffer mBuffer;
+		int mEnd;
+		// bytes of records the index still points at
+		long mLiveBytes;
+
+		Segment(int id, Path file, FileChannel channel, MappedByteBuffer buffer) {
+			mId = id;
+			mFile = file;
+			mChannel = channel;
+			mBuffer = buffer;
+		}
+	}
+
+	/** Opens or creates the cache in directory, with segments of {@link #DEFAULT_SEGMENT_BYTES} or less */
+	public ThumborDiskCache(Path directory, long maxBytes) {
+		this(directory, maxBytes, (int) Math.min(DEFAULT_SEGMENT_BYTES, maxBytes / 4));
+	}
+
+	/**
+	 * Opens or creates the cache in directory, holding at most about maxBytes, which must be at
+	 * least twice segmentBytes. Existing entries are read back in.
+	 */
+	public ThumborDiskCache(Path directory, long maxBytes, int segmentBytes) {
+		if(segmentBytes < HEADER * 2 || segmentBytes > MAX_SEGMENT_BYTES) {
+			throw new IllegalArgumentException("Segment size must be between " + HEADER * 2 + " and " + MAX_SEGMENT_BYTES);
+		}
+		if(maxBytes < 2L * segmentBytes) {
+			throw new IllegalArgumentException("Maximum size must be at least two segments");
+		}
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+		mSegmentBytes = segmentBytes;
+
+		try {
+			Files.createDirectories(directory);
+			List<Integer> ids = new ArrayList<Integer>();
+			try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+				for(Path file : files) {
+					String name = file.getFileName().toString();
+					ids.add(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())));
+				}
+			}
+			Collections.sort(ids);
+			for(int id : ids) {
+				Segment segment = open(id);
+				mSegments.put(id, segment);
+				recover(segment);
+				mBytes += segment.mEnd;
+				mActive = segment;
+			}
+			if(mActive == null) {
+				mActive = create(1);
+			}
+		} catch(IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+		if(mBytes > mMaxBytes) {
+			scheduleCompaction();
+		}
+	}
+
+	/**
+	 * The thumbnail cached for the signed URL path, as a read-only buffer over the mapped file, or
+	 * null if there is none
+	 */
+	public ByteBuffer get(String path) {
+		byte[] key = path.getBytes(StandardCharsets.UTF_8);
+		long hash = hash(key);
+		mLock.readLock().lock();
+		try {
+			int slot = mClosed ? -1 : find(hash, key);
+			if(slot < 0) {
+				mMisses.incrementAndGet();
+				return null;
+			}
+			// racing readers can only ever set the same flag, so the read lock is enough
+			mIndex.setReferenced(slot, true);
+			long location = mIndex.location(slot);
+			Segment segment = mSegments.get(segmentId(location));
+			int offset = offset(location);
+			int start = offset + HEADER + key.length;
+			ByteBuffer value = segment.mBuffer.duplicate();
+			value.position(start).limit(start + segment.mBuffer.getInt(offset + 4));
+			mHits.incrementAndGet();
+			return value.slice().asReadOnlyBuffer();
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Caches the thumbnail for the signed URL path, replacing any already cached, and returns true.
+	 * Returns false without caching if the entry would not fit in one segment, or if it is new and
+	 * the cache already holds {@link #MAX_ENTRIES}. The value's position is left unchanged.
+	 */
+	public boolean put(String path, ByteBuffer value) {
+		checkCompaction();
+		byte[] key = path.getBytes(StandardCharsets.UTF_8);
+		int length = HEADER + key.length + value.remaining();
+		if(key.length == 0 || length > mSegmentBytes) {
+			return false;
+		}
+		long hash = hash(key);
+
+		boolean over;
+		mLock.writeLock().lock();
+		try {
+			if(mClosed) {
+				throw new IllegalStateException("Cache is closed");
+			}
+			int slot = find(hash, key);
+			if(slot < 0 && mIndex.isFull()) {
+				return false;
+			}
+			long location = append(key, value.duplicate());
+			if(slot >= 0) {
+				forget(slot);
+				mIndex.set(slot, location, length);
+			} else {
+				mIndex.insert(hash, location, length);
+			}
+			mActive.mLiveBytes += length;
+			over = mBytes > mMaxBytes;
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		if(over) {
+			scheduleCompaction();
+		}
+		return true;
+	}
+
+	/** As {@link #put(String, ByteBuffer)} */
+	public boolean put(String path, byte[] value) {
+		return put(path, ByteBuffer.wrap(value));
+	}
+
+	/** Number of entries cached */
+	public int size() {
+		mLock.readLock().lock();
+		try {
+			return mIndex.size();
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/** Bytes used on disk, counting overwritten entries not yet compacted away */
+	public long getBytes() {
+		mLock.readLock().lock();
+		try {
+			return mBytes;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	public long getHitCount() {
+		return mHits.get();
+	}
+
+	public long getMissCount() {
+		return mMisses.get();
+	}
+
+	/** Writes everything cached so far through to disk */
+	public void flush() {
+		checkCompaction();
+		mLock.readLock().lock();
+		try {
+			for(Segment segment : mSegments.values()) {
+				segment.mBuffer.force();
+			}
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/** Flushes and closes the cache. Later calls to put fail; gets miss. */
+	public void close() {
+		mCompactor.shutdownNow();
+		mLock.writeLock().lock();
+		try {
+			if(mClosed) {
+				return;
+			}
+			mClosed = true;
+			for(Segment segment : mSegments.values()) {
+				segment.mBuffer.force();
+				closeQuietly(segment.mChannel);
+			}
+			mSegments.clear();
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Evicts and compacts segments until the cache is within its size and no old segment is
+	 * mostly dead. Runs on the background thread; package-private so tests can run it directly.
+	 */
+	void compact() {
+		synchronized(mCompactionLock) {
+			try {
+				Segment oldest;
+				while((oldest = oldestIfOver()) != null) {
+					rewrite(oldest, false);
+				}
+				List<Segment> sparse = new ArrayList<Segment>();
+				mLock.readLock().lock();
+				try {
+					for(Segment segment : mSegments.values()) {
+						if(segment != mActive && segment.mLiveBytes < segment.mEnd / 4) {
+							sparse.add(segment);
+						}
+					}
+				} finally {
+					mLock.readLock().unlock();
+				}
+				for(Segment segment : sparse) {
+					rewrite(segment, true);
+				}
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/** The oldest segment if the cache is over its size and it is not the active one, or null */
+	private Segment oldestIfOver() {
+		mLock.readLock().lock();
+		try {
+			return !mClosed && mBytes > mMaxBytes && mSegments.size() > 1 ? mSegments.firstEntry().getValue() : null;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	private void scheduleCompaction() {
+		if(mCompactionQueued.compareAndSet(false, true)) {
+			try {
+				mCompactor.execute(() -> {
+					mCompactionQueued.set(false);
+					try {
+						compact();
+					} catch(UncheckedIOException e) {
+						mCompactionFailure.set(e);
+					}
+				});
+			} catch(RuntimeException e) {
+				// rejected: the cache is closing
+				mCompactionQueued.set(false);
+			}
+		}
+	}
+
+	/** Throws the failure of a background compaction, if there has been one since the last call */
+	private void checkCompaction() {
+		UncheckedIOException failure = mCompactionFailure.getAndSet(null);
+		if(failure != null) {
+			throw new UncheckedIOException("Background compaction failed", failure.getCause());
+		}
+	}
+
+	/**
+	 * Moves the live entries of segment, which must not be the active one, forward to the active
+	 * segment and deletes it. Unless keepAll, only entries referenced since they were written or
+	 * last moved are kept, and only until they fill half the segment; the rest are evicted.
+	 *
+	 * Nothing writes to a segment once it is no longer active, so its records are copied with no
+	 * lock held. The write lock is taken only to reserve space for the copies and then to point
+	 * the index at them and drop the segment. Until a copy is whole its space is padding, which a
+	 * restart skips.
+	 */
+	private void rewrite(Segment segment, boolean keepAll) throws IOException {
+		ByteBuffer buffer = segment.mBuffer;
+
+		// choose the records to keep
+		List<Integer> offsets = new ArrayList<Integer>();
+		mLock.readLock().lock();
+		try {
+			long kept = 0;
+			for(int offset = 0; offset < segment.mEnd; offset += recordLength(buffer, offset)) {
+				int slot = findLocation(segment, offset);
+				int length = recordLength(buffer, offset);
+				if(slot >= 0 && (keepAll || (mIndex.isReferenced(slot) && kept + length <= segment.mEnd / 2))) {
+					offsets.add(offset);
+					kept += length;
+				}
+			}
+		} finally {
+			mLock.readLock().unlock();
+		}
+
+		// reserve space for those not overwritten since. Later puts land after it, so a restart
+		// still sees them as newer than the copies.
+		int count = offsets.size();
+		Segment[] targets = new Segment[count];
+		long[] locations = new long[count];
+		mLock.writeLock().lock();
+		try {
+			if(mClosed) {
+				return;
+			}
+			for(int i = 0; i < count; i++) {
+				int offset = offsets.get(i);
+				if(findLocation(segment, offset) >= 0) {
+					locations[i] = reservePadding(recordLength(buffer, offset));
+					targets[i] = mActive;
+				}
+			}
+		} finally {
+			mLock.writeLock().unlock();
+		}
+
+		for(int i = 0; i < count; i++) {
+			if(targets[i] != null) {
+				copyRecord(buffer, offsets.get(i), targets[i].mBuffer, offset(locations[i]));
+			}
+		}
+
+		mLock.writeLock().lock();
+		try {
+			if(mClosed) {
+				return;
+			}
+			int next = 0;
+			for(int offset = 0; offset < segment.mEnd; offset += recordLength(buffer, offset)) {
+				int slot = findLocation(segment, offset);
+				int length = recordLength(buffer, offset);
+				if(next < count && offsets.get(next) == offset) {
+					Segment target = targets[next];
+					long location = locations[next++];
+					if(target == null) {
+						// overwritten before space was reserved
+					} else if(slot >= 0) {
+						mIndex.set(slot, location, length);
+						target.mLiveBytes += length;
+						continue;
+					} else {
+						// overwritten while it was copied
+						pad(target.mBuffer, offset(location), length);
+					}
+				}
+				if(slot >= 0) {
+					mIndex.remove(slot);
+				}
+			}
+			mSegments.remove(segment.mId);
+			mBytes -= segment.mEnd;
+			closeQuietly(segment.mChannel);
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		Files.deleteIfExists(segment.mFile);
+	}
+
+	/** Length of the record at offset, header included */
+	private static int recordLength(ByteBuffer buffer, int offset) {
+		int keyLength = buffer.getInt(offset);
+		return HEADER + (keyLength == PADDING ? 0 : keyLength) + buffer.getInt(offset + 4);
+	}
+
+	/** Marks length bytes at offset as padding */
+	private static void pad(ByteBuffer buffer, int offset, int length) {
+		buffer.putInt(offset + 8, 0);
+		buffer.putLong(offset, ((long) PADDING << 32) | (length - HEADER));
+	}
+
+	/**
+	 * Copies the record at from[fromOffset] over the padding at to[toOffset]. The lengths go last,
+	 * in one write, so a crash leaves either the padding or the whole record.
+	 */
+	private static void copyRecord(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset) {
+		int length = recordLength(from, fromOffset);
+		ByteBuffer rest = from.duplicate();
+		rest.position(fromOffset + 8).limit(fromOffset + length);
+		ByteBuffer out = to.duplicate();
+		out.position(toOffset + 8);
+		out.put(rest);
+		to.putLong(toOffset, from.getLong(fromOffset));
+	}
+
+	/**
+	 * The index slot pointing at the record at offset in segment, or -1 if it has been overwritten
+	 * or is padding
+	 */
+	private int findLocation(Segment segment, int offset) {
+		int keyLength = segment.mBuffer.getInt(offset);
+		if(keyLength == PADDING) {
+			return -1;
+		}
+		long location = location(segment.mId, offset);
+		ByteBuffer key = segment.mBuffer.duplicate();
+		key.position(offset + HEADER).limit(offset + HEADER + keyLength);
+		long hash = hash(key);
+		for(int slot = mIndex.first(hash); slot >= 0; slot = mIndex.next(hash, slot)) {
+			if(mIndex.location(slot) == location) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/** The index slot holding key, or -1 */
+	private int find(long hash, byte[] key) {
+		for(int slot = mIndex.first(hash); slot >= 0; slot = mIndex.next(hash, slot)) {
+			long location = mIndex.location(slot);
+			Segment segment = mSegments.get(segmentId(location));
+			if(segment != null && keyMatches(segment.mBuffer, offset(location), key)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean keyMatches(ByteBuffer buffer, int offset, byte[] key) {
+		if(buffer.getInt(offset) != key.length) {
+			return false;
+		}
+		for(int i = 0; i < key.length; i++) {
+			if(buffer.get(offset + HEADER + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Marks the record slot points at as overwritten */
+	private void forget(int slot) {
+		Segment old = mSegments.get(segmentId(mIndex.location(slot)));
+		if(old != null) {
+			old.mLiveBytes -= mIndex.length(slot);
+		}
+	}
+
+	/** Appends a new record to the active segment and returns its location */
+	private long append(byte[] key, ByteBuffer value) {
+		CRC32 crc = new CRC32();
+		crc.update(key);
+		crc.update(value.duplicate());
+		ByteBuffer record = ByteBuffer.allocate(HEADER + key.length);
+		record.putInt(key.length).putInt(value.remaining()).putInt((int) crc.getValue()).put(key).flip();
+		try {
+			long location = reserve(record.remaining() + value.remaining());
+			ByteBuffer out = mActive.mBuffer.duplicate();
+			out.position(offset(location));
+			out.put(record).put(value);
+			terminate(out);
+			return location;
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Reserves length bytes of padding in the active segment and returns their location */
+	private long reservePadding(int length) throws IOException {
+		long location = reserve(length);
+		pad(mActive.mBuffer, offset(location), length);
+		ByteBuffer out = mActive.mBuffer.duplicate();
+		out.position(offset(location) + length);
+		terminate(out);
+		return location;
+	}
+
+	/**
+	 * Makes room for length bytes at the end of the active segment, starting a new one if need be,
+	 * and returns their location
+	 */
+	private long reserve(int length) throws IOException {
+		if(mActive.mEnd + length > mActive.mBuffer.capacity()) {
+			mActive = create(mActive.mId + 1);
+		}
+		int offset = mActive.mEnd;
+		mActive.mEnd += length;
+		mBytes += length;
+		return location(mActive.mId, offset);
+	}
+
+	/** Zeroes the header after a new record, so a restart stops reading there */
+	private static void terminate(ByteBuffer out) {
+		if(out.remaining() >= HEADER) {
+			out.putInt(0).putInt(0).putInt(0);
+		}
+	}
+
+	private Segment create(int id) throws IOException {
+		Segment segment = open(id);
+		mSegments.put(id, segment);
+		return segment;
+	}
+
+	private Segment open(int id) throws IOException {
+		Path file = mDirectory.resolve(String.format("%08d%s", id, SUFFIX));
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			// mapping past the end grows the file, sparsely
+			long size = Math.max(channel.size(), mSegmentBytes);
+			return new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+		} catch(IOException e) {
+			closeQuietly(channel);
+			throw e;
+		}
+	}
+
+	/** Reads the records of a segment back into the index, stopping at the end or a torn record */
+	private void recover(Segment segment) {
+		ByteBuffer buffer = segment.mBuffer;
+		int offset = 0;
+		while(offset + HEADER <= buffer.capacity()) {
+			int keyLength = buffer.getInt(offset);
+			int valueLength = buffer.getInt(offset + 4);
+			if(keyLength == PADDING && valueLength >= 0 && (long) offset + HEADER + valueLength <= buffer.capacity()) {
+				// space reserved for a copy which never finished
+				offset += HEADER + valueLength;
+				continue;
+			}
+			long end = (long) offset + HEADER + keyLength + valueLength;
+			if(keyLength <= 0 || valueLength < 0 || end > buffer.capacity()) {
+				break;
+			}
+			ByteBuffer body = buffer.duplicate();
+			body.position(offset + HEADER).limit((int) end);
+			CRC32 crc = new CRC32();
+			crc.update(body.duplicate());
+			if((int) crc.getValue() != buffer.getInt(offset + 8)) {
+				break;
+			}
+
+			byte[] key = new byte[keyLength];
+			body.get(key);
+			long hash = hash(key);
+			int length = (int) (end - offset);
+			long location = location(segment.mId, offset);
+			int slot = find(hash, key);
+			if(slot >= 0) {
+				forget(slot);
+				mIndex.set(slot, location, length);
+				segment.mLiveBytes += length;
+			} else if(!mIndex.isFull()) {
+				mIndex.insert(hash, location, length);
+				segment.mLiveBytes += length;
+			}
+			offset = (int) end;
+		}
+		segment.mEnd = offset;
+	}
+
+	private static long location(int segmentId, int offset) {
+		return ((long) segmentId << 32) | offset;
+	}
+
+	private static int segmentId(long location) {
+		return (int) (location >>> 32);
+	}
+
+	private static int offset(long location) {
+		return (int) location;
+	}
+
+	/** 64-bit FNV-1a, finished with the MurmurHash3 mixer so the low bits spread well. Never 0. */
+	static long hash(byte[] key) {
+		return hash(ByteBuffer.wrap(key));
+	}
+
+	private static long hash(ByteBuffer key) {
+		long h = 0xcbf29ce484222325L;
+		for(int i = key.position(); i < key.limit(); i++) {
+			h = (h ^ (key.get(i) & 0xFF)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	private static void closeQuietly(Closeable c) {
+		try {
+			c.close();
+		} catch(IOException e) {
+			// nothing more to do with it
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.nio.charset.Charset;
+
+import net.dbjorge.jthumbor.BoundedCache.Eviction;
+
+/**
+ * An image URL prepared for signing: sanitized, encoded and hashed once, so that any number of
+ * variants of it can be signed without repeating that work. Immutable and server-independent.
+ *
+ * Obtain one with {@link #of(String)} and pass it to the ThumborServer methods which accept it.
+ */
+public final class ThumborImage {
+	/** Number of recently prepared images remembered by {@link #of(String)} */
+	static final int MEMO_ENTRIES = 4096;
+	private static final BoundedCache<String, ThumborImage> mMemo =
+		new BoundedCache<String, ThumborImage>(Eviction.LRU, MEMO_ENTRIES);
+
+	private final String mPath;
+	final byte[] mBytes;
+	final byte[] mHash;
+
+	private ThumborImage(String path) {
+		mPath = path;
+		mBytes = path.getBytes();
+		mHash = ThumborUtils.md5String(path).getBytes(Charset.forName("US-ASCII"));
+	}
+
+	/**
+	 * Prepares the given image URL. Recently prepared URLs are remembered, so repeated calls for
+	 * the same image, even from different threads, usually return the same prepared image.
+	 *
+	 * Raises an error if the URL has a protocol other than http, as the signing methods do.
+	 */
+	public static ThumborImage of(String imageUrl) throws IllegalArgumentException {
+		ThumborImage image = mMemo.get(imageUrl);
+		if(image == null) {
+			image = new ThumborImage(ThumborUtils.sanitizeUrlWithoutProtocol(imageUrl, "http"));
+			mMemo.put(imageUrl, image);
+		}
+		return image;
+	}
+
+	/** The image URL without its protocol, as it appears at the end of a signed URL */
+	public String getPath() {
+		return mPath;
+	}
+
+	/** The hex MD5 hash of {@link #getPath()}, as it appears in an AES token */
+	public String getHash() {
+		return new String(mHash, Charset.forName("US-ASCII"));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof ThumborImage && mPath.equals(((ThumborImage) o).mPath);
+	}
+
+	@Override
+	public int hashCode() {
+		return mPath.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return mPath;
+	}
+}
@@ -16,6 +16,16 @@
 
 package net.dbjorge.jthumbor;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
 import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
 import net.dbjorge.jthumbor.ThumborServer.Options.VerticalAlignment;
 
@@ -64,71 +74,390 @@ public class ThumborServer {
 		public Options horizontalAlign(HorizontalAlignment ha) { mHorizontalAlignment = ha; return this; }
 		public Options verticalAlign(VerticalAlignment va) { mVerticalAlignment = va; return this; }
 		public Options smart() { mSmart = true; return this; }
+
+		public boolean isMeta() { return mMeta; }
+		public int getCropLeft() { return mCropLeft; }
+		public int getCropTop() { return mCropTop; }
+		public int getCropRight() { return mCropRight; }
+		public int getCropBottom() { return mCropBottom; }
+		public int getWidth() { return mWidth; }
+		public int getHeight() { return mHeight; }
+		public boolean isFlipHorizontal() { return mFlipHorizontal; }
+		public boolean isFlipVertical() { return mFlipVertical; }
+		public boolean isFitIn() { return mFitIn; }
+		public HorizontalAlignment getHorizontalAlignment() { return mHorizontalAlignment; }
+		public VerticalAlignment getVerticalAlignment() { return mVerticalAlignment; }
+		public boolean isSmart() { return mSmart; }
+
+		/** Restores every setting to its default, and returns this */
+		public Options reset() {
+			mMeta = false;
+			mCropLeft = 0; mCropTop = 0; mCropRight = 0; mCropBottom = 0;
+			mWidth = 0; mHeight = 0;
+			mFlipHorizontal = false; mFlipVertical = false;
+			mFitIn = false;
+			mHorizontalAlignment = HorizontalAlignment.CENTER; mVerticalAlignment = VerticalAlignment.MIDDLE;
+			mSmart = false;
+			return this;
+		}
+
+		/** A separate Options with the same settings */
+		public Options copy() {
+			Options o = new Options();
+			o.mMeta = mMeta;
+			o.mCropLeft = mCropLeft; o.mCropTop = mCropTop; o.mCropRight = mCropRight; o.mCropBottom = mCropBottom;
+			o.mWidth = mWidth; o.mHeight = mHeight;
+			o.mFlipHorizontal = mFlipHorizontal; o.mFlipVertical = mFlipVertical;
+			o.mFitIn = mFitIn;
+			o.mHorizontalAlignment = mHorizontalAlignment; o.mVerticalAlignment = mVerticalAlignment;
+			o.mSmart = mSmart;
+			return o;
+		}
+
+		/**
+		 * An immutable snapshot of these settings, packed into two longs.
+		 *
+		 * @throws IllegalArgumentException if a crop coordinate or dimension is negative or larger
+		 *         than {@link FrozenOptions#MAX_VALUE}
+		 */
+		public FrozenOptions freeze() {
+			return new FrozenOptions(this);
+		}
+
+		/**
+		 * Options are equal when all of their settings are. Options are mutable, so any used as
+		 * a map key must not be changed afterwards.
+		 */
+		@Override
+		public boolean equals(Object other) {
+			if(this == other) return true;
+			if(!(other instanceof Options)) return false;
+			Options o = (Options) other;
+			return mMeta == o.mMeta
+				&& mCropLeft == o.mCropLeft && mCropTop == o.mCropTop && mCropRight == o.mCropRight && mCropBottom == o.mCropBottom
+				&& mWidth == o.mWidth && mHeight == o.mHeight
+				&& mFlipHorizontal == o.mFlipHorizontal && mFlipVertical == o.mFlipVertical
+				&& mFitIn == o.mFitIn
+				&& mHorizontalAlignment == o.mHorizontalAlignment && mVerticalAlignment == o.mVerticalAlignment
+				&& mSmart == o.mSmart;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = mCropLeft;
+			h = h * 31 + mCropTop;
+			h = h * 31 + mCropRight;
+			h = h * 31 + mCropBottom;
+			h = h * 31 + mWidth;
+			h = h * 31 + mHeight;
+			h = h * 31 + mHorizontalAlignment.ordinal();
+			h = h * 31 + mVerticalAlignment.ordinal();
+			h = h * 32 + (mMeta ? 1 : 0) + (mFlipHorizontal ? 2 : 0) + (mFlipVertical ? 4 : 0) + (mFitIn ? 8 : 0) + (mSmart ? 16 : 0);
+			return h;
+		}
+	}
+
+	/**
+	 * Immutable form of {@link Options}, for sharing between threads, using as a map key, or keeping
+	 * in large numbers. Created with {@link Options#freeze()}.
+	 *
+	 * All settings are packed into two longs: each crop coordinate and dimension takes 19 bits, the
+	 * five flags one bit each and each alignment two bits. equals and hashCode only compare those
+	 * two words.
+	 */
+	public static final class FrozenOptions {
+		/** Largest crop coordinate or dimension a FrozenOptions can hold */
+		public static final int MAX_VALUE = (1 << 19) - 1;
+
+		private static final int BITS = 19;
+		private static final int FLAGS_SHIFT = 3 * BITS;
+		private static final long META = 1L << FLAGS_SHIFT;
+		private static final long FLIP_HORIZONTAL = 2L << FLAGS_SHIFT;
+		private static final long FLIP_VERTICAL = 4L << FLAGS_SHIFT;
+		private static final long FIT_IN = 8L << FLAGS_SHIFT;
+		private static final long SMART = 16L << FLAGS_SHIFT;
+		private static final int HORIZONTAL_SHIFT = 3 * BITS;
+		private static final int VERTICAL_SHIFT = 3 * BITS + 2;
+
+		// crop left, top and right, then the flags
+		private final long mFirst;
+		// crop bottom, width and height, then the alignments
+		private final long mSecond;
+
+		private FrozenOptions(Options o) {
+			long first = pack(o.mCropLeft, "Crop left") | pack(o.mCropTop, "Crop top") << BITS | pack(o.mCropRight, "Crop right") << 2 * BITS;
+			if(o.mMeta) first |= META;
+			if(o.mFlipHorizontal) first |= FLIP_HORIZONTAL;
+			if(o.mFlipVertical) first |= FLIP_VERTICAL;
+			if(o.mFitIn) first |= FIT_IN;
+			if(o.mSmart) first |= SMART;
+			mFirst = first;
+
+			mSecond = pack(o.mCropBottom, "Crop bottom") | pack(o.mWidth, "Width") << BITS | pack(o.mHeight, "Height") << 2 * BITS
+				| (long) o.mHorizontalAlignment.ordinal() << HORIZONTAL_SHIFT
+				| (long) o.mVerticalAlignment.ordinal() << VERTICAL_SHIFT;
+		}
+
+		private static long pack(int value, String name) {
+			if(value < 0 || value > MAX_VALUE) {
+				throw new IllegalArgumentException(name + " must be between 0 and " + MAX_VALUE + ", was " + value);
+			}
+			return value;
+		}
+
+		private static int unpack(long word, int field) {
+			return (int) (word >>> field * BITS) & MAX_VALUE;
+		}
+
+		/** A new, mutable Options with these settings */
+		public Options thaw() {
+			return copyTo(new Options());
+		}
+
+		/** Overwrites every setting of the given Options with these, and returns it */
+		Options copyTo(Options o) {
+			o.mCropLeft = unpack(mFirst, 0); o.mCropTop = unpack(mFirst, 1); o.mCropRight = unpack(mFirst, 2);
+			o.mCropBottom = unpack(mSecond, 0);
+			o.mWidth = unpack(mSecond, 1); o.mHeight = unpack(mSecond, 2);
+			o.mMeta = (mFirst & META) != 0;
+			o.mFlipHorizontal = (mFirst & FLIP_HORIZONTAL) != 0;
+			o.mFlipVertical = (mFirst & FLIP_VERTICAL) != 0;
+			o.mFitIn = (mFirst & FIT_IN) != 0;
+			o.mSmart = (mFirst & SMART) != 0;
+			o.mHorizontalAlignment = HORIZONTAL_ALIGNMENT_VALUES[(int) (mSecond >>> HORIZONTAL_SHIFT) & 3];
+			o.mVerticalAlignment = VERTICAL_ALIGNMENT_VALUES[(int) (mSecond >>> VERTICAL_SHIFT) & 3];
+			return o;
+		}
+		private static final HorizontalAlignment[] HORIZONTAL_ALIGNMENT_VALUES = HorizontalAlignment.values();
+		private static final VerticalAlignment[] VERTICAL_ALIGNMENT_VALUES = VerticalAlignment.values();
+
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof FrozenOptions)) return false;
+			FrozenOptions o = (FrozenOptions) other;
+			return mFirst == o.mFirst && mSecond == o.mSecond;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = mFirst * 0x9E3779B97F4A7C15L + mSecond;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		/** The options path these settings produce, such as "fit-in/300x200/smart/" */
+		@Override
+		public String toString() {
+			byte[] p = new byte[SigningScratch.MAX_OPTIONS_PATH_LENGTH];
+			return new String(p, 0, writeOptionsPath(thaw(), p, 0), ASCII);
+		}
+	}
+
+	/**
+	 * A named set of options registered with {@link ThumborServer#registerPreset(String, Options)}.
+	 * Its options path is built once, when it is registered, so signing with a preset skips that
+	 * step entirely.
+	 */
+	public static final class Preset {
+		private final String mName;
+		private final Options mOptions;
+		final byte[] mPath;
+
+		private Preset(String name, Options options) {
+			mName = name;
+			mOptions = options.copy();
+			byte[] p = new byte[SigningScratch.MAX_OPTIONS_PATH_LENGTH];
+			mPath = Arrays.copyOf(p, writeOptionsPath(mOptions, p, 0));
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/** A copy of the options this preset was registered with */
+		public Options getOptions() {
+			return mOptions.copy();
+		}
+	}
+
+	/** The format in which a server's secure URLs are generated */
+	public static enum SigningMode {
+		/**
+		 * /&lt;token&gt;/&lt;image&gt;, with the options and image hash AES encrypted into the token.
+		 * Deprecated by Thumbor, but the only format older releases understand.
+		 */
+		AES_TOKEN,
+		/**
+		 * /&lt;signature&gt;/&lt;options&gt;/&lt;image&gt;, with an HMAC-SHA1 signature of the
+		 * options and image. The format current Thumbor releases expect.
+		 */
+		HMAC_SHA1
 	}
 
 	private String mServerUrl;
+	private byte[] mServerUrlBytes;
 	private String mSecureKey;
+	private SigningMode mMode;
+	private AesCipherPool mCiphers;
+	private HmacSha1Pool mMacs;
+	private volatile SignedUrlCache mUrlCache;
+	private volatile ForkJoinPool mBulkPool = ForkJoinPool.commonPool();
+	private final ConcurrentMap<String, Preset> mPresets = new ConcurrentHashMap<String, Preset>();
+	private volatile PathVerifier mVerifier;
+	private long mVerifiedCacheEntries = DEFAULT_VERIFY_CACHE_ENTRIES;
+	private long mRejectedCacheEntries = DEFAULT_VERIFY_CACHE_ENTRIES;
+
+	/** Default size of each of the caches behind {@link #verify(String)} */
+	public static final long DEFAULT_VERIFY_CACHE_ENTRIES = 16384;
 
 	/**
-	 * Both inputs must be non-null and non-empty
+	 * Both inputs must be non-null and non-empty. URLs are generated in the legacy
+	 * {@link SigningMode#AES_TOKEN} format.
 	 */
 	public ThumborServer(String serverUrl, String secureKey) {
+		this(serverUrl, secureKey, SigningMode.AES_TOKEN);
+	}
+
+	/**
+	 * All inputs must be non-null, and the strings non-empty
+	 */
+	public ThumborServer(String serverUrl, String secureKey, SigningMode mode) {
 		if(serverUrl == null || serverUrl.isEmpty()) {
 			throw new IllegalArgumentException("Server may not be null or empty");
 		}
 
 		mServerUrl = ThumborUtils.sanitizeUrlWithProtocol(serverUrl, "http");
+		mServerUrlBytes = mServerUrl.getBytes();
 
 		if(secureKey == null || secureKey.isEmpty()) {
 			throw new IllegalArgumentException("Secure key may not be null or empty");
 		}
 
+		if(mode == null) {
+			throw new IllegalArgumentException("Signing mode may not be null");
+		}
+		mMode = mode;
+
+		// The key never changes, so set up the key schedule once rather than on every token
+		if(mode == SigningMode.HMAC_SHA1) {
+			mSecureKey = secureKey;
+			mMacs = new HmacSha1Pool(mSecureKey.getBytes(), InstancePool.defaultCapacity());
+		} else {
+			mSecureKey = aesKey(secureKey);
+			mCiphers = new AesCipherPool(mSecureKey.getBytes(), InstancePool.defaultCapacity());
+		}
+	}
+
+	/** The 16 character AES key Thumbor derives from a secure key, by repeating and cutting it */
+	static String aesKey(String secureKey) {
 		while(secureKey.length() < 16) {
 			secureKey += secureKey;
 		}
-		mSecureKey = secureKey.substring(0, 16);
+		return secureKey.substring(0, 16);
+	}
+
+	public SigningMode getSigningMode() {
+		return mMode;
+	}
+
+	/** The server URL signed URLs start with, including its protocol */
+	public String getServerUrl() {
+		return mServerUrl;
 	}
 
 	/** Just the options portion of the path */
 	protected String getOptionsPath(Options opts) {
-		StringBuilder p = new StringBuilder();
+		byte[] p = new byte[SigningScratch.MAX_OPTIONS_PATH_LENGTH];
+		return new String(p, 0, writeOptionsPath(opts, p, 0), ASCII);
+	}
 
-		if(opts.mMeta) { p.append("meta/"); }
+	/**
+	 * Writes the options portion of the path into out as ASCII, starting at off. Returns the new
+	 * offset. Never writes more than {@link SigningScratch#MAX_OPTIONS_PATH_LENGTH} bytes.
+	 */
+	static int writeOptionsPath(Options opts, byte[] p, int off) {
+		if(opts.mMeta) { off = writeAscii(META, p, off); }
 
 		if(opts.mCropLeft > 0 || opts.mCropTop > 0 || opts.mCropRight > 0 || opts.mCropBottom > 0) {
-			p.append(opts.mCropLeft);
-			p.append('x');
-			p.append(opts.mCropTop);
-			p.append(':');
-			p.append(opts.mCropRight);
-			p.append('x');
-			p.append(opts.mCropBottom);
-			p.append('/');
+			off = ThumborUtils.writeDecimal(opts.mCropLeft, p, off);
+			p[off++] = 'x';
+			off = ThumborUtils.writeDecimal(opts.mCropTop, p, off);
+			p[off++] = ':';
+			off = ThumborUtils.writeDecimal(opts.mCropRight, p, off);
+			p[off++] = 'x';
+			off = ThumborUtils.writeDecimal(opts.mCropBottom, p, off);
+			p[off++] = '/';
 		}
 
-		if(opts.mFitIn) { p.append("fit-in/"); }
+		if(opts.mFitIn) { off = writeAscii(FIT_IN, p, off); }
 
 		if(opts.mWidth > 0 || opts.mHeight > 0 || opts.mFlipHorizontal || opts.mFlipVertical) {
-			if(opts.mFlipHorizontal) { p.append('-'); }
-			p.append(opts.mWidth);
-			p.append('x');
-			if(opts.mFlipVertical) { p.append('-'); }
-			p.append(opts.mHeight);
-			p.append('/');
+			if(opts.mFlipHorizontal) { p[off++] = '-'; }
+			off = ThumborUtils.writeDecimal(opts.mWidth, p, off);
+			p[off++] = 'x';
+			if(opts.mFlipVertical) { p[off++] = '-'; }
+			off = ThumborUtils.writeDecimal(opts.mHeight, p, off);
+			p[off++] = '/';
 		}
 
 		if(opts.mHorizontalAlignment != HorizontalAlignment.CENTER) {
-			p.append(opts.mHorizontalAlignment.toString().toLowerCase());
-			p.append('/');
+			off = writeAscii(HORIZONTAL_ALIGNMENTS[opts.mHorizontalAlignment.ordinal()], p, off);
 		}
 		if(opts.mVerticalAlignment != VerticalAlignment.MIDDLE) {
-			p.append(opts.mVerticalAlignment.toString().toLowerCase());
-			p.append('/');
+			off = writeAscii(VERTICAL_ALIGNMENTS[opts.mVerticalAlignment.ordinal()], p, off);
+		}
+
+		if(opts.mSmart) { off = writeAscii(SMART, p, off); }
+
+		return off;
+	}
+
+	private static int writeAscii(byte[] src, byte[] dest, int off) {
+		System.arraycopy(src, 0, dest, off, src.length);
+		return off + src.length;
+	}
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] META = "meta/".getBytes(ASCII);
+	private static final byte[] FIT_IN = "fit-in/".getBytes(ASCII);
+	private static final byte[] SMART = "smart/".getBytes(ASCII);
+	private static final byte[][] HORIZONTAL_ALIGNMENTS = new byte[HorizontalAlignment.values().length][];
+	private static final byte[][] VERTICAL_ALIGNMENTS = new byte[VerticalAlignment.values().length][];
+	static {
+		for(HorizontalAlignment ha : HorizontalAlignment.values()) {
+			HORIZONTAL_ALIGNMENTS[ha.ordinal()] = (ha.toString().toLowerCase() + "/").getBytes(ASCII);
+		}
+		for(VerticalAlignment va : VerticalAlignment.values()) {
+			VERTICAL_ALIGNMENTS[va.ordinal()] = (va.toString().toLowerCase() + "/").getBytes(ASCII);
+		}
+	}
+
+	/**
+	 * Registers options under a name, such as "card" or "avatar@2x", replacing any preset already
+	 * registered under it. Later changes to options do not affect the preset.
+	 */
+	public Preset registerPreset(String name, Options options) {
+		if(name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("Preset name may not be null or empty");
+		}
+		if(options == null) {
+			throw new IllegalArgumentException("Preset options may not be null");
 		}
+		Preset preset = new Preset(name, options);
+		mPresets.put(name, preset);
+		return preset;
+	}
 
-		if(opts.mSmart) { p.append("smart/"); }
+	/** The preset registered under the given name, or null if there is none */
+	public Preset getPreset(String name) {
+		return mPresets.get(name);
+	}
 
-		return p.toString();
+	private Preset requirePreset(String name) {
+		Preset preset = mPresets.get(name);
+		if(preset == null) {
+			throw new IllegalArgumentException("No preset named " + name);
+		}
+		return preset;
 	}
 
 	/** Options path plus hashed image URI */
@@ -136,26 +465,140 @@ public class ThumborServer {
 		return getOptionsPath(opts) + ThumborUtils.md5String(ThumborUtils.sanitizeUrlWithoutProtocol(imageUrl, "http"));
 	}
 
-	/** Returns just the encrypted and base64'd token part of a secure thumbor URL */
+	/**
+	 * Returns just the first part of a secure thumbor URL: the encrypted and base64'd token in
+	 * {@link SigningMode#AES_TOKEN} mode, or the base64'd signature in {@link SigningMode#HMAC_SHA1}
+	 * mode.
+	 */
 	public String getSecureToken(String imageUrl, Options options) {
-		// Get the options URL
-		String optionsUrl = getOptionsUrl(imageUrl, options);
+		SigningScratch scratch = SigningScratch.get();
+		int imageLength = scratch.encodeImage(imageUrl, ThumborUtils.urlPathStart(imageUrl, "http"));
+		int length = writeSecureToken(scratch.mImage, imageLength, null, options, scratch);
+		return new String(scratch.mToken, 0, length, ASCII);
+	}
 
-		// Pad it until its length is a multiple of 16
-		while(optionsUrl.length() % 16 != 0) optionsUrl += "{";
+	/** As {@link #getSecureToken(String, Options)}, for a prepared image */
+	public String getSecureToken(ThumborImage image, Options options) {
+		SigningScratch scratch = SigningScratch.get();
+		int length = writeSecureToken(image.mBytes, image.mBytes.length, image.mHash, options, scratch);
+		return new String(scratch.mToken, 0, length, ASCII);
+	}
+
+	/**
+	 * Builds the token or signature for an image into scratch.mToken, and returns its length.
+	 * The image is given as its sanitized, encoded URL, plus its hex MD5 hash if that is already
+	 * known (or null if not). Leaves the options path which must follow the token in the URL
+	 * (empty for AES tokens) in scratch.mPlaintext.
+	 */
+	private int writeSecureToken(byte[] image, int imageLength, byte[] imageHash, Options options, SigningScratch scratch) {
+		int optionsLength = writeOptionsPath(options, scratch.mPlaintext, 0);
+		return writeSecureToken(image, imageLength, imageHash, optionsLength, scratch);
+	}
+
+	/** As writeSecureToken with Options, copying the preset's ready-made options path */
+	private int writeSecureToken(byte[] image, int imageLength, byte[] imageHash, Preset preset, SigningScratch scratch) {
+		System.arraycopy(preset.mPath, 0, scratch.mPlaintext, 0, preset.mPath.length);
+		return writeSecureToken(image, imageLength, imageHash, preset.mPath.length, scratch);
+	}
+
+	/** As writeSecureToken with Options, for an options path already at the start of scratch.mPlaintext */
+	private int writeSecureToken(byte[] image, int imageLength, byte[] imageHash, int optionsLength, SigningScratch scratch) {
+		byte[] plaintext = scratch.mPlaintext;
+
+		if(mMode == SigningMode.HMAC_SHA1) {
+			// Sign the options path followed by the image URI
+			mMacs.sign(plaintext, optionsLength, image, imageLength, scratch.mCiphertext, 0);
+			scratch.mOptionsLength = optionsLength;
+
+			return ThumborUtils.urlSafeBase64Encode(scratch.mCiphertext, 0, HmacSha1Pool.SIGNATURE_LENGTH, scratch.mToken, 0);
+		}
+
+		int length = finishAesPlaintext(image, imageLength, imageHash, plaintext, 0, optionsLength);
+		scratch.mOptionsLength = 0;
 
 		// Encrypt with AES using the stored secure key
-		byte[] encrypted = ThumborUtils.aesEncrypt(mSecureKey, optionsUrl);
+		mCiphers.encrypt(plaintext, 0, length, scratch.mCiphertext, 0);
 
 		// encode it (emulating python's urlsafe_b64encode)
-		String encoded = ThumborUtils.urlSafeBase64Encode(encrypted);
+		return ThumborUtils.urlSafeBase64Encode(scratch.mCiphertext, 0, length, scratch.mToken, 0);
+	}
+
+	/**
+	 * Completes the plaintext of an AES token whose options path is already in out[off, end), and
+	 * returns the new offset. Needs up to {@link SigningScratch#MAX_PLAINTEXT_LENGTH} bytes of room
+	 * from off.
+	 */
+	private static int finishAesPlaintext(byte[] image, int imageLength, byte[] imageHash, byte[] out, int off, int end) {
+		// Options path plus hashed image URI
+		if(imageHash != null) {
+			end = writeAscii(imageHash, out, end);
+		} else {
+			end = ThumborUtils.md5Hex(image, 0, imageLength, out, end);
+		}
+
+		// Pad it until its length is a multiple of 16
+		while((end - off) % 16 != 0) out[end++] = '{';
+		return end;
+	}
+
+	/**
+	 * Signs imageUrls[from, to) into results[from, to), using options[0] for every image if
+	 * options has length 1 and the options at the same index otherwise.
+	 *
+	 * AES tokens are built side by side in one buffer and encrypted with a single Cipher call.
+	 * ECB encrypts every block independently, so this gives exactly the tokens one call per URL
+	 * would, while paying the per-call JCE overhead once per batch and giving the AES intrinsics
+	 * one long contiguous run to work through.
+	 */
+	void signBatch(CharSequence[] imageUrls, Options[] options, int from, int to, String[] results) {
+		if(mMode != SigningMode.AES_TOKEN) {
+			StringBuilder url = new StringBuilder(256);
+			for(int i = from; i < to; i++) {
+				url.setLength(0);
+				appendSecureUrl(imageUrls[i], options.length == 1 ? options[0] : options[i], url);
+				results[i] = url.toString();
+			}
+			return;
+		}
+
+		SigningScratch scratch = SigningScratch.get();
+		scratch.ensureBatchCapacity(to - from);
+		byte[] plaintext = scratch.mBatchPlaintext;
+		int[] ends = scratch.mBatchEnds;
+		int[] imageStarts = scratch.mBatchImageStarts;
 
-		return encoded;
+		int length = 0;
+		for(int i = from; i < to; i++) {
+			imageStarts[i - from] = ThumborUtils.urlPathStart(imageUrls[i], "http");
+			int imageLength = scratch.encodeImage(imageUrls[i], imageStarts[i - from]);
+			int optionsEnd = writeOptionsPath(options.length == 1 ? options[0] : options[i], plaintext, length);
+			length = finishAesPlaintext(scratch.mImage, imageLength, null, plaintext, length, optionsEnd);
+			ends[i - from] = length;
+		}
+
+		mCiphers.encrypt(plaintext, 0, length, scratch.mBatchCiphertext, 0);
+
+		StringBuilder url = new StringBuilder(256);
+		int start = 0;
+		for(int i = from; i < to; i++) {
+			int tokenLength = ThumborUtils.urlSafeBase64Encode(scratch.mBatchCiphertext, start, ends[i - from] - start, scratch.mToken, 0);
+			start = ends[i - from];
+
+			url.setLength(0);
+			url.append(mServerUrl).append('/');
+			for(int j = 0; j < tokenLength; j++) {
+				url.append((char) scratch.mToken[j]);
+			}
+			url.append('/').append(imageUrls[i], imageStarts[i - from], imageUrls[i].length());
+			results[i] = url.toString();
+		}
 	}
 
 	/** Creates the encrypted, secure path for use with the Thumbor server */
 	public String getSecureUrlPath(String imageUrl, Options options) {
-		return "/" + getSecureToken(imageUrl, options) + "/" + ThumborUtils.sanitizeUrlWithoutProtocol(imageUrl, "http");
+		StringBuilder path = new StringBuilder(imageUrl.length() + 128);
+		appendSecureUrl(imageUrl, options, path, false);
+		return path.toString();
 	}
 
 	/**
@@ -163,6 +606,314 @@ public class ThumborServer {
 	 * base server URL for a complete URL to the thumbnail image.
 	 */
 	public String getSecureUrl(String imageUrl, Options options) {
-		return mServerUrl + getSecureUrlPath(imageUrl, options);
+		return getSecureUrl(imageUrl, options, null);
+	}
+
+	/**
+	 * As {@link #getSecureUrl(String, Options)}, with a registered preset.
+	 *
+	 * @throws IllegalArgumentException if no preset is registered under that name
+	 */
+	public String getSecureUrl(String imageUrl, String presetName) {
+		return getSecureUrl(imageUrl, requirePreset(presetName));
+	}
+
+	/** As {@link #getSecureUrl(String, Options)}, with a preset */
+	public String getSecureUrl(String imageUrl, Preset preset) {
+		return getSecureUrl(imageUrl, preset.mOptions, preset);
+	}
+
+	/** Signs with the preset if there is one, or with options if not, going through the cache */
+	private String getSecureUrl(String imageUrl, Options options, Preset preset) {
+		SignedUrlCache cache = mUrlCache;
+		if(cache != null) {
+			String cached = cache.get(imageUrl, options);
+			if(cached != null) {
+				return cached;
+			}
+		}
+
+		StringBuilder url = new StringBuilder(mServerUrl.length() + imageUrl.length() + 128);
+		if(preset != null) {
+			appendSecureUrl(imageUrl, preset, url);
+		} else {
+			appendSecureUrl(imageUrl, options, url);
+		}
+		String result = url.toString();
+
+		if(cache != null) {
+			cache.put(imageUrl, options, result);
+		}
+		return result;
+	}
+
+	/** As {@link #getSecureUrl(String, Options)}, with frozen options */
+	public String getSecureUrl(String imageUrl, FrozenOptions options) {
+		return getSecureUrl(imageUrl, options.copyTo(SigningScratch.get().mOptions));
+	}
+
+	/**
+	 * Puts a cache in front of {@link #getSecureUrl(String, Options)}, or removes it if cache is
+	 * null. The other methods always sign afresh.
+	 *
+	 * @throws IllegalStateException if the cache has been attached to a different server
+	 */
+	public void setSignedUrlCache(SignedUrlCache cache) {
+		if(cache != null) {
+			cache.attach(this);
+		}
+		mUrlCache = cache;
+	}
+
+	public SignedUrlCache getSignedUrlCache() {
+		return mUrlCache;
+	}
+
+	/**
+	 * As {@link #getSecureUrl(String, Options)}, for a prepared image. Signing many variants of
+	 * one image this way sanitizes and hashes its URL only once.
+	 */
+	public String getSecureUrl(ThumborImage image, Options options) {
+		StringBuilder url = new StringBuilder(mServerUrl.length() + image.getPath().length() + 128);
+		appendSecureUrl(image, options, url);
+		return url.toString();
+	}
+
+	/** As {@link #getSecureUrl(ThumborImage, Options)}, with frozen options */
+	public String getSecureUrl(ThumborImage image, FrozenOptions options) {
+		return getSecureUrl(image, options.copyTo(SigningScratch.get().mOptions));
+	}
+
+	/** As {@link #getSecureUrl(ThumborImage, Options)}, with a preset */
+	public String getSecureUrl(ThumborImage image, Preset preset) {
+		StringBuilder url = new StringBuilder(mServerUrl.length() + image.getPath().length() + 128);
+		appendSecureUrl(image, preset, url);
+		return url.toString();
+	}
+
+	/**
+	 * Signs one prepared image with each of the given options, for example the widths of a
+	 * responsive srcset. Returns the URLs in the same order as the options.
+	 */
+	public String[] getSecureUrls(ThumborImage image, Options[] variants) {
+		String[] urls = new String[variants.length];
+		StringBuilder url = new StringBuilder(mServerUrl.length() + image.getPath().length() + 128);
+		for(int i = 0; i < variants.length; i++) {
+			url.setLength(0);
+			appendSecureUrl(image, variants[i], url);
+			urls[i] = url.toString();
+		}
+		return urls;
+	}
+
+	/**
+	 * Appends the same URL {@link #getSecureUrl(String, Options)} returns to out.
+	 *
+	 * Working buffers are reused per thread, so once out has enough capacity this allocates
+	 * nothing for ASCII image URLs.
+	 */
+	public void appendSecureUrl(CharSequence imageUrl, Options options, StringBuilder out) {
+		appendSecureUrl(imageUrl, options, out, true);
+	}
+
+	/** As {@link #appendSecureUrl(CharSequence, Options, StringBuilder)}, for a prepared image */
+	public void appendSecureUrl(ThumborImage image, Options options, StringBuilder out) {
+		SigningScratch scratch = SigningScratch.get();
+		int tokenLength = writeSecureToken(image.mBytes, image.mBytes.length, image.mHash, options, scratch);
+		try {
+			appendSecurePath(scratch, tokenLength, image.getPath(), 0, out, true);
+		} catch(IOException e) {
+			throw new RuntimeException(e); // StringBuilders never throw
+		}
+	}
+
+	/** As {@link #appendSecureUrl(CharSequence, Options, StringBuilder)}, with a preset */
+	public void appendSecureUrl(CharSequence imageUrl, Preset preset, StringBuilder out) {
+		SigningScratch scratch = SigningScratch.get();
+		int imageStart = ThumborUtils.urlPathStart(imageUrl, "http");
+		int imageLength = scratch.encodeImage(imageUrl, imageStart);
+		int tokenLength = writeSecureToken(scratch.mImage, imageLength, null, preset, scratch);
+		try {
+			appendSecurePath(scratch, tokenLength, imageUrl, imageStart, out, true);
+		} catch(IOException e) {
+			throw new RuntimeException(e); // StringBuilders never throw
+		}
+	}
+
+	/** As {@link #appendSecureUrl(CharSequence, Options, StringBuilder)}, for a prepared image and a preset */
+	public void appendSecureUrl(ThumborImage image, Preset preset, StringBuilder out) {
+		SigningScratch scratch = SigningScratch.get();
+		int tokenLength = writeSecureToken(image.mBytes, image.mBytes.length, image.mHash, preset, scratch);
+		try {
+			appendSecurePath(scratch, tokenLength, image.getPath(), 0, out, true);
+		} catch(IOException e) {
+			throw new RuntimeException(e); // StringBuilders never throw
+		}
+	}
+
+	private void appendSecureUrl(CharSequence imageUrl, Options options, StringBuilder out, boolean withServer) {
+		try {
+			appendSecureUrl(imageUrl, options, (Appendable) out, withServer);
+		} catch(IOException e) {
+			throw new RuntimeException(e); // StringBuilders never throw
+		}
+	}
+
+	/** As {@link #appendSecureUrl(CharSequence, Options, StringBuilder)}, for any Appendable */
+	public void appendSecureUrl(CharSequence imageUrl, Options options, Appendable out) throws IOException {
+		appendSecureUrl(imageUrl, options, out, true);
+	}
+
+	private void appendSecureUrl(CharSequence imageUrl, Options options, Appendable out, boolean withServer) throws IOException {
+		SigningScratch scratch = SigningScratch.get();
+		int imageStart = ThumborUtils.urlPathStart(imageUrl, "http");
+		int imageLength = scratch.encodeImage(imageUrl, imageStart);
+		int tokenLength = writeSecureToken(scratch.mImage, imageLength, null, options, scratch);
+		appendSecurePath(scratch, tokenLength, imageUrl, imageStart, out, withServer);
+	}
+
+	/** Appends the URL whose token writeSecureToken just left in scratch */
+	private void appendSecurePath(SigningScratch scratch, int tokenLength, CharSequence imageUrl, int imageStart, Appendable out, boolean withServer) throws IOException {
+		if(withServer) { out.append(mServerUrl); }
+		out.append('/');
+		for(int i = 0; i < tokenLength; i++) {
+			out.append((char) scratch.mToken[i]);
+		}
+		out.append('/');
+		for(int i = 0; i < scratch.mOptionsLength; i++) {
+			out.append((char) scratch.mPlaintext[i]);
+		}
+		out.append(imageUrl, imageStart, imageUrl.length());
+	}
+
+	/**
+	 * As {@link #appendSecureUrl(CharSequence, Options, StringBuilder)}, writing the URL as bytes.
+	 * The server and image URLs are encoded as String.getBytes() would encode them.
+	 *
+	 * @throws java.nio.BufferOverflowException if out has too little space remaining
+	 */
+	public void appendSecureUrl(CharSequence imageUrl, Options options, ByteBuffer out) {
+		SigningScratch scratch = SigningScratch.get();
+		int imageLength = scratch.encodeImage(imageUrl, ThumborUtils.urlPathStart(imageUrl, "http"));
+		int tokenLength = writeSecureToken(scratch.mImage, imageLength, null, options, scratch);
+		appendSecurePath(scratch, tokenLength, scratch.mImage, imageLength, out);
+	}
+
+	/** As {@link #appendSecureUrl(CharSequence, Options, ByteBuffer)}, for a prepared image */
+	public void appendSecureUrl(ThumborImage image, Options options, ByteBuffer out) {
+		SigningScratch scratch = SigningScratch.get();
+		int tokenLength = writeSecureToken(image.mBytes, image.mBytes.length, image.mHash, options, scratch);
+		appendSecurePath(scratch, tokenLength, image.mBytes, image.mBytes.length, out);
+	}
+
+	/** As {@link #appendSecureUrl(CharSequence, Options, ByteBuffer)}, with a preset */
+	public void appendSecureUrl(CharSequence imageUrl, Preset preset, ByteBuffer out) {
+		SigningScratch scratch = SigningScratch.get();
+		int imageLength = scratch.encodeImage(imageUrl, ThumborUtils.urlPathStart(imageUrl, "http"));
+		int tokenLength = writeSecureToken(scratch.mImage, imageLength, null, preset, scratch);
+		appendSecurePath(scratch, tokenLength, scratch.mImage, imageLength, out);
+	}
+
+	private void appendSecurePath(SigningScratch scratch, int tokenLength, byte[] image, int imageLength, ByteBuffer out) {
+		out.put(mServerUrlBytes).put((byte) '/');
+		out.put(scratch.mToken, 0, tokenLength).put((byte) '/');
+		out.put(scratch.mPlaintext, 0, scratch.mOptionsLength);
+		out.put(image, 0, imageLength);
+	}
+
+	/**
+	 * Checks that a path was signed with this server's key: that its token or signature matches
+	 * the rest of the path, as Thumbor would check it before doing any work. The path is what
+	 * {@link #getSecureUrlPath(String, Options)} returns; the leading '/' may be left off.
+	 *
+	 * The signature or image hash is compared in constant time. Recent answers are cached, valid
+	 * and invalid paths separately, so repeats of either cost one cache lookup.
+	 */
+	public boolean verify(String path) {
+		PathVerifier verifier = mVerifier;
+		if(verifier == null) {
+			synchronized(this) {
+				if(mVerifier == null) {
+					// created on first use, so servers which only sign never pay for the caches
+					mVerifier = new PathVerifier(
+						mMode == SigningMode.AES_TOKEN ? new TokenDecryptor(mSecureKey) : null,
+						mMacs, mVerifiedCacheEntries, mRejectedCacheEntries);
+				}
+				verifier = mVerifier;
+			}
+		}
+		return verifier.verify(path);
+	}
+
+	/**
+	 * Sets how many valid and how many invalid paths {@link #verify(String)} remembers. Both
+	 * default to {@link #DEFAULT_VERIFY_CACHE_ENTRIES}. Any answers already cached are dropped.
+	 */
+	public synchronized void setVerifyCacheSizes(long verifiedEntries, long rejectedEntries) {
+		if(verifiedEntries < 1 || rejectedEntries < 1) {
+			throw new IllegalArgumentException("Cache sizes must be positive");
+		}
+		mVerifiedCacheEntries = verifiedEntries;
+		mRejectedCacheEntries = rejectedEntries;
+		mVerifier = null;
+	}
+
+	/** The verifier behind {@link #verify(String)}, or null if it has not been used yet */
+	PathVerifier getVerifier() {
+		return mVerifier;
+	}
+
+	/**
+	 * Sets the pool which the bulk getSecureUrls methods split their work across, and so their
+	 * parallelism. Defaults to the common fork/join pool. May not be null.
+	 */
+	public void setBulkSigningPool(ForkJoinPool pool) {
+		if(pool == null) {
+			throw new IllegalArgumentException("Pool may not be null");
+		}
+		mBulkPool = pool;
+	}
+
+	/**
+	 * Signs every image URL with the same options, in parallel on the bulk signing pool. Returns
+	 * the same URLs {@link #getSecureUrl(String, Options)} would, in input order.
+	 */
+	public String[] getSecureUrls(String[] imageUrls, Options options) {
+		return signAll(imageUrls, new Options[] { options });
+	}
+
+	/**
+	 * Signs each image URL with the options at the same index, in parallel on the bulk signing
+	 * pool. The arrays must have the same length. Returns the signed URLs in input order.
+	 */
+	public String[] getSecureUrls(String[] imageUrls, Options[] options) {
+		if(imageUrls.length != options.length) {
+			throw new IllegalArgumentException("Got " + imageUrls.length + " image URLs but " + options.length + " options");
+		}
+		return signAll(imageUrls, options);
+	}
+
+	/** As {@link #getSecureUrls(String[], Options)} */
+	public List<String> getSecureUrls(List<String> imageUrls, Options options) {
+		return Arrays.asList(getSecureUrls(imageUrls.toArray(new String[imageUrls.size()]), options));
+	}
+
+	/** As {@link #getSecureUrls(String[], Options[])} */
+	public List<String> getSecureUrls(List<String> imageUrls, List<Options> options) {
+		return Arrays.asList(getSecureUrls(
+			imageUrls.toArray(new String[imageUrls.size()]),
+			options.toArray(new Options[options.size()])));
+	}
+
+	/** As {@link #getSecureUrls(String[], Options)}. The stream is consumed before signing starts. */
+	public List<String> getSecureUrls(Stream<String> imageUrls, Options options) {
+		return Arrays.asList(getSecureUrls(imageUrls.toArray(String[]::new), options));
+	}
+
+	private String[] signAll(CharSequence[] imageUrls, Options[] options) {
+		String[] results = new String[imageUrls.length];
+		ForkJoinPool pool = mBulkPool;
+		pool.invoke(new BulkSignTask(this, imageUrls, options, results, pool.getParallelism()));
+		return results;
 	}
 }
@@ -0,0 +1,377 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+import net.dbjorge.jthumbor.TokenDecryptor.DecryptedToken;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server which answers signed Thumbor URLs the way a real Thumbor would, for load
+ * testing code that fetches them without a real Thumbor (or Python) anywhere near.
+ *
+ * Every request is checked with the same key and signing mode the URLs were generated with.
+ * Badly formed paths get 400 and paths with a bad token or signature get 403, as from Thumbor.
+ * Good paths get a PNG of the size the options ask for, generated from the image URL so the same
+ * URL always gives the same bytes. Latency and server errors can be injected at a configurable
+ * rate; the random choices come from a seeded generator so a run can be repeated.
+ *
+ * The source image every URL is taken to refer to is {@link #DEFAULT_SOURCE_WIDTH} by
+ * {@link #DEFAULT_SOURCE_HEIGHT} unless set otherwise. Crops, proportional sizes and fit-in are
+ * applied to it as Thumbor would; the other options do not change the size and are ignored.
+ *
+ * Settings may be changed while the server is running. Run {@link #main(String[])} to use it from
+ * outside the JVM.
+ */
+public class ThumborStandInServer implements Closeable {
+	public static final int DEFAULT_SOURCE_WIDTH = 1024;
+	public static final int DEFAULT_SOURCE_HEIGHT = 768;
+	/** Largest width or height served, so a bad URL cannot ask for gigabytes */
+	public static final int MAX_DIMENSION = 4096;
+
+	private final ThumborServer mSigner;
+	private final TokenDecryptor mDecryptor;
+	private final ThreadLocal<SignedPathParser> mParsers = new ThreadLocal<SignedPathParser>() {
+		@Override
+		protected SignedPathParser initialValue() {
+			return new SignedPathParser(mSigner.getSigningMode());
+		}
+	};
+
+	private volatile int mSourceWidth = DEFAULT_SOURCE_WIDTH;
+	private volatile int mSourceHeight = DEFAULT_SOURCE_HEIGHT;
+	private volatile long mMinLatencyNanos;
+	private volatile long mMaxLatencyNanos;
+	private volatile double mErrorRate;
+	private final Random mRandom = new Random(0);
+
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mRejected = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+
+	private HttpServer mServer;
+	private ExecutorService mWorkers;
+	private ScheduledExecutorService mDelays;
+
+	/**
+	 * Accepts URLs generated by a {@link ThumborServer} with the same secure key and signing mode.
+	 * The key may not be null or empty.
+	 */
+	public ThumborStandInServer(String secureKey, SigningMode mode) {
+		// only ever used to verify HMAC_SHA1 paths, so the server URL does not matter
+		mSigner = new ThumborServer("localhost", secureKey, mode);
+		mDecryptor = mode == SigningMode.AES_TOKEN ? new TokenDecryptor(secureKey) : null;
+	}
+
+	/** Sets the size of the source image every URL refers to */
+	public ThumborStandInServer setSourceSize(int width, int height) {
+		if(width < 1 || height < 1 || width > MAX_DIMENSION || height > MAX_DIMENSION) {
+			throw new IllegalArgumentException("Source size must be between 1 and " + MAX_DIMENSION);
+		}
+		mSourceWidth = width;
+		mSourceHeight = height;
+		return this;
+	}
+
+	/**
+	 * Delays every response by a time picked uniformly from [min, max]. Delays are waited out on
+	 * a timer rather than by a blocked thread, so they do not limit throughput.
+	 */
+	public ThumborStandInServer setLatency(long min, long max, TimeUnit unit) {
+		if(min < 0 || max < min) {
+			throw new IllegalArgumentException("Latency must be 0 <= min <= max");
+		}
+		mMinLatencyNanos = unit.toNanos(min);
+		mMaxLatencyNanos = unit.toNanos(max);
+		return this;
+	}
+
+	/** Answers this fraction of otherwise good requests, from 0 to 1, with a 500 */
+	public ThumborStandInServer setErrorRate(double rate) {
+		if(!(rate >= 0 && rate <= 1)) {
+			throw new IllegalArgumentException("Error rate must be between 0 and 1");
+		}
+		mErrorRate = rate;
+		return this;
+	}
+
+	/** Reseeds the generator behind the injected latency and errors */
+	public ThumborStandInServer setSeed(long seed) {
+		synchronized(mRandom) {
+			mRandom.setSeed(seed);
+		}
+		return this;
+	}
+
+	/** Starts the server on the loopback interface. A port of 0 picks a free one. */
+	public synchronized ThumborStandInServer start(int port) {
+		return start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/** Starts the server on the given address */
+	public synchronized ThumborStandInServer start(InetSocketAddress address) {
+		if(mServer != null) {
+			throw new IllegalStateException("Server already started");
+		}
+		try {
+			mServer = HttpServer.create(address, 1024);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+		mWorkers = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors(), daemonThreads("thumbor-stand-in"));
+		mDelays = Executors.newSingleThreadScheduledExecutor(daemonThreads("thumbor-stand-in-delay"));
+		mServer.setExecutor(mWorkers);
+		mServer.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				ThumborStandInServer.this.handle(exchange);
+			}
+		});
+		mServer.start();
+		return this;
+	}
+
+	/** The port the server is listening on */
+	public synchronized int getPort() {
+		if(mServer == null) {
+			throw new IllegalStateException("Server not started");
+		}
+		return mServer.getAddress().getPort();
+	}
+
+	/** The loopback URL to give a {@link ThumborServer} so it generates URLs for this server */
+	public String getServerUrl() {
+		return "http://127.0.0.1:" + getPort();
+	}
+
+	/** Requests received, including rejected ones and injected errors */
+	public long getRequestCount() {
+		return mRequests.get();
+	}
+
+	/** Requests answered with 400 or 403 */
+	public long getRejectedCount() {
+		return mRejected.get();
+	}
+
+	/** Requests answered with an injected 500 */
+	public long getErrorCount() {
+		return mErrors.get();
+	}
+
+	/** Stops the server, dropping any responses still waiting out their latency */
+	public synchronized void close() {
+		if(mServer != null) {
+			mServer.stop(0);
+			mDelays.shutdownNow();
+			mWorkers.shutdownNow();
+			mServer = null;
+		}
+	}
+
+	private void handle(final HttpExchange exchange) {
+		mRequests.incrementAndGet();
+
+		final int status;
+		final byte[] body;
+		String method = exchange.getRequestMethod();
+		if(!method.equals("GET") && !method.equals("HEAD")) {
+			status = 405;
+			body = null;
+		} else {
+			// the raw path, exactly as it was signed
+			String path = exchange.getRequestURI().getRawPath();
+			String query = exchange.getRequestURI().getRawQuery();
+			if(query != null) {
+				path += "?" + query;
+			}
+
+			boolean fail;
+			long delay;
+			synchronized(mRandom) {
+				fail = mRandom.nextDouble() < mErrorRate;
+				delay = mMinLatencyNanos + (long) (mRandom.nextDouble() * (mMaxLatencyNanos - mMinLatencyNanos));
+			}
+
+			int[] size = new int[2];
+			int checked = check(path, size);
+			if(checked != 200) {
+				mRejected.incrementAndGet();
+				status = checked;
+				body = null;
+			} else if(fail) {
+				mErrors.incrementAndGet();
+				status = 500;
+				body = null;
+			} else {
+				status = 200;
+				body = SyntheticPng.generate(size[0], size[1], seed(path));
+			}
+
+			if(delay > 0) {
+				// the timer only hands the response back to the workers, so a slow client holds up
+				// no one else's
+				mDelays.schedule(() -> mWorkers.execute(() -> respond(exchange, status, body)), delay, TimeUnit.NANOSECONDS);
+				return;
+			}
+		}
+		respond(exchange, status, body);
+	}
+
+	/**
+	 * Returns the status for a request path, and if it is 200 stores the width and height to
+	 * serve in size
+	 */
+	private int check(String path, int[] size) {
+		SignedPathParser parser = mParsers.get();
+		if(!parser.parse(path)) {
+			return 400;
+		}
+
+		Options options;
+		if(mDecryptor == null) {
+			if(!mSigner.verify(path)) {
+				return 403;
+			}
+			options = parser.getOptions();
+		} else {
+			// one decryption both checks the token and gives the options
+			DecryptedToken token = mDecryptor.decrypt(path.subSequence(parser.getTokenStart(), parser.getTokenEnd()));
+			if(token == null || !PathVerifier.imageMatches(token, path.substring(parser.getImageStart()).getBytes())) {
+				return 403;
+			}
+			options = token.getOptions();
+		}
+		return outputSize(options, mSourceWidth, mSourceHeight, size) ? 200 : 400;
+	}
+
+	/**
+	 * Works out the size Thumbor would serve for the given options and source image, into size.
+	 * Returns false if it is larger than MAX_DIMENSION.
+	 */
+	static boolean outputSize(Options options, int sourceWidth, int sourceHeight, int[] size) {
+		int cropWidth = options.getCropRight() - options.getCropLeft();
+		int cropHeight = options.getCropBottom() - options.getCropTop();
+		if(cropWidth > 0 && cropHeight > 0) {
+			sourceWidth = Math.min(cropWidth, sourceWidth);
+			sourceHeight = Math.min(cropHeight, sourceHeight);
+		}
+
+		// negative sizes only flip the image
+		long width = Math.abs((long) options.getWidth());
+		long height = Math.abs((long) options.getHeight());
+		if(options.isFitIn()) {
+			// as large as fits in the box without distorting, where 0 does not limit that side
+			double scale = 1;
+			if(width > 0) scale = Math.min(scale, (double) width / sourceWidth);
+			if(height > 0) scale = Math.min(scale, (double) height / sourceHeight);
+			if(width == 0 && height == 0) scale = 1;
+			width = Math.max(1, Math.round(sourceWidth * scale));
+			height = Math.max(1, Math.round(sourceHeight * scale));
+		} else if(width == 0 && height == 0) {
+			width = sourceWidth;
+			height = sourceHeight;
+		} else if(width == 0) {
+			width = Math.max(1, Math.round((double) sourceWidth * height / sourceHeight));
+		} else if(height == 0) {
+			height = Math.max(1, Math.round((double) sourceHeight * width / sourceWidth));
+		}
+
+		if(width > MAX_DIMENSION || height > MAX_DIMENSION) {
+			return false;
+		}
+		size[0] = (int) width;
+		size[1] = (int) height;
+		return true;
+	}
+
+	/** Image colours for a path, from its image URL so every size of an image looks alike */
+	private byte[] seed(String path) {
+		SignedPathParser parser = mParsers.get();
+		int hash = path.substring(parser.getImageStart(), parser.getImageEnd()).hashCode();
+		return new byte[] { (byte) (hash >>> 16), (byte) (hash >>> 8), (byte) hash };
+	}
+
+	private static void respond(HttpExchange exchange, int status, byte[] body) {
+		try {
+			boolean head = exchange.getRequestMethod().equals("HEAD");
+			if(body != null) {
+				exchange.getResponseHeaders().set("Content-Type", "image/png");
+			}
+			exchange.sendResponseHeaders(status, body == null || head ? -1 : body.length);
+			if(body != null && !head) {
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		} catch(IOException e) {
+			// the client went away, nothing to do
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicLong mCount = new AtomicLong();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + mCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Runs a server until killed. Arguments: port secure-key [aes|hmac] [min-latency-ms
+	 * max-latency-ms] [error-rate]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		if(args.length < 2) {
+			System.err.println("Usage: ThumborStandInServer port secure-key [aes|hmac] [min-latency-ms max-latency-ms] [error-rate]");
+			System.exit(2);
+		}
+		SigningMode mode = args.length > 2 && args[2].equals("hmac") ? SigningMode.HMAC_SHA1 : SigningMode.AES_TOKEN;
+		ThumborStandInServer server = new ThumborStandInServer(args[1], mode);
+		if(args.length > 4) {
+			server.setLatency(Long.parseLong(args[3]), Long.parseLong(args[4]), TimeUnit.MILLISECONDS);
+		}
+		if(args.length > 5) {
+			server.setErrorRate(Double.parseDouble(args[5]));
+		}
+		server.start(Integer.parseInt(args[0]));
+		System.out.println("Serving " + mode + " URLs at " + server.getServerUrl());
+		Thread.currentThread().join();
+	}
+}
@@ -16,13 +16,13 @@
 
 package net.dbjorge.jthumbor;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
-
-import org.apache.commons.codec.binary.Base64;
+import java.util.Arrays;
 
 /**
  * Utility functions for things like encryption and encoding. These are generally tailored to
@@ -34,36 +34,239 @@ public class ThumborUtils {
 	 *
 	 * This function performs NO padding on either of the key or plaintext. It REQUIRES that both
 	 * key and plaintext be non-null, non-empty, and have sizes which are multiples of 16.
+	 *
+	 * This function is thread-safe; concurrent callers each use their own pooled Cipher.
 	 */
 	public static byte[] aesEncrypt(String key, String plaintext) {
-		try {
-			SecretKeySpec keySpec = new SecretKeySpec(key.getBytes(), "AES");
-			mAesCipher.init(Cipher.ENCRYPT_MODE, keySpec);
-			return mAesCipher.doFinal(plaintext.getBytes());
-		} catch(Exception e) {
-			throw new RuntimeException(e);
-		}
+		return mAesCiphers.encrypt(key.getBytes(), plaintext.getBytes());
 	}
-	private static final Cipher mAesCipher;
-	static {
-		try {
-			mAesCipher = Cipher.getInstance("AES/ECB/NoPadding");
-		} catch(Exception e) {
-			throw new RuntimeException(e);
+
+	/**
+	 * Encrypts each of the given plaintexts as {@link #aesEncrypt(String, String)} would, but with
+	 * a single Cipher call over all of them. ECB encrypts every 16 byte block independently, so
+	 * the results are identical; only the per-call overhead is shared.
+	 *
+	 * Same requirements as {@link #aesEncrypt(String, String)}, for every plaintext.
+	 */
+	public static byte[][] aesEncrypt(String key, String[] plaintexts) {
+		byte[][] encoded = new byte[plaintexts.length][];
+		int total = 0;
+		for(int i = 0; i < plaintexts.length; i++) {
+			encoded[i] = plaintexts[i].getBytes();
+			total += encoded[i].length;
 		}
+
+		byte[] joined = new byte[total];
+		int off = 0;
+		for(byte[] e : encoded) {
+			System.arraycopy(e, 0, joined, off, e.length);
+			off += e.length;
+		}
+
+		byte[] encrypted = mAesCiphers.encrypt(key.getBytes(), joined);
+
+		byte[][] results = new byte[plaintexts.length][];
+		off = 0;
+		for(int i = 0; i < encoded.length; i++) {
+			results[i] = Arrays.copyOfRange(encrypted, off, off + encoded[i].length);
+			off += encoded[i].length;
+		}
+		return results;
 	}
+	private static final AesCipherPool mAesCiphers = new AesCipherPool(InstancePool.defaultCapacity());
 
 	/**
 	 * Encodes the given input byte array into URL-safe base64.
 	 *
-	 * It emulates Python's urlsafe_b64encode function.
+	 * It emulates Python's urlsafe_b64encode function, including its '=' padding.
+	 *
+	 * Input should be non-null.
 	 *
-	 * Input should be non-null and of length greater than 2.
+	 * This function is thread-safe.
 	 */
 	public static String urlSafeBase64Encode(byte[] input) {
-		return mEncoder.encodeToString(input).trim();
+		char[] out = new char[urlSafeBase64Length(input.length)];
+		urlSafeBase64Encode(input, 0, input.length, out, 0);
+		return new String(out);
+	}
+
+	/** Number of characters {@link #urlSafeBase64Encode(byte[])} produces for the given input length */
+	public static int urlSafeBase64Length(int inputLength) {
+		return (inputLength + 2) / 3 * 4;
+	}
+
+	/**
+	 * Allocation-free form of {@link #urlSafeBase64Encode(byte[])}. Encodes in[off, off+length)
+	 * as ASCII into out at outOff and returns the new offset into out.
+	 *
+	 * out must have room for {@link #urlSafeBase64Length(int)} bytes.
+	 */
+	public static int urlSafeBase64Encode(byte[] in, int off, int length, byte[] out, int outOff) {
+		int end = off + length;
+		while(end - off >= 3) {
+			int bits = (in[off] & 0xFF) << 16 | (in[off+1] & 0xFF) << 8 | (in[off+2] & 0xFF);
+			out[outOff++] = URL_SAFE_ALPHABET[bits >>> 18];
+			out[outOff++] = URL_SAFE_ALPHABET[(bits >>> 12) & 0x3F];
+			out[outOff++] = URL_SAFE_ALPHABET[(bits >>> 6) & 0x3F];
+			out[outOff++] = URL_SAFE_ALPHABET[bits & 0x3F];
+			off += 3;
+		}
+		if(end - off == 1) {
+			int bits = (in[off] & 0xFF) << 16;
+			out[outOff++] = URL_SAFE_ALPHABET[bits >>> 18];
+			out[outOff++] = URL_SAFE_ALPHABET[(bits >>> 12) & 0x3F];
+			out[outOff++] = '=';
+			out[outOff++] = '=';
+		} else if(end - off == 2) {
+			int bits = (in[off] & 0xFF) << 16 | (in[off+1] & 0xFF) << 8;
+			out[outOff++] = URL_SAFE_ALPHABET[bits >>> 18];
+			out[outOff++] = URL_SAFE_ALPHABET[(bits >>> 12) & 0x3F];
+			out[outOff++] = URL_SAFE_ALPHABET[(bits >>> 6) & 0x3F];
+			out[outOff++] = '=';
+		}
+		return outOff;
+	}
+
+	/** As {@link #urlSafeBase64Encode(byte[], int, int, byte[], int)}, into a char array */
+	public static int urlSafeBase64Encode(byte[] in, int off, int length, char[] out, int outOff) {
+		int end = off + length;
+		while(end - off >= 3) {
+			int bits = (in[off] & 0xFF) << 16 | (in[off+1] & 0xFF) << 8 | (in[off+2] & 0xFF);
+			out[outOff++] = (char) URL_SAFE_ALPHABET[bits >>> 18];
+			out[outOff++] = (char) URL_SAFE_ALPHABET[(bits >>> 12) & 0x3F];
+			out[outOff++] = (char) URL_SAFE_ALPHABET[(bits >>> 6) & 0x3F];
+			out[outOff++] = (char) URL_SAFE_ALPHABET[bits & 0x3F];
+			off += 3;
+		}
+		if(end - off == 1) {
+			int bits = (in[off] & 0xFF) << 16;
+			out[outOff++] = (char) URL_SAFE_ALPHABET[bits >>> 18];
+			out[outOff++] = (char) URL_SAFE_ALPHABET[(bits >>> 12) & 0x3F];
+			out[outOff++] = '=';
+			out[outOff++] = '=';
+		} else if(end - off == 2) {
+			int bits = (in[off] & 0xFF) << 16 | (in[off+1] & 0xFF) << 8;
+			out[outOff++] = (char) URL_SAFE_ALPHABET[bits >>> 18];
+			out[outOff++] = (char) URL_SAFE_ALPHABET[(bits >>> 12) & 0x3F];
+			out[outOff++] = (char) URL_SAFE_ALPHABET[(bits >>> 6) & 0x3F];
+			out[outOff++] = '=';
+		}
+		return outOff;
+	}
+
+	/**
+	 * As {@link #urlSafeBase64Encode(byte[], int, int, byte[], int)}, into a buffer at its current
+	 * position. The position is advanced past the encoded output.
+	 *
+	 * @throws java.nio.BufferOverflowException if the buffer does not have enough room left
+	 */
+	public static void urlSafeBase64Encode(byte[] in, int off, int length, ByteBuffer out) {
+		int encodedLength = urlSafeBase64Length(length);
+		if(out.remaining() < encodedLength) {
+			throw new BufferOverflowException();
+		}
+		if(out.hasArray()) {
+			int start = out.arrayOffset() + out.position();
+			urlSafeBase64Encode(in, off, length, out.array(), start);
+			out.position(out.position() + encodedLength);
+			return;
+		}
+		// direct buffer: encode one 4 character group at a time and copy it across
+		byte[] group = new byte[4];
+		int end = off + length;
+		while(off < end) {
+			int n = Math.min(3, end - off);
+			out.put(group, 0, urlSafeBase64Encode(in, off, n, group, 0));
+			off += n;
+		}
+	}
+	private static final byte[] URL_SAFE_ALPHABET =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(Charset.forName("US-ASCII"));
+
+	/**
+	 * Decodes URL-safe base64, the reverse of {@link #urlSafeBase64Encode(byte[])}.
+	 *
+	 * @throws IllegalArgumentException if the input is not URL-safe base64
+	 */
+	public static byte[] urlSafeBase64Decode(String input) {
+		byte[] out = new byte[input.length() * 3 / 4];
+		int length = urlSafeBase64Decode(input, 0, input.length(), out, 0);
+		if(length < 0) {
+			throw new IllegalArgumentException("Not URL-safe base64: " + input);
+		}
+		return length == out.length ? out : Arrays.copyOf(out, length);
+	}
+
+	/**
+	 * Decodes in[start, end) as URL-safe base64 into out at outOff, and returns the new offset into
+	 * out, or -1 if the input is not URL-safe base64. Up to two '=' of padding are allowed but not
+	 * required, since tokens made before they were padded have none.
+	 *
+	 * out must have room for (end - start) * 3 / 4 bytes.
+	 */
+	public static int urlSafeBase64Decode(CharSequence in, int start, int end, byte[] out, int outOff) {
+		return urlSafeBase64Decode(in, start, end, out, outOff, false);
+	}
+
+	/**
+	 * As {@link #urlSafeBase64Decode(CharSequence, int, int, byte[], int)}, but accepting only the
+	 * one encoding {@link #urlSafeBase64Encode(byte[])} gives each input: padded to a multiple of
+	 * four characters, with the unused bits of the last character zero. Anything else is -1, so
+	 * no two strings decode to the same bytes.
+	 */
+	static int urlSafeBase64DecodeCanonical(CharSequence in, int start, int end, byte[] out, int outOff) {
+		if((end - start) % 4 != 0) {
+			return -1;
+		}
+		return urlSafeBase64Decode(in, start, end, out, outOff, true);
+	}
+
+	private static int urlSafeBase64Decode(CharSequence in, int start, int end, byte[] out, int outOff, boolean canonical) {
+		for(int i = 0; i < 2 && end > start && in.charAt(end - 1) == '='; i++) {
+			end--;
+		}
+		if((end - start) % 4 == 1) {
+			return -1;
+		}
+
+		int bits = 0;
+		int count = 0;
+		for(int i = start; i < end; i++) {
+			char c = in.charAt(i);
+			int value = c < URL_SAFE_VALUES.length ? URL_SAFE_VALUES[c] : -1;
+			if(value < 0) {
+				return -1;
+			}
+			bits = bits << 6 | value;
+			if(++count == 4) {
+				out[outOff++] = (byte) (bits >>> 16);
+				out[outOff++] = (byte) (bits >>> 8);
+				out[outOff++] = (byte) bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+		if(count == 2) {
+			if(canonical && (bits & 0xF) != 0) {
+				return -1;
+			}
+			out[outOff++] = (byte) (bits >>> 4);
+		} else if(count == 3) {
+			if(canonical && (bits & 0x3) != 0) {
+				return -1;
+			}
+			out[outOff++] = (byte) (bits >>> 10);
+			out[outOff++] = (byte) (bits >>> 2);
+		}
+		return outOff;
+	}
+	private static final byte[] URL_SAFE_VALUES = new byte[128];
+	static {
+		Arrays.fill(URL_SAFE_VALUES, (byte) -1);
+		for(int i = 0; i < URL_SAFE_ALPHABET.length; i++) {
+			URL_SAFE_VALUES[URL_SAFE_ALPHABET[i]] = (byte) i;
+		}
 	}
-	private static final Base64 mEncoder = new Base64(true);
 
 
 	/**
@@ -73,14 +276,31 @@ public class ThumborUtils {
 	 * Inputs may not be null.
 	 */
 	public static String sanitizeUrlWithoutProtocol(String url, String protocol) throws IllegalArgumentException {
-		int i = url.indexOf("://");
-		if(i >= 0 && url.indexOf('/')-1 == i) {
-			if(!url.substring(0, i).equals(protocol)) {
-				throw new IllegalArgumentException("Invalid URL: Uses protocol "+url.substring(0,i)+", but "+protocol+" required");
+		return url.substring(urlPathStart(url, protocol));
+	}
+
+	/**
+	 * Returns the index at which {@link #sanitizeUrlWithoutProtocol(String, String)} would cut the
+	 * given URL, without creating any substrings. Raises the same errors.
+	 */
+	static int urlPathStart(CharSequence url, String protocol) throws IllegalArgumentException {
+		int length = url.length();
+		int slash = 0;
+		while(slash < length && url.charAt(slash) != '/') slash++;
+
+		// the protocol separator counts only if it holds the first slash in the URL
+		if(slash > 0 && slash + 1 < length && url.charAt(slash-1) == ':' && url.charAt(slash+1) == '/') {
+			int i = slash - 1;
+			boolean matches = (i == protocol.length());
+			for(int j = 0; matches && j < i; j++) {
+				matches = (url.charAt(j) == protocol.charAt(j));
+			}
+			if(!matches) {
+				throw new IllegalArgumentException("Invalid URL: Uses protocol "+url.subSequence(0,i)+", but "+protocol+" required");
 			}
-			return url.substring(i+3);
+			return i+3;
 		}
-		return url;
+		return 0;
 	}
 
 	/**
@@ -102,31 +322,97 @@ public class ThumborUtils {
 	}
 
 
+	/** Writes the decimal form of value as ASCII into out at off, returning the new offset */
+	static int writeDecimal(int value, byte[] out, int off) {
+		long v = value;
+		if(v < 0) {
+			out[off++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for(long p = 10; p <= v; p *= 10) digits++;
+		for(int i = off + digits - 1; i >= off; i--) {
+			out[i] = (byte) ('0' + (v % 10));
+			v /= 10;
+		}
+		return off + digits;
+	}
+
 	/**
 	 * MD5 hashes the given input string and returns the hex digest in String form.
 	 *
 	 * Input may not be null or empty.
 	 */
 	public static String md5String(String input) {
-		String result = "";
-		MessageDigest algorithm;
+		Md5Scratch scratch = mMd5.get();
+		byte[] bytes = input.getBytes();
+		scratch.mDigest.update(bytes, 0, bytes.length);
+		scratch.digest();
+		for(int i = 0; i < 16; i++) {
+			scratch.mHex[i*2] = HEX_CHARS[(scratch.mResult[i] >> 4) & 0xF];
+			scratch.mHex[i*2+1] = HEX_CHARS[scratch.mResult[i] & 0xF];
+		}
+		return new String(scratch.mHex);
+	}
+
+	/**
+	 * MD5 hashes input[off, off+length) and writes the 32 byte lowercase hex digest as ASCII into
+	 * out at outOff. Returns the new offset into out. Allocates nothing.
+	 */
+	public static int md5Hex(byte[] input, int off, int length, byte[] out, int outOff) {
+		Md5Scratch scratch = mMd5.get();
+		scratch.mDigest.update(input, off, length);
+		scratch.digest();
+		for(int i = 0; i < 16; i++) {
+			out[outOff++] = HEX_BYTES[(scratch.mResult[i] >> 4) & 0xF];
+			out[outOff++] = HEX_BYTES[scratch.mResult[i] & 0xF];
+		}
+		return outOff;
+	}
+
+	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+	private static final byte[] HEX_BYTES = "0123456789abcdef".getBytes(Charset.forName("US-ASCII"));
+
+	/** Each thread's MD5 digest and output buffers */
+	private static final class Md5Scratch {
+		final MessageDigest mDigest;
+		final byte[] mResult = new byte[16];
+		final char[] mHex = new char[32];
+
+		Md5Scratch(MessageDigest digest) {
+			mDigest = digest;
+		}
+
+		/** Finishes the digest into mResult, leaving it reset for the next input */
+		void digest() {
+			try {
+				mDigest.digest(mResult, 0, mResult.length);
+			} catch(DigestException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	private static final MessageDigest mMd5Prototype;
+	static {
 		try {
-			algorithm = MessageDigest.getInstance("MD5");
+			mMd5Prototype = MessageDigest.getInstance("MD5");
 		} catch(NoSuchAlgorithmException e) {
 			throw new RuntimeException(e);
 		}
-        algorithm.reset();
-        algorithm.update(input.getBytes());
-        byte[] md5 = algorithm.digest();
-        String tmp = "";
-        for (int i = 0; i < md5.length; i++) {
-            tmp = (Integer.toHexString(0xFF & md5[i]));
-            if (tmp.length() == 1) {
-                result += "0" + tmp;
-            } else {
-                result += tmp;
-            }
-        }
-        return result;
 	}
+	private static final ThreadLocal<Md5Scratch> mMd5 = new ThreadLocal<Md5Scratch>() {
+		@Override
+		protected Md5Scratch initialValue() {
+			// cloning skips the provider lookup getInstance would repeat for every thread
+			try {
+				return new Md5Scratch((MessageDigest) mMd5Prototype.clone());
+			} catch(CloneNotSupportedException e) {
+				try {
+					return new Md5Scratch(MessageDigest.getInstance("MD5"));
+				} catch(NoSuchAlgorithmException e2) {
+					throw new RuntimeException(e2);
+				}
+			}
+		}
+	};
 }
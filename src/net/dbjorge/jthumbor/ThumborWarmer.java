@@ -0,0 +1,448 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import net.dbjorge.jthumbor.ThumborServer.Preset;
+
+/**
+ * Warms a Thumbor server's result storage by fetching every preset of every image in a catalog,
+ * for use after a deploy or when a new preset rolls out.
+ *
+ * Images are taken from the input in order, and each preset of each is signed and fetched through
+ * a {@link ThumborClient}. At most {@link #setMaxConcurrency(int)} fetches are outstanding at
+ * once, optionally no more than {@link #setRateLimit(double)} are started per second, and failed
+ * fetches are retried with exponential backoff, unless Thumbor answered with a 4xx, which no retry
+ * will change. While it runs, a {@link ProgressListener} is told the throughput, error rate and
+ * latency percentiles so far.
+ *
+ * Given a checkpoint file, the warmer records how far through the input it has got, and a later
+ * run over the same input skips what was done. An image counts as done once every one of its
+ * fetches has succeeded or used up its retries, and the checkpoint is the number of images from
+ * the start of the input which are all done, so a run which is killed repeats at most the images
+ * in flight. The file is written every report interval and at the end.
+ *
+ * A report during the run which fails, because the listener throws or the checkpoint cannot be
+ * written, does not stop later ones; the failure is kept for {@link #getReportFailure()}. The
+ * final report's failures are thrown from run, or added as suppressed to whatever run is already
+ * throwing.
+ *
+ * One warmer may run one catalog at a time.
+ */
+public class ThumborWarmer {
+	public static final int DEFAULT_MAX_CONCURRENCY = 32;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final Duration DEFAULT_RETRY_BACKOFF = Duration.ofMillis(100);
+	public static final Duration DEFAULT_REPORT_INTERVAL = Duration.ofSeconds(1);
+
+	/** Told how a run is going, every report interval and once at the end, on a timer thread */
+	public static interface ProgressListener {
+		void onProgress(Progress progress);
+	}
+
+	/** A snapshot of a run's counters */
+	public static final class Progress {
+		private final long mImagesDone;
+		private final long mSucceeded;
+		private final long mFailed;
+		private final long mRetries;
+		private final long mElapsedNanos;
+		private final long mP50;
+		private final long mP90;
+		private final long mP99;
+		private final long mMax;
+
+		Progress(long imagesDone, long succeeded, long failed, long retries, long elapsedNanos, LatencyHistogram latency) {
+			mImagesDone = imagesDone;
+			mSucceeded = succeeded;
+			mFailed = failed;
+			mRetries = retries;
+			mElapsedNanos = elapsedNanos;
+			mP50 = latency.percentile(0.5);
+			mP90 = latency.percentile(0.9);
+			mP99 = latency.percentile(0.99);
+			mMax = latency.getMax();
+		}
+
+		/** Images from the start of the input all of whose fetches are finished, the checkpoint */
+		public long getImagesDone() { return mImagesDone; }
+		/** Fetches which succeeded, possibly after retries */
+		public long getSucceeded() { return mSucceeded; }
+		/** Fetches which failed for good */
+		public long getFailed() { return mFailed; }
+		/** Attempts which failed and were retried */
+		public long getRetries() { return mRetries; }
+		public long getElapsedNanos() { return mElapsedNanos; }
+		/** Finished fetches per second */
+		public double getThroughput() {
+			return mElapsedNanos == 0 ? 0 : (mSucceeded + mFailed) * 1e9 / mElapsedNanos;
+		}
+		/** Fraction of attempts which failed, retried or not */
+		public double getErrorRate() {
+			long attempts = mSucceeded + mFailed + mRetries;
+			return attempts == 0 ? 0 : (double) (mFailed + mRetries) / attempts;
+		}
+		/** Latency percentiles of single attempts, in nanoseconds */
+		public long getLatencyP50() { return mP50; }
+		public long getLatencyP90() { return mP90; }
+		public long getLatencyP99() { return mP99; }
+		public long getLatencyMax() { return mMax; }
+
+		@Override
+		public String toString() {
+			return String.format("%d images, %d fetched, %d failed, %d retries, %.1f/s, %.2f%% errors, latency p50 %.1fms p90 %.1fms p99 %.1fms max %.1fms",
+				mImagesDone, mSucceeded, mFailed, mRetries, getThroughput(), getErrorRate() * 100,
+				mP50 / 1e6, mP90 / 1e6, mP99 / 1e6, mMax / 1e6);
+		}
+	}
+
+	private final ThumborClient mClient;
+	private final List<Preset> mPresets;
+	private int mMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+	private long mNanosPerFetch;
+	private int mMaxRetries = DEFAULT_MAX_RETRIES;
+	private Duration mRetryBackoff = DEFAULT_RETRY_BACKOFF;
+	private Duration mReportInterval = DEFAULT_REPORT_INTERVAL;
+	private ProgressListener mListener;
+	private Path mCheckpoint;
+
+	// per run
+	private final AtomicLong mSucceeded = new AtomicLong();
+	private final AtomicLong mFailed = new AtomicLong();
+	private final AtomicLong mRetries = new AtomicLong();
+	private LatencyHistogram mLatency;
+	private long mStartNanos;
+	private volatile RuntimeException mReportFailure;
+	// images before mDone are all finished; mFinished holds those beyond it which are
+	private long mDone;
+	private final TreeSet<Long> mFinished = new TreeSet<Long>();
+	private final Object mCheckpointLock = new Object();
+	private long mWritten;
+	// the earliest time the next fetch, first attempt or retry, may start under the rate limit
+	private final Object mRateLock = new Object();
+	private long mNextStart;
+
+	/** Warms the given presets through the given client. The list is copied and may not be empty. */
+	public ThumborWarmer(ThumborClient client, List<Preset> presets) {
+		if(client == null || presets == null || presets.isEmpty()) {
+			throw new IllegalArgumentException("Client and presets may not be null or empty");
+		}
+		mClient = client;
+		mPresets = new ArrayList<Preset>(presets);
+	}
+
+	/** Sets how many fetches may be outstanding at once, including ones waiting to retry */
+	public ThumborWarmer setMaxConcurrency(int max) {
+		if(max < 1) {
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		}
+		mMaxConcurrency = max;
+		return this;
+	}
+
+	/** Sets how many fetches may start per second, retries included, or 0 for no limit */
+	public ThumborWarmer setRateLimit(double perSecond) {
+		if(!(perSecond >= 0)) {
+			throw new IllegalArgumentException("Rate must not be negative");
+		}
+		mNanosPerFetch = perSecond == 0 ? 0 : (long) (1e9 / perSecond);
+		return this;
+	}
+
+	/**
+	 * Sets how many times a failed fetch is retried, and the wait before the first retry, which
+	 * doubles for each after
+	 */
+	public ThumborWarmer setRetries(int maxRetries, Duration backoff) {
+		if(maxRetries < 0 || backoff == null || backoff.isNegative()) {
+			throw new IllegalArgumentException("Retries and backoff must not be negative");
+		}
+		mMaxRetries = maxRetries;
+		mRetryBackoff = backoff;
+		return this;
+	}
+
+	/** Sets the listener told of progress every interval, or null for none */
+	public ThumborWarmer setProgressListener(ProgressListener listener, Duration interval) {
+		if(interval == null || interval.isNegative() || interval.isZero()) {
+			throw new IllegalArgumentException("Interval must be positive");
+		}
+		mListener = listener;
+		mReportInterval = interval;
+		return this;
+	}
+
+	/** Sets the file progress is recorded in and resumed from, or null to start from scratch */
+	public ThumborWarmer setCheckpoint(Path file) {
+		mCheckpoint = file;
+		return this;
+	}
+
+	/** As {@link #run(Iterator)} */
+	public Progress run(Stream<String> imageUrls) throws InterruptedException {
+		return run(imageUrls.iterator());
+	}
+
+	/**
+	 * Warms every preset of every image URL, skipping any the checkpoint says are done, and
+	 * returns once all fetches have finished. Interrupting the calling thread stops the run
+	 * early, once fetches in flight finish, with the checkpoint written.
+	 */
+	public synchronized Progress run(Iterator<String> imageUrls) throws InterruptedException {
+		mSucceeded.set(0);
+		mFailed.set(0);
+		mRetries.set(0);
+		mLatency = new LatencyHistogram();
+		mStartNanos = System.nanoTime();
+		mReportFailure = null;
+		synchronized(mRateLock) {
+			mNextStart = mStartNanos;
+		}
+		long skip = readCheckpoint();
+		synchronized(mCheckpointLock) {
+			mWritten = skip;
+		}
+		synchronized(mFinished) {
+			mDone = skip;
+			mFinished.clear();
+		}
+
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "thumbor-warmer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long interval = mReportInterval.toNanos();
+		timer.scheduleAtFixedRate(this::periodicReport, interval, interval, TimeUnit.NANOSECONDS);
+
+		Semaphore permits = new Semaphore(mMaxConcurrency);
+		Throwable thrown = null;
+		try {
+			for(long image = 0; imageUrls.hasNext(); image++) {
+				String url = imageUrls.next();
+				if(image < skip) {
+					continue;
+				}
+				AtomicInteger remaining = new AtomicInteger(mPresets.size());
+				for(Preset preset : mPresets) {
+					permits.acquire();
+					try {
+						pace();
+					} catch(InterruptedException e) {
+						// or the wait for everything in flight below would never end
+						permits.release();
+						throw e;
+					}
+					attempt(url, preset, 0, image, remaining, permits, timer);
+				}
+			}
+		} catch(Throwable e) {
+			thrown = e;
+			throw e;
+		} finally {
+			// wait for what is in flight, even if interrupted, so the checkpoint covers it
+			permits.acquireUninterruptibly(mMaxConcurrency);
+			timer.shutdownNow();
+			try {
+				report();
+			} catch(RuntimeException e) {
+				// never hide the interrupt or failure which ended the run
+				if(thrown == null) {
+					throw e;
+				}
+				thrown.addSuppressed(e);
+			}
+		}
+		return progress();
+	}
+
+	/** Waits until a fetch may start under the rate limit */
+	private void pace() throws InterruptedException {
+		long start = reserveStart(System.nanoTime());
+		long now;
+		while((now = System.nanoTime()) < start) {
+			LockSupport.parkNanos(start - now);
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Reserves the first time at or after earliest that a fetch may start under the rate limit,
+	 * and returns it. First attempts and retries share the one limit.
+	 */
+	private long reserveStart(long earliest) {
+		if(mNanosPerFetch == 0) {
+			return earliest;
+		}
+		synchronized(mRateLock) {
+			// no bursting to catch up after a stall
+			long start = Math.max(mNextStart, earliest);
+			mNextStart = start + mNanosPerFetch;
+			return start;
+		}
+	}
+
+	private void attempt(String url, Preset preset, int attempt, long image, AtomicInteger remaining, Semaphore permits, ScheduledExecutorService timer) {
+		long start = System.nanoTime();
+		CompletableFuture<byte[]> fetch;
+		try {
+			fetch = mClient.fetch(url, preset);
+		} catch(RuntimeException e) {
+			// an image URL which cannot even be signed
+			fetch = new CompletableFuture<byte[]>();
+			fetch.completeExceptionally(e);
+		}
+		fetch.whenComplete((body, failure) -> {
+			mLatency.record(System.nanoTime() - start);
+			if(failure != null && attempt < mMaxRetries && retryable(failure)) {
+				mRetries.incrementAndGet();
+				long backoff = mRetryBackoff.toNanos() << Math.min(attempt, 20);
+				long now = System.nanoTime();
+				long delay = reserveStart(now + backoff) - now;
+				try {
+					timer.schedule(() -> attempt(url, preset, attempt + 1, image, remaining, permits, timer), delay, TimeUnit.NANOSECONDS);
+					return;
+				} catch(RuntimeException e) {
+					// the timer has been shut down, so the run is over: give up on this one
+				}
+			}
+			(failure == null ? mSucceeded : mFailed).incrementAndGet();
+			if(remaining.decrementAndGet() == 0) {
+				finished(image);
+			}
+			permits.release();
+		});
+	}
+
+	private static boolean retryable(Throwable failure) {
+		if(failure instanceof ThumborClient.StatusException) {
+			int status = ((ThumborClient.StatusException) failure).getStatusCode();
+			return status < 400 || status >= 500;
+		}
+		return failure instanceof IOException;
+	}
+
+	private void finished(long image) {
+		synchronized(mFinished) {
+			if(image != mDone) {
+				mFinished.add(image);
+				return;
+			}
+			mDone++;
+			while(!mFinished.isEmpty() && mFinished.first() == mDone) {
+				mFinished.pollFirst();
+				mDone++;
+			}
+		}
+	}
+
+	private Progress progress() {
+		long done;
+		synchronized(mFinished) {
+			done = mDone;
+		}
+		return new Progress(done, mSucceeded.get(), mFailed.get(), mRetries.get(), System.nanoTime() - mStartNanos, mLatency);
+	}
+
+	/**
+	 * The last exception from a report during the latest run, thrown by the listener or in
+	 * writing the checkpoint, or null if there was none
+	 */
+	public RuntimeException getReportFailure() {
+		return mReportFailure;
+	}
+
+	/** A report from the timer, which must not throw or the timer cancels every later one */
+	private void periodicReport() {
+		try {
+			report();
+		} catch(RuntimeException e) {
+			mReportFailure = e;
+		}
+	}
+
+	private void report() {
+		Progress progress = progress();
+		writeCheckpoint(progress.getImagesDone());
+		ProgressListener listener = mListener;
+		if(listener != null) {
+			listener.onProgress(progress);
+		}
+	}
+
+	private long readCheckpoint() {
+		if(mCheckpoint == null || !Files.exists(mCheckpoint)) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(mCheckpoint), StandardCharsets.US_ASCII).trim());
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Not a checkpoint file: " + mCheckpoint);
+		}
+	}
+
+	/**
+	 * Replaces the checkpoint file in one move, so a crash never leaves half of one. A report
+	 * running late on the timer never moves it backwards.
+	 */
+	private void writeCheckpoint(long imagesDone) {
+		if(mCheckpoint == null) {
+			return;
+		}
+		synchronized(mCheckpointLock) {
+			if(imagesDone < mWritten) {
+				return;
+			}
+			mWritten = imagesDone;
+			write(imagesDone);
+		}
+	}
+
+	private void write(long imagesDone) {
+		try {
+			Path temp = mCheckpoint.resolveSibling(mCheckpoint.getFileName() + ".tmp");
+			Files.write(temp, (imagesDone + "\n").getBytes(StandardCharsets.US_ASCII));
+			Files.move(temp, mCheckpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
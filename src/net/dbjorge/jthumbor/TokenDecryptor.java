@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+
+/**
+ * Reverses the tokens a ThumborServer generates in {@link ThumborServer.SigningMode#AES_TOKEN}
+ * mode, as Thumbor's own Crypto.decrypt does, without needing Thumbor or Python.
+ *
+ * This class is thread-safe.
+ */
+public class TokenDecryptor {
+	/** Longest token a ThumborServer can generate */
+	static final int MAX_TOKEN_LENGTH = ThumborUtils.urlSafeBase64Length(SigningScratch.MAX_PLAINTEXT_LENGTH);
+
+	private static final int HASH_LENGTH = 32;
+
+	private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+	private final AesCipherPool mCiphers;
+
+	/**
+	 * The key must be the same secure key the tokens were generated with, and may not be null or
+	 * empty.
+	 */
+	public TokenDecryptor(String secureKey) {
+		if(secureKey == null || secureKey.isEmpty()) {
+			throw new IllegalArgumentException("Secure key may not be null or empty");
+		}
+		mCiphers = new AesCipherPool(ThumborServer.aesKey(secureKey).getBytes(), Cipher.DECRYPT_MODE, InstancePool.defaultCapacity());
+	}
+
+	/**
+	 * Decrypts a token, or returns null if it is not one generated with this decryptor's key: if it
+	 * is not canonical, padded base64, is not a whole number of AES blocks, or does not decrypt to
+	 * an options path and image hash.
+	 */
+	public DecryptedToken decrypt(CharSequence token) {
+		int length = token.length();
+		if(length == 0 || length > MAX_TOKEN_LENGTH) {
+			return null;
+		}
+
+		byte[] ciphertext = new byte[length * 3 / 4];
+		// only the canonical form, as Thumbor writes it, so each token has a single spelling
+		int ciphertextLength = ThumborUtils.urlSafeBase64DecodeCanonical(token, 0, length, ciphertext, 0);
+		if(ciphertextLength <= 0 || ciphertextLength % 16 != 0) {
+			return null;
+		}
+		byte[] plaintext = new byte[ciphertextLength];
+		mCiphers.decrypt(ciphertext, 0, ciphertextLength, plaintext, 0);
+
+		// Strip the padding
+		int end = ciphertextLength;
+		while(end > 0 && plaintext[end - 1] == '{') end--;
+
+		// The options path, then the image hash and nothing else. Latin-1 maps every byte to one
+		// char, so garbage from the wrong key simply fails to parse.
+		String text = new String(plaintext, 0, end, LATIN_1);
+		Options options = new Options();
+		int hashStart = new SignedPathParser().parseOptions(text, 0, end, options);
+		if(end - hashStart != HASH_LENGTH) {
+			return null;
+		}
+		for(int i = hashStart; i < end; i++) {
+			char c = text.charAt(i);
+			if((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return null;
+			}
+		}
+		return new DecryptedToken(options, text.substring(hashStart));
+	}
+
+	/** The options and image hash a token was generated from */
+	public static final class DecryptedToken {
+		private final Options mOptions;
+		private final String mImageHash;
+
+		DecryptedToken(Options options, String imageHash) {
+			mOptions = options;
+			mImageHash = imageHash;
+		}
+
+		/** A copy of the options the token was generated with */
+		public Options getOptions() {
+			return mOptions.copy();
+		}
+
+		/** The hex MD5 hash of the image URL the token was generated for */
+		public String getImageHash() {
+			return mImageHash;
+		}
+
+		/**
+		 * The token in the form of the dict Thumbor's Crypto.decrypt returns, with the same keys:
+		 * meta, crop (left, top, right and bottom), width, height, horizontal_flip, vertical_flip,
+		 * halign, valign, smart, fit_in and image_hash.
+		 */
+		public Map<String, Object> toMap() {
+			Map<String, Object> crop = new LinkedHashMap<String, Object>();
+			crop.put("left", mOptions.getCropLeft());
+			crop.put("top", mOptions.getCropTop());
+			crop.put("right", mOptions.getCropRight());
+			crop.put("bottom", mOptions.getCropBottom());
+
+			Map<String, Object> dict = new LinkedHashMap<String, Object>();
+			dict.put("meta", mOptions.isMeta());
+			dict.put("crop", Collections.unmodifiableMap(crop));
+			dict.put("width", mOptions.getWidth());
+			dict.put("height", mOptions.getHeight());
+			dict.put("horizontal_flip", mOptions.isFlipHorizontal());
+			dict.put("vertical_flip", mOptions.isFlipVertical());
+			dict.put("halign", mOptions.getHorizontalAlignment().toString().toLowerCase(Locale.ENGLISH));
+			dict.put("valign", mOptions.getVerticalAlignment().toString().toLowerCase(Locale.ENGLISH));
+			dict.put("smart", mOptions.isSmart());
+			dict.put("fit_in", mOptions.isFitIn());
+			dict.put("image_hash", mImageHash);
+			return Collections.unmodifiableMap(dict);
+		}
+
+		@Override
+		public String toString() {
+			return toMap().toString();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+
+import org.junit.Test;
+
+public class AesCipherPoolTest {
+	private static final int THREADS = 64;
+	private static final int ROUNDS = 500;
+
+	private static final String[] KEYS = {
+		"my-security-keym", "0123456789abcdef", "{{{{{{{{{{{{{{{{", "another-key-abcd"
+	};
+	private static final String[] PLAINTEXTS = {
+		"300x200/84996242f65a4d864aceb125e1c4c5ba{{{{{{{{",
+		"meta/20x30:40x50/fit-in/20x20/right/top/smart/84996242f65a4d864aceb125e1c4c5ba{{",
+		"84996242f65a4d864aceb125e1c4c5ba",
+		"-27x-953/left/bottom/0123456789abcdef0123456789abcdef{{{{{{{{{{{"
+	};
+
+	/** Reference encryption using a private, freshly initialised Cipher */
+	private static byte[] reference(String key, String plaintext) throws Exception {
+		Cipher c = Cipher.getInstance("AES/ECB/NoPadding");
+		c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key.getBytes(), "AES"));
+		return c.doFinal(plaintext.getBytes());
+	}
+
+	@Test
+	public void testPoolReusesReleasedInstances() {
+		AesCipherPool pool = new AesCipherPool(1);
+		Cipher a = pool.acquire();
+		Cipher b = pool.acquire();
+		assertNotSame(a, b);
+		pool.release(a);
+		pool.release(b); // dropped, pool is full
+		assertSame(a, pool.acquire());
+		assertNotSame(b, pool.acquire());
+	}
+
+	@Test
+	public void testKeyedPoolMatchesReference() throws Exception {
+		for(String key : KEYS) {
+			AesCipherPool pool = new AesCipherPool(key.getBytes(), 2);
+			for(int round = 0; round < 3; round++) {
+				for(String plaintext : PLAINTEXTS) {
+					assertArrayEquals(reference(key, plaintext), pool.encrypt(plaintext.getBytes()));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testKeyedPoolRecoversFromBadInput() throws Exception {
+		AesCipherPool pool = new AesCipherPool(KEYS[0].getBytes(), 1);
+		try {
+			pool.encrypt("not a multiple of sixteen".getBytes());
+			fail();
+		} catch(RuntimeException e) {
+			// good
+		}
+		assertArrayEquals(reference(KEYS[0], PLAINTEXTS[0]), pool.encrypt(PLAINTEXTS[0].getBytes()));
+	}
+
+	@Test
+	public void testFailedCipherIsNotReleased() throws Exception {
+		AesCipherPool pool = new AesCipherPool(1);
+		Cipher pooled = pool.acquire();
+		pool.release(pooled);
+		try {
+			pool.encrypt(KEYS[0].getBytes(), "not a multiple of sixteen".getBytes());
+			fail();
+		} catch(RuntimeException e) {
+			// good
+		}
+		assertNotSame(pooled, pool.acquire());
+		assertArrayEquals(reference(KEYS[0], PLAINTEXTS[0]), pool.encrypt(KEYS[0].getBytes(), PLAINTEXTS[0].getBytes()));
+	}
+
+	@Test
+	public void testConcurrentAesEncryptMatchesReference() throws Exception {
+		final byte[][][] expected = new byte[KEYS.length][PLAINTEXTS.length][];
+		for(int k = 0; k < KEYS.length; k++) {
+			for(int p = 0; p < PLAINTEXTS.length; p++) {
+				expected[k][p] = reference(KEYS[k], PLAINTEXTS[p]);
+			}
+		}
+
+		runConcurrently(new Task() {
+			public void run(int thread, int round) {
+				// each thread walks the key/plaintext grid in a different order so keys interleave
+				int k = (thread + round) % KEYS.length;
+				int p = (thread * 7 + round) % PLAINTEXTS.length;
+				assertArrayEquals(expected[k][p], ThumborUtils.aesEncrypt(KEYS[k], PLAINTEXTS[p]));
+			}
+		});
+	}
+
+	@Test
+	public void testConcurrentSecureTokensMatchSingleThreaded() throws Exception {
+		final ThumborServer[] servers = {
+			new ThumborServer("example.com", "my-security-key"),
+			new ThumborServer("example.com", "blank"),
+			new ThumborServer("example.com", "a-much-longer-security-key-value"),
+		};
+		final Options[] options = {
+			new Options().resize(300, 200),
+			new Options().meta().crop(20, 30, 40, 50).fitIn().smart(),
+			new Options().flipHorizontal().flipVertical(),
+		};
+		final String image = "my.server.com/some/path/to/image.jpg";
+
+		final String[][] expected = new String[servers.length][options.length];
+		for(int s = 0; s < servers.length; s++) {
+			for(int o = 0; o < options.length; o++) {
+				expected[s][o] = servers[s].getSecureToken(image, options[o]);
+			}
+		}
+		assertEquals("l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ", expected[0][0]);
+
+		runConcurrently(new Task() {
+			public void run(int thread, int round) {
+				int s = (thread + round) % servers.length;
+				int o = (thread * 5 + round) % options.length;
+				assertEquals(expected[s][o], servers[s].getSecureToken(image, options[o]));
+			}
+		});
+	}
+
+	private interface Task {
+		void run(int thread, int round);
+	}
+
+	/** Runs the task ROUNDS times on each of THREADS threads, all released at the same moment */
+	private static void runConcurrently(final Task task) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for(int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						for(int round = 0; round < ROUNDS; round++) {
+							task.run(thread, round);
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for(Future<Void> result : results) {
+				result.get(); // rethrows assertion failures from the worker
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
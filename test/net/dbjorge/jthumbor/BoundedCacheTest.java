@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.dbjorge.jthumbor.BoundedCache.Eviction;
+
+import org.junit.Test;
+
+public class BoundedCacheTest {
+	@Test
+	public void testLruEvictsLeastRecentlyUsed() {
+		// small enough to be a single segment, so the order is exact
+		BoundedCache<String, String> c = new BoundedCache<String, String>(Eviction.LRU, 3);
+		c.put("a", "1");
+		c.put("b", "2");
+		c.put("c", "3");
+		assertEquals("1", c.get("a"));
+		c.put("d", "4");
+
+		assertNull(c.get("b"));
+		assertEquals("1", c.get("a"));
+		assertEquals("3", c.get("c"));
+		assertEquals("4", c.get("d"));
+		assertEquals(3, c.size());
+		assertEquals(1, c.getEvictionCount());
+		assertEquals(4, c.getHitCount());
+		assertEquals(1, c.getMissCount());
+	}
+
+	@Test
+	public void testReplaceDoesNotEvict() {
+		BoundedCache<String, String> c = new BoundedCache<String, String>(Eviction.LRU, 2);
+		c.put("a", "1");
+		c.put("b", "2");
+		c.put("a", "3");
+		assertEquals("3", c.get("a"));
+		assertEquals("2", c.get("b"));
+		assertEquals(0, c.getEvictionCount());
+	}
+
+	@Test
+	public void testWeightBound() {
+		for(Eviction eviction : Eviction.values()) {
+			BoundedCache<Integer, String> c = new BoundedCache<Integer, String>(eviction, 10000, new BoundedCache.Weigher<Integer, String>() {
+				public int weigh(Integer key, String value) {
+					return value.length();
+				}
+			});
+			for(int i = 0; i < 5000; i++) {
+				c.put(i, "0123456789".substring(0, 1 + i % 10));
+				assertTrue(eviction + " weighs " + c.weight(), c.weight() <= 10000);
+			}
+			assertTrue(c.getEvictionCount() > 0);
+
+			// heavier than a whole segment: never cached
+			StringBuilder huge = new StringBuilder();
+			for(int i = 0; i < 20000; i++) huge.append('x');
+			c.put(-1, huge.toString());
+			assertNull(c.get(-1));
+		}
+	}
+
+	@Test
+	public void testRefusedReplacementDropsOldValue() {
+		for(Eviction eviction : Eviction.values()) {
+			BoundedCache<String, String> c = new BoundedCache<String, String>(eviction, 10, new BoundedCache.Weigher<String, String>() {
+				public int weigh(String key, String value) {
+					return value.length();
+				}
+			});
+			c.put("k", "small");
+			assertEquals("small", c.get("k"));
+
+			c.put("k", "far too heavy to fit");
+			assertNull(eviction + " kept the stale value", c.get("k"));
+			assertEquals(0, c.weight());
+		}
+	}
+
+	@Test
+	public void testTinyLfuResistsScans() {
+		for(Eviction eviction : Eviction.values()) {
+			BoundedCache<Integer, Integer> c = new BoundedCache<Integer, Integer>(eviction, 1000);
+
+			// a popular working set, requested many times
+			for(int round = 0; round < 10; round++) {
+				for(int i = 0; i < 500; i++) {
+					if(c.get(i) == null) c.put(i, i);
+				}
+			}
+			// a one-off scan over many more keys than fit
+			for(int i = 1000; i < 5000; i++) {
+				if(c.get(i) == null) c.put(i, i);
+			}
+
+			int survivors = 0;
+			for(int i = 0; i < 500; i++) {
+				if(c.get(i) != null) survivors++;
+			}
+			if(eviction == Eviction.LRU) {
+				assertEquals(0, survivors);
+			} else {
+				assertTrue("only " + survivors + " popular entries survived", survivors > 450);
+			}
+			assertTrue(c.size() <= 1000);
+		}
+	}
+
+	@Test
+	public void testTinyLfuCountsGetsNotPuts() {
+		BoundedCache<String, String> c = new BoundedCache<String, String>(Eviction.TINY_LFU, 3);
+		for(String key : new String[] {"a", "b", "c"}) {
+			if(c.get(key) == null) c.put(key, key);
+		}
+		c.get("b");
+		c.get("c");
+
+		// rewriting a key over and over is not the same as it being requested
+		for(int i = 0; i < 5; i++) {
+			c.put("x", "x");
+		}
+		c.put("y", "y");
+
+		assertNull(c.get("x"));
+		assertEquals("b", c.get("b"));
+		assertEquals("c", c.get("c"));
+	}
+
+	@Test
+	public void testConcurrentUse() throws Exception {
+		for(Eviction eviction : Eviction.values()) {
+			final BoundedCache<Integer, Integer> c = new BoundedCache<Integer, Integer>(eviction, 2000);
+			List<Thread> threads = new ArrayList<Thread>();
+			final List<Throwable> failures = new ArrayList<Throwable>();
+			for(int t = 0; t < 16; t++) {
+				final int seed = t;
+				Thread thread = new Thread() {
+					public void run() {
+						try {
+							for(int i = 0; i < 20000; i++) {
+								int key = (i * 31 + seed * 7) % 5000;
+								Integer v = c.get(key);
+								if(v == null) {
+									c.put(key, key * 2);
+								} else {
+									assertEquals(key * 2, v.intValue());
+								}
+							}
+						} catch(Throwable e) {
+							synchronized(failures) { failures.add(e); }
+						}
+					}
+				};
+				threads.add(thread);
+				thread.start();
+			}
+			for(Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals(new ArrayList<Throwable>(), failures);
+			assertTrue(c.size() <= 2000);
+			assertEquals(16 * 20000, c.getHitCount() + c.getMissCount());
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the appendSecureUrl overloads stay allocation-free once warmed up, by reading the
+ * current thread's allocated byte counter around a batch of calls.
+ *
+ * Skipped on JVMs which do not expose per-thread allocation counts.
+ */
+public class SecureUrlAllocationTest {
+	private static final int WARMUP = 50000;
+	private static final int MEASURED = 10000;
+
+	/** Allowance for the counter itself and any stray JIT deoptimisation during the run */
+	private static final long MAX_BYTES_PER_URL = 4;
+
+	/** The JDK's HmacSHA1 allocates one 20 byte inner digest array per doFinal */
+	private static final long MAX_BYTES_PER_HMAC_URL = MAX_BYTES_PER_URL + 40;
+
+	private long mMaxBytesPerUrl = MAX_BYTES_PER_URL;
+
+	private com.sun.management.ThreadMXBean mThreads;
+	private ThumborServer mServer;
+	private Options mOptions;
+	private String mImage;
+
+	@Before
+	public void setup() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		mThreads = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+		mThreads.setThreadAllocatedMemoryEnabled(true);
+
+		mServer = new ThumborServer("http://dbjorge.net", "my-security-key");
+		mOptions = new Options().crop(20, 30, 40, 50).resize(300, 200).horizontalAlign(HorizontalAlignment.LEFT).smart();
+		mImage = "http://my.server.com/some/path/to/image.jpg";
+	}
+
+	private long allocatedBytes() {
+		return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	@Test
+	public void testStringBuilderIsAllocationFree() {
+		StringBuilder out = new StringBuilder(512);
+		for(int i = 0; i < WARMUP; i++) {
+			out.setLength(0);
+			mServer.appendSecureUrl(mImage, mOptions, out);
+		}
+
+		long before = allocatedBytes();
+		for(int i = 0; i < MEASURED; i++) {
+			out.setLength(0);
+			mServer.appendSecureUrl(mImage, mOptions, out);
+		}
+		long perUrl = (allocatedBytes() - before) / MEASURED;
+
+		assertTrue("appendSecureUrl(StringBuilder) allocated " + perUrl + " bytes per URL", perUrl <= mMaxBytesPerUrl);
+	}
+
+	@Test
+	public void testByteBufferIsAllocationFree() {
+		ByteBuffer out = ByteBuffer.allocateDirect(512);
+		for(int i = 0; i < WARMUP; i++) {
+			out.clear();
+			mServer.appendSecureUrl(mImage, mOptions, out);
+		}
+
+		long before = allocatedBytes();
+		for(int i = 0; i < MEASURED; i++) {
+			out.clear();
+			mServer.appendSecureUrl(mImage, mOptions, out);
+		}
+		long perUrl = (allocatedBytes() - before) / MEASURED;
+
+		assertTrue("appendSecureUrl(ByteBuffer) allocated " + perUrl + " bytes per URL", perUrl <= mMaxBytesPerUrl);
+	}
+
+	@Test
+	public void testHmacIsAllocationFree() {
+		mServer = new ThumborServer("http://dbjorge.net", "my-security-key", SigningMode.HMAC_SHA1);
+		mMaxBytesPerUrl = MAX_BYTES_PER_HMAC_URL;
+		testStringBuilderIsAllocationFree();
+		testByteBufferIsAllocationFree();
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.Options.VerticalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.Test;
+
+public class SignedPathParserTest {
+	private static final String IMAGE = "my.server.com/some/path/to/image.jpg";
+
+	private final SignedPathParser mParser = new SignedPathParser();
+	private final SignedPathParser mAesParser = new SignedPathParser(SigningMode.AES_TOKEN);
+
+	private static String region(CharSequence s, int start, int end) {
+		return s.subSequence(start, end).toString();
+	}
+
+	@Test
+	public void testHmacPath() {
+		String path = "/q5O_XEjF6vFL011KWrE-YnPZNuk=/meta/20x30:40x50/fit-in/-20x20/right/top/smart/" + IMAGE;
+		assertTrue(mParser.parse(path));
+		assertEquals("q5O_XEjF6vFL011KWrE-YnPZNuk=", region(path, mParser.getTokenStart(), mParser.getTokenEnd()));
+		assertEquals("meta/20x30:40x50/fit-in/-20x20/right/top/smart/", region(path, mParser.getOptionsStart(), mParser.getOptionsEnd()));
+		assertEquals(IMAGE, region(path, mParser.getImageStart(), mParser.getImageEnd()));
+		assertEquals(new Options().meta().crop(20, 30, 40, 50).fitIn().resize(20, 20).flipHorizontal()
+				.horizontalAlign(HorizontalAlignment.RIGHT).verticalAlign(VerticalAlignment.TOP).smart(),
+				mParser.getOptions());
+	}
+
+	@Test
+	public void testAesPath() {
+		StringBuilder path = new StringBuilder("xx/l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ/" + IMAGE + "yy");
+		assertTrue(mAesParser.parse(path, 2, path.length() - 2));
+		assertEquals("l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ", region(path, mAesParser.getTokenStart(), mAesParser.getTokenEnd()));
+		assertEquals(mAesParser.getOptionsStart(), mAesParser.getOptionsEnd());
+		assertEquals(IMAGE, region(path, mAesParser.getImageStart(), mAesParser.getImageEnd()));
+		assertEquals(new Options(), mAesParser.getOptions());
+	}
+
+	@Test
+	public void testAesImageLikeOptions() {
+		ThumborServer s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		for(String image : new String[] { "top/a.jpg", "300x200/a.jpg", "fit-in/smart/a.jpg" }) {
+			String path = s.getSecureUrlPath(image, new Options().resize(30, 20));
+			assertTrue(path, mAesParser.parse(path));
+			assertEquals(s.getSecureToken(image, new Options().resize(30, 20)), region(path, mAesParser.getTokenStart(), mAesParser.getTokenEnd()));
+			assertEquals(image, region(path, mAesParser.getImageStart(), mAesParser.getImageEnd()));
+			assertEquals(new Options(), mAesParser.getOptions());
+		}
+	}
+
+	@Test
+	public void testThumborLeniency() {
+		// Thumbor itself accepts these, though ThumborServer never writes them
+		assertTrue(mParser.parse("sig/x/center/middle/" + IMAGE));
+		assertEquals(new Options(), mParser.getOptions());
+		assertEquals("sig/x/center/middle/".length(), mParser.getImageStart());
+
+		assertTrue(mParser.parse("sig/-x-300/" + IMAGE));
+		assertEquals(new Options().resize(0, 300).flipHorizontal().flipVertical(), mParser.getOptions());
+	}
+
+	@Test
+	public void testNotOptions() {
+		// Out of order, or not quite an option: taken as the start of the image
+		assertTrue(mParser.parse("sig/smart/meta/" + IMAGE));
+		assertEquals(new Options().smart(), mParser.getOptions());
+		assertTrue(mParser.parse("sig/20x30:40/" + IMAGE));
+		assertEquals(new Options(), mParser.getOptions());
+		assertEquals("sig/".length(), mParser.getImageStart());
+		assertTrue(mParser.parse("sig/99999999999x10/" + IMAGE));
+		assertEquals(new Options(), mParser.getOptions());
+		assertTrue(mParser.parse("sig/fit-in" + IMAGE));
+		assertEquals(new Options(), mParser.getOptions());
+	}
+
+	@Test
+	public void testInvalidPaths() {
+		assertFalse(mParser.parse(""));
+		assertFalse(mParser.parse("/"));
+		assertFalse(mParser.parse("//" + IMAGE));
+		assertFalse(mParser.parse("/token"));
+		assertFalse(mParser.parse("/token/"));
+		assertFalse(mParser.parse("/token/300x200/"));
+	}
+
+	@Test
+	public void testRandomRoundTrips() {
+		Random random = new Random(18);
+		ThumborServer[] servers = {
+			new ThumborServer("http://dbjorge.net", "my-security-key", SigningMode.HMAC_SHA1),
+			new ThumborServer("http://dbjorge.net", "my-security-key"),
+		};
+		SignedPathParser[] parsers = { mParser, mAesParser };
+		Options[] reused = { mParser.getOptions(), mAesParser.getOptions() };
+		for(int i = 0; i < 5000; i++) {
+			ThumborServer s = servers[i % 2];
+			SignedPathParser parser = parsers[i % 2];
+			Options opts = new Options();
+			if(random.nextBoolean()) opts.meta();
+			if(random.nextBoolean()) opts.crop(random.nextInt(5000), random.nextInt(5000), random.nextInt(5000), random.nextInt(5000));
+			if(random.nextBoolean()) opts.fitIn();
+			if(random.nextBoolean()) opts.resize(random.nextInt(5000), random.nextInt(5000));
+			if(random.nextBoolean()) opts.flipHorizontal();
+			if(random.nextBoolean()) opts.flipVertical();
+			opts.horizontalAlign(HorizontalAlignment.values()[random.nextInt(3)]);
+			opts.verticalAlign(VerticalAlignment.values()[random.nextInt(3)]);
+			if(random.nextBoolean()) opts.smart();
+			String image = "img" + random.nextInt(100) + ".example.com/" + Long.toHexString(random.nextLong()) + ".jpg";
+
+			String path = s.getSecureUrlPath(image, opts);
+			assertTrue(path, parser.parse(path));
+			assertSame(reused[i % 2], parser.getOptions());
+			assertEquals(s.getSecureToken(image, opts), region(path, parser.getTokenStart(), parser.getTokenEnd()));
+			assertEquals(image, region(path, parser.getImageStart(), parser.getImageEnd()));
+			if(s.getSigningMode() == SigningMode.HMAC_SHA1) {
+				assertEquals(opts, parser.getOptions());
+				assertEquals(s.getOptionsPath(opts), region(path, parser.getOptionsStart(), parser.getOptionsEnd()));
+			} else {
+				assertEquals(new Options(), parser.getOptions());
+			}
+		}
+	}
+
+	@Test
+	public void testParseIsAllocationFree() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(allocations.isThreadAllocatedMemorySupported());
+		allocations.setThreadAllocatedMemoryEnabled(true);
+
+		String path = "/q5O_XEjF6vFL011KWrE-YnPZNuk=/meta/20x30:40x50/fit-in/-20x20/right/top/smart/" + IMAGE;
+		for(int i = 0; i < 50000; i++) {
+			mParser.parse(path);
+		}
+		long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for(int i = 0; i < 10000; i++) {
+			mParser.parse(path);
+		}
+		long perPath = (allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / 10000;
+		assertTrue("parse allocated " + perPath + " bytes per path", perPath <= 4);
+	}
+}
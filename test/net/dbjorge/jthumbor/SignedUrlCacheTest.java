@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.dbjorge.jthumbor.BoundedCache.Eviction;
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+
+import org.junit.Test;
+
+public class SignedUrlCacheTest {
+	private static final String IMAGE = "my.server.com/some/path/to/image.jpg";
+
+	@Test
+	public void testOptionsValueEquality() {
+		Options a = new Options().resize(300, 200).smart().horizontalAlign(HorizontalAlignment.LEFT);
+		Options b = new Options().horizontalAlign(HorizontalAlignment.LEFT).smart().resize(300, 200);
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		assertEquals(a, a.copy());
+		assertFalse(a.equals(b.copy().fitIn()));
+		assertFalse(a.equals(new Options().resize(300, 200).smart()));
+		assertFalse(new Options().flipHorizontal().equals(new Options().flipVertical()));
+	}
+
+	@Test
+	public void testCachedUrlsAreReused() {
+		ThumborServer s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		SignedUrlCache cache = SignedUrlCache.withMaxEntries(Eviction.LRU, 100);
+		s.setSignedUrlCache(cache);
+		assertSame(cache, s.getSignedUrlCache());
+
+		String first = s.getSecureUrl(IMAGE, new Options().resize(300, 200));
+		assertEquals("http://dbjorge.net/l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ/my.server.com/some/path/to/image.jpg", first);
+		assertSame(first, s.getSecureUrl(IMAGE, new Options().resize(300, 200)));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		// different options, different entry
+		String other = s.getSecureUrl(IMAGE, new Options().resize(300, 201));
+		assertFalse(first.equals(other));
+		assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void testMutatingOptionsAfterSigningDoesNotCorruptCache() {
+		ThumborServer s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		s.setSignedUrlCache(SignedUrlCache.withMaxEntries(Eviction.TINY_LFU, 100));
+
+		Options opts = new Options().resize(300, 200);
+		String expected = s.getSecureUrl(IMAGE, opts);
+		opts.smart();
+		assertFalse(expected.equals(s.getSecureUrl(IMAGE, opts)));
+		assertEquals(expected, s.getSecureUrl(IMAGE, new Options().resize(300, 200)));
+	}
+
+	@Test
+	public void testByteBound() {
+		ThumborServer s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		SignedUrlCache cache = SignedUrlCache.withMaxBytes(Eviction.LRU, 100000);
+		s.setSignedUrlCache(cache);
+		for(int i = 0; i < 2000; i++) {
+			s.getSecureUrl("my.server.com/" + i + ".jpg", new Options());
+		}
+		assertTrue(cache.size() < 2000);
+		assertTrue(cache.size() * SignedUrlCache.ENTRY_OVERHEAD_BYTES <= 100000);
+		assertTrue(cache.getEvictionCount() > 0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testCacheCannotBeShared() {
+		SignedUrlCache cache = SignedUrlCache.withMaxEntries(Eviction.LRU, 100);
+		new ThumborServer("http://dbjorge.net", "my-security-key").setSignedUrlCache(cache);
+		new ThumborServer("http://dbjorge.net", "another-key").setSignedUrlCache(cache);
+	}
+}
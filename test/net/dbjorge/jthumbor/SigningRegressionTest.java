@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.Options.VerticalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Regression gate for the cost of {@link ThumborServer#getSecureUrl(String, Options)}. Signs a run
+ * of URLs in each scenario and fails if the bytes allocated per URL exceed the checked-in baseline
+ * by more than the tolerance the baseline file gives.
+ *
+ * The median nanoseconds per URL depends on the machine, so by default it is only reported. Run
+ * with -Djthumbor.regression=true to check it against the baseline as well, which is only
+ * meaningful on the machine the baseline was recorded on.
+ *
+ * The baseline is signing-baseline.json next to this class, or the file named by the
+ * jthumbor.baseline system property. Run with -Djthumbor.updateBaseline=true to record the
+ * current figures as the new baseline instead of checking them.
+ *
+ * Skipped on JVMs which do not expose per-thread allocation counts.
+ */
+public class SigningRegressionTest {
+	private static final String DEFAULT_BASELINE = "test/net/dbjorge/jthumbor/signing-baseline.json";
+
+	/** Enough for the JIT to settle before timing; allocation settles much sooner */
+	private static final int WARMUP = 50000;
+	private static final int ALLOCATION_WARMUP = 10000;
+	private static final int BATCHES = 51;
+	private static final int BATCH_SIZE = 1000;
+
+	/** Timings on a shared machine are noisy, so a slow run is retried before it counts as a regression */
+	private static final int ATTEMPTS = 3;
+
+	private static final String IMAGE = "http://my.server.com/some/path/to/image.jpg";
+	private static final Options SIMPLE = new Options().resize(300, 200);
+	private static final Options COMPLEX = new Options().meta().crop(20, 30, 40, 50).fitIn().resize(300, 200)
+		.flipHorizontal().horizontalAlign(HorizontalAlignment.LEFT).verticalAlign(VerticalAlignment.BOTTOM).smart();
+
+	private com.sun.management.ThreadMXBean mThreads;
+
+	@Before
+	public void setup() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		mThreads = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+		mThreads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@Test
+	public void testSigningCostWithinBaseline() throws Exception {
+		File file = new File(System.getProperty("jthumbor.baseline", DEFAULT_BASELINE));
+		boolean update = Boolean.getBoolean("jthumbor.updateBaseline");
+		boolean timed = Boolean.getBoolean("jthumbor.regression");
+
+		JSONObject baseline = new JSONObject(read(file));
+		JSONObject tolerance = baseline.getJSONObject("tolerance");
+		JSONObject scenarios = baseline.getJSONObject("scenarios");
+
+		StringBuilder failures = new StringBuilder();
+		failures.append(check("aes-simple", new ThumborServer("http://dbjorge.net", "my-security-key"), SIMPLE, scenarios, tolerance, update, timed));
+		failures.append(check("aes-complex", new ThumborServer("http://dbjorge.net", "my-security-key"), COMPLEX, scenarios, tolerance, update, timed));
+		failures.append(check("hmac-complex", new ThumborServer("http://dbjorge.net", "my-security-key", SigningMode.HMAC_SHA1), COMPLEX, scenarios, tolerance, update, timed));
+
+		if(update) {
+			write(file, baseline.toString(2) + "\n");
+		} else {
+			assertTrue(failures.toString(), failures.length() == 0);
+		}
+	}
+
+	/**
+	 * Measures one scenario and either records it in scenarios or compares it with what is
+	 * recorded there, timings only if timed. Returns a description of any regression, or the
+	 * empty string.
+	 */
+	private String check(String name, ThumborServer server, Options options, JSONObject scenarios, JSONObject tolerance, boolean update, boolean timed) throws Exception {
+		int warmup = update || timed ? WARMUP : ALLOCATION_WARMUP;
+		for(int i = 0; i < warmup; i++) {
+			server.getSecureUrl(IMAGE, options);
+		}
+
+		long[] measured = measure(server, options);
+		long bytesPerUrl = measured[0];
+		long medianNanosPerUrl = measured[1];
+
+		if(update) {
+			scenarios.put(name, new JSONObject()
+				.put("bytesPerUrl", bytesPerUrl)
+				.put("medianNanosPerUrl", medianNanosPerUrl));
+			return "";
+		}
+
+		if(!scenarios.has(name)) {
+			return name + ": no baseline, run with -Djthumbor.updateBaseline=true to record one\n";
+		}
+		JSONObject expected = scenarios.getJSONObject(name);
+		String failures = "";
+		long maxBytes = (long) (expected.getLong("bytesPerUrl") * (1 + tolerance.getDouble("bytesPerUrl")));
+		if(bytesPerUrl > maxBytes) {
+			failures += name + ": " + bytesPerUrl + " bytes per URL, baseline allows " + maxBytes + "\n";
+		}
+		long maxNanos = (long) (expected.getLong("medianNanosPerUrl") * (1 + tolerance.getDouble("medianNanosPerUrl")));
+		if(!timed) {
+			System.out.println(name + ": median " + medianNanosPerUrl + "ns per URL (baseline " + expected.getLong("medianNanosPerUrl")
+				+ "ns, not checked without -Djthumbor.regression=true)");
+			return failures;
+		}
+		for(int attempt = 1; attempt < ATTEMPTS && medianNanosPerUrl > maxNanos; attempt++) {
+			medianNanosPerUrl = Math.min(medianNanosPerUrl, measure(server, options)[1]);
+		}
+		if(medianNanosPerUrl > maxNanos) {
+			failures += name + ": median " + medianNanosPerUrl + "ns per URL, baseline allows " + maxNanos + "ns\n";
+		}
+		return failures;
+	}
+
+	/** Signs BATCHES batches of URLs, and returns the bytes allocated and median nanoseconds per URL */
+	private long[] measure(ThumborServer server, Options options) {
+		long[] nanos = new long[BATCHES];
+		long allocatedBefore = allocatedBytes();
+		for(int b = 0; b < BATCHES; b++) {
+			long start = System.nanoTime();
+			for(int i = 0; i < BATCH_SIZE; i++) {
+				server.getSecureUrl(IMAGE, options);
+			}
+			nanos[b] = (System.nanoTime() - start) / BATCH_SIZE;
+		}
+		long bytesPerUrl = (allocatedBytes() - allocatedBefore) / (BATCHES * BATCH_SIZE);
+		Arrays.sort(nanos);
+		return new long[] { bytesPerUrl, nanos[BATCHES / 2] };
+	}
+
+	private long allocatedBytes() {
+		return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] contents = new byte[(int) file.length()];
+			int off = 0;
+			while(off < contents.length) {
+				int n = in.read(contents, off, contents.length - off);
+				if(n < 0) break;
+				off += n;
+			}
+			return new String(contents, 0, off, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThumborBulkSignerTest {
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private static final Options DEFAULT = new Options().resize(300, 200);
+	private static final Options HERO = new Options().fitIn().resize(800, 600).horizontalAlign(HorizontalAlignment.LEFT).smart();
+
+	private static ThumborServer server(SigningMode mode) {
+		ThumborServer s = new ThumborServer("http://dbjorge.net", "my-security-key", mode);
+		s.registerPreset("hero", HERO);
+		return s;
+	}
+
+	/**
+	 * A catalog of n lines, with the output each line should give. Both are in the platform
+	 * charset, as ThumborServer encodes URLs.
+	 */
+	private static String[] catalog(ThumborServer s, int n) {
+		StringBuilder in = new StringBuilder();
+		StringBuilder out = new StringBuilder();
+		for(int i = 0; i < n; i++) {
+			String image = "my.server.com/catalog/" + i + (i % 7 == 0 ? "/caf\u00e9.jpg" : ".jpg");
+			switch(i % 5) {
+			case 0:
+				in.append(image).append('\n');
+				out.append(s.getSecureUrl(image, DEFAULT)).append('\n');
+				break;
+			case 1:
+				in.append("http://").append(image).append("\thero\r\n");
+				out.append(s.getSecureUrl("http://" + image, HERO)).append('\n');
+				break;
+			case 2:
+				in.append(image).append("\tmissing\n");
+				out.append('\n');
+				break;
+			case 3:
+				in.append('\n');
+				out.append('\n');
+				break;
+			default:
+				// empty preset name means the default options
+				in.append(image).append("\t\n");
+				out.append(s.getSecureUrl(image, DEFAULT)).append('\n');
+			}
+		}
+		// no newline at the end
+		in.append("last.jpg");
+		out.append(s.getSecureUrl("last.jpg", DEFAULT)).append('\n');
+		return new String[] { in.toString(), out.toString() };
+	}
+
+	@Test
+	public void testSignsStreamInOrder() {
+		for(SigningMode mode : SigningMode.values()) {
+			ThumborServer s = server(mode);
+			String[] catalog = catalog(s, 500);
+			for(int chunk : new int[] { 16, 100, 1 << 20 }) {
+				ThumborBulkSigner signer = new ThumborBulkSigner(s, DEFAULT).setThreads(4).setChunkBytes(chunk);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				signer.sign(Channels.newChannel(new ByteArrayInputStream(catalog[0].getBytes())), Channels.newChannel(out));
+				assertEquals(new String(catalog[1].getBytes()), new String(out.toByteArray()));
+				assertEquals(501, signer.getLineCount());
+				assertEquals(100, signer.getBadLineCount());
+			}
+		}
+	}
+
+	@Test
+	public void testSignsMappedFileInOrder() throws Exception {
+		ThumborServer s = server(SigningMode.HMAC_SHA1);
+		String[] catalog = catalog(s, 500);
+		Path file = mFolder.newFile("catalog.tsv").toPath();
+		Files.write(file, catalog[0].getBytes());
+		for(long mapping : new long[] { 100, 4096, 1 << 30 }) {
+			ThumborBulkSigner signer = new ThumborBulkSigner(s, DEFAULT).setThreads(3).setChunkBytes(64);
+			signer.mMaxMapping = mapping;
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			signer.sign(file, Channels.newChannel(out));
+			assertEquals(new String(catalog[1].getBytes()), new String(out.toByteArray()));
+			assertEquals(501, signer.getLineCount());
+		}
+	}
+
+	@Test
+	public void testSeparator() {
+		ThumborServer s = server(SigningMode.AES_TOKEN);
+		ThumborBulkSigner signer = new ThumborBulkSigner(s, DEFAULT).setSeparator(',');
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		signer.sign(Channels.newChannel(new ByteArrayInputStream("a.com/x.jpg,hero\n".getBytes())), Channels.newChannel(out));
+		assertEquals(s.getSecureUrl("a.com/x.jpg", HERO) + "\n", out.toString());
+	}
+
+	@Test
+	public void testParseOptions() {
+		assertEquals(HERO, ThumborBulkSigner.parseOptions("fit-in/800x600/left/smart"));
+		assertEquals(HERO, ThumborBulkSigner.parseOptions("fit-in/800x600/left/smart/"));
+		assertEquals(new Options(), ThumborBulkSigner.parseOptions(""));
+		try {
+			ThumborBulkSigner.parseOptions("smart/300x200");
+			org.junit.Assert.fail();
+		} catch(IllegalArgumentException e) {
+			// good
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThumborClientTest {
+	private static final String KEY = "my-security-key";
+	private static final String IMAGE = "my.server.com/some/path/to/image.jpg";
+
+	private ThumborStandInServer mStandIn;
+	private ThumborClient mClient;
+
+	@Before
+	public void setUp() {
+		mStandIn = new ThumborStandInServer(KEY, SigningMode.AES_TOKEN).start(0);
+		mClient = new ThumborClient(new ThumborServer(mStandIn.getServerUrl(), KEY));
+	}
+
+	@After
+	public void tearDown() {
+		mStandIn.close();
+	}
+
+	@Test
+	public void testFetch() throws Exception {
+		byte[] png = mClient.fetch(IMAGE, new Options().resize(300, 200)).get();
+		assertSize(300, 200, png);
+
+		mClient.getServer().registerPreset("thumb", new Options().resize(64, 48));
+		assertArrayEquals(mClient.fetch(IMAGE, new Options().resize(64, 48)).get(),
+				mClient.fetch(IMAGE, mClient.getServer().getPreset("thumb")).get());
+		assertSize(20, 10, mClient.fetch(ThumborImage.of(IMAGE), new Options().resize(20, 10)).get());
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		InputStream in = mClient.stream(IMAGE, new Options().resize(300, 200)).get();
+		assertEquals(1, mClient.getInFlightCount());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		in.transferTo(out);
+		in.close();
+		assertArrayEquals(mClient.fetch(IMAGE, new Options().resize(300, 200)).get(), out.toByteArray());
+		assertEquals(0, mClient.getInFlightCount());
+	}
+
+	@Test
+	public void testBadStatusFails() throws Exception {
+		String forged = new ThumborServer(mStandIn.getServerUrl(), "other-key").getSecureUrl(IMAGE, new Options());
+		try {
+			mClient.fetchUrl(forged).get();
+			fail();
+		} catch(ExecutionException e) {
+			ThumborClient.StatusException status = (ThumborClient.StatusException) e.getCause();
+			assertEquals(403, status.getStatusCode());
+			assertEquals(forged, status.getUrl());
+		}
+		try {
+			mClient.streamUrl(forged).get();
+			fail();
+		} catch(ExecutionException e) {
+			assertEquals(403, ((ThumborClient.StatusException) e.getCause()).getStatusCode());
+		}
+		assertEquals(0, mClient.getInFlightCount());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		mStandIn.setLatency(2, 2, TimeUnit.SECONDS);
+		mClient.setRequestTimeout(Duration.ofMillis(100));
+		try {
+			mClient.fetch(IMAGE, new Options()).get();
+			fail();
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof HttpTimeoutException);
+		}
+		assertEquals(0, mClient.getInFlightCount());
+	}
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		mStandIn.setLatency(200, 200, TimeUnit.MILLISECONDS);
+		mClient.setMaxConcurrentRequests(2);
+
+		List<CompletableFuture<byte[]>> results = new ArrayList<CompletableFuture<byte[]>>();
+		for(int i = 0; i < 6; i++) {
+			results.add(mClient.fetch(IMAGE, new Options().resize(10 + i, 10)));
+		}
+		assertEquals(2, mClient.getInFlightCount());
+		assertEquals(4, mClient.getWaitingCount());
+
+		// raising the limit starts waiting requests at once
+		mClient.setMaxConcurrentRequests(3);
+		assertEquals(3, mClient.getInFlightCount());
+		assertEquals(3, mClient.getWaitingCount());
+
+		for(int i = 0; i < 6; i++) {
+			assertSize(10 + i, 10, results.get(i).get());
+		}
+		assertEquals(0, mClient.getInFlightCount());
+		assertEquals(0, mClient.getWaitingCount());
+		assertEquals(6, mStandIn.getRequestCount());
+	}
+
+	@Test
+	public void testConcurrentFetchesShareOneRequest() throws Exception {
+		mStandIn.setLatency(200, 200, TimeUnit.MILLISECONDS);
+		List<CompletableFuture<byte[]>> results = new ArrayList<CompletableFuture<byte[]>>();
+		for(int i = 0; i < 50; i++) {
+			results.add(mClient.fetch(IMAGE, new Options().resize(300, 200)));
+		}
+		// cancelling one waiter leaves the rest, and the request, alone
+		results.get(0).cancel(false);
+
+		byte[] shared = results.get(1).get();
+		assertSize(300, 200, shared);
+		for(int i = 2; i < 50; i++) {
+			assertSame(shared, results.get(i).get());
+		}
+		assertEquals(1, mStandIn.getRequestCount());
+		assertEquals(49, mClient.getCoalescedCount());
+
+		// once it is done, the next fetch sends a request of its own
+		mClient.fetch(IMAGE, new Options().resize(300, 200)).get();
+		assertEquals(2, mStandIn.getRequestCount());
+	}
+
+	@Test
+	public void testCoalescedFetchesShareFailure() throws Exception {
+		mStandIn.setLatency(200, 200, TimeUnit.MILLISECONDS);
+		String forged = new ThumborServer(mStandIn.getServerUrl(), "other-key").getSecureUrl(IMAGE, new Options());
+		List<CompletableFuture<byte[]>> results = new ArrayList<CompletableFuture<byte[]>>();
+		for(int i = 0; i < 20; i++) {
+			results.add(mClient.fetchUrl(forged));
+		}
+		for(CompletableFuture<byte[]> result : results) {
+			try {
+				result.get();
+				fail();
+			} catch(ExecutionException e) {
+				assertEquals(403, ((ThumborClient.StatusException) e.getCause()).getStatusCode());
+			}
+		}
+		assertEquals(1, mStandIn.getRequestCount());
+	}
+
+	@Test
+	public void testCoalescingCanBeTurnedOff() throws Exception {
+		mClient.setCoalescing(false);
+		mStandIn.setLatency(100, 100, TimeUnit.MILLISECONDS);
+		List<CompletableFuture<byte[]>> results = new ArrayList<CompletableFuture<byte[]>>();
+		for(int i = 0; i < 5; i++) {
+			results.add(mClient.fetch(IMAGE, new Options().resize(30, 20)));
+		}
+		for(CompletableFuture<byte[]> result : results) {
+			assertSize(30, 20, result.get());
+		}
+		assertEquals(5, mStandIn.getRequestCount());
+		assertEquals(0, mClient.getCoalescedCount());
+	}
+
+	private static void assertSize(int width, int height, byte[] png) {
+		ByteBuffer header = ByteBuffer.wrap(png, 16, 8);
+		assertEquals(width, header.getInt());
+		assertEquals(height, header.getInt());
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.Test;
+
+public class ThumborClusterTest {
+	private static final String KEY = "my-security-key";
+	private static final int IMAGES = 24000;
+
+	private static List<String> nodes(int n) {
+		List<String> urls = new ArrayList<String>();
+		for(int i = 1; i <= n; i++) {
+			urls.add("http://thumbor-" + i + ".example.com");
+		}
+		return urls;
+	}
+
+	private static String image(int i) {
+		return "my.server.com/catalog/" + i + ".jpg";
+	}
+
+	/** Which node serves each image */
+	private static String[] placement(ThumborCluster cluster) {
+		String[] placement = new String[IMAGES];
+		for(int i = 0; i < IMAGES; i++) {
+			placement[i] = cluster.getServer(image(i)).getServerUrl();
+		}
+		return placement;
+	}
+
+	@Test
+	public void testSignsOnChosenNode() {
+		for(SigningMode mode : SigningMode.values()) {
+			ThumborCluster cluster = new ThumborCluster(nodes(12), KEY, mode);
+			cluster.registerPreset("card", new Options().resize(300, 200));
+			Options options = new Options().resize(300, 200);
+			for(int i = 0; i < 100; i++) {
+				ThumborServer node = cluster.getServer(image(i));
+				String url = node.getSecureUrl(image(i), options);
+				assertEquals(url, cluster.getSecureUrl(image(i), options));
+				assertEquals(url, cluster.getSecureUrl("http://" + image(i), "card"));
+				assertEquals(url, cluster.getSecureUrl(ThumborImage.of(image(i)), options.freeze()));
+				assertTrue(cluster.verify(url.substring(node.getServerUrl().length())));
+			}
+		}
+	}
+
+	@Test
+	public void testSpreadsEvenly() {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for(String node : placement(new ThumborCluster(nodes(12), KEY))) {
+			counts.merge(node, 1, Integer::sum);
+		}
+		assertEquals(12, counts.size());
+		for(int count : counts.values()) {
+			assertTrue(count > IMAGES / 12 * 0.85 && count < IMAGES / 12 * 1.15);
+		}
+	}
+
+	@Test
+	public void testPlacementIgnoresNodeOrder() {
+		List<String> shuffled = nodes(12);
+		Collections.reverse(shuffled);
+		String[] a = placement(new ThumborCluster(nodes(12), KEY));
+		String[] b = placement(new ThumborCluster(shuffled, KEY));
+		for(int i = 0; i < IMAGES; i++) {
+			assertEquals(a[i], b[i]);
+		}
+	}
+
+	@Test
+	public void testAddingNodeMovesOnlyItsShare() {
+		ThumborCluster cluster = new ThumborCluster(nodes(12), KEY);
+		String[] before = placement(cluster);
+		assertTrue(cluster.addNode("thumbor-13.example.com"));
+		assertFalse(cluster.addNode("http://thumbor-13.example.com"));
+		String[] after = placement(cluster);
+
+		int moved = 0;
+		for(int i = 0; i < IMAGES; i++) {
+			if(!before[i].equals(after[i])) {
+				moved++;
+				// only ever to the new node
+				assertEquals("http://thumbor-13.example.com", after[i]);
+			}
+		}
+		assertTrue(moved > IMAGES / 13 * 0.85 && moved < IMAGES / 13 * 1.15);
+	}
+
+	@Test
+	public void testRemovingNodeMovesOnlyItsImages() {
+		ThumborCluster cluster = new ThumborCluster(nodes(12), KEY);
+		String[] before = placement(cluster);
+		assertTrue(cluster.removeNode("thumbor-5.example.com"));
+		assertFalse(cluster.removeNode("thumbor-5.example.com"));
+		assertEquals(11, cluster.getNodeUrls().size());
+		String[] after = placement(cluster);
+		for(int i = 0; i < IMAGES; i++) {
+			if(before[i].equals("http://thumbor-5.example.com")) {
+				assertFalse(after[i].equals(before[i]));
+			} else {
+				assertEquals(before[i], after[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testSingleNode() {
+		ThumborCluster cluster = new ThumborCluster(nodes(1), KEY);
+		ThumborServer only = cluster.getServer(image(0));
+		for(int i = 0; i < 100; i++) {
+			assertSame(only, cluster.getServer(image(i)));
+		}
+		try {
+			cluster.removeNode(nodes(1).get(0));
+			fail();
+		} catch(IllegalStateException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void testNoNodes() {
+		checkNoNodes(null);
+		checkNoNodes(Collections.<String>emptyList());
+	}
+
+	private static void checkNoNodes(List<String> nodes) {
+		// checked before the key, so the message names the real problem
+		try {
+			new ThumborCluster(nodes, null);
+			fail();
+		} catch(IllegalArgumentException e) {
+			assertEquals("A cluster needs at least one node", e.getMessage());
+		}
+	}
+}
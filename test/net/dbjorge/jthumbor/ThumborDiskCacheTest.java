@@ -0,0 +1,368 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.CRC32;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThumborDiskCacheTest {
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private static byte[] value(int seed, int length) {
+		byte[] value = new byte[length];
+		new Random(seed).nextBytes(value);
+		return value;
+	}
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void testPutAndGet() throws Exception {
+		ThumborDiskCache cache = new ThumborDiskCache(mFolder.getRoot().toPath(), 1 << 20, 1 << 16);
+		assertNull(cache.get("/a/300x200/x.jpg"));
+		assertTrue(cache.put("/a/300x200/x.jpg", value(1, 1000)));
+		assertTrue(cache.put("/b/300x200/x.jpg", value(2, 0)));
+
+		ByteBuffer hit = cache.get("/a/300x200/x.jpg");
+		assertTrue(hit.isReadOnly());
+		assertTrue(hit.isDirect()); // a slice of the mapping, not a heap copy
+		assertArrayEquals(value(1, 1000), bytes(hit));
+		assertEquals(0, cache.get("/b/300x200/x.jpg").remaining());
+
+		cache.put("/a/300x200/x.jpg", value(3, 500));
+		assertArrayEquals(value(3, 500), bytes(cache.get("/a/300x200/x.jpg")));
+		assertEquals(2, cache.size());
+		assertEquals(3, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		// too big for a segment
+		assertFalse(cache.put("/c", new byte[1 << 16]));
+		cache.close();
+	}
+
+	@Test
+	public void testSurvivesRestart() throws Exception {
+		Path dir = mFolder.getRoot().toPath();
+		ThumborDiskCache cache = new ThumborDiskCache(dir, 1 << 20, 1 << 14);
+		for(int i = 0; i < 100; i++) {
+			cache.put("/" + i, value(i, 300));
+		}
+		cache.put("/7", value(700, 10));
+		cache.close();
+
+		cache = new ThumborDiskCache(dir, 1 << 20, 1 << 14);
+		assertEquals(100, cache.size());
+		for(int i = 0; i < 100; i++) {
+			assertArrayEquals(i == 7 ? value(700, 10) : value(i, 300), bytes(cache.get("/" + i)));
+		}
+		cache.put("/100", value(100, 300));
+		cache.close();
+
+		assertEquals(101, new ThumborDiskCache(dir, 1 << 20, 1 << 14).size());
+	}
+
+	@Test
+	public void testDropsTornRecord() throws Exception {
+		Path dir = mFolder.getRoot().toPath();
+		ThumborDiskCache cache = new ThumborDiskCache(dir, 1 << 20, 1 << 16);
+		cache.put("/first", value(1, 100));
+		cache.put("/second", value(2, 100));
+		cache.close();
+
+		// corrupt the last byte of the second record, as a crash mid-write might
+		Path segment = Files.list(dir).findFirst().get();
+		try(RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			long last = 2 * 12 + "/first".length() + "/second".length() + 200 - 1;
+			file.seek(last);
+			file.write(~value(2, 100)[99]);
+		}
+
+		cache = new ThumborDiskCache(dir, 1 << 20, 1 << 16);
+		assertArrayEquals(value(1, 100), bytes(cache.get("/first")));
+		assertNull(cache.get("/second"));
+		cache.put("/third", value(3, 100));
+		cache.close();
+
+		cache = new ThumborDiskCache(dir, 1 << 20, 1 << 16);
+		assertEquals(2, cache.size());
+		assertArrayEquals(value(3, 100), bytes(cache.get("/third")));
+		cache.close();
+	}
+
+	@Test
+	public void testEvictionKeepsReferencedEntries() throws Exception {
+		Path dir = mFolder.getRoot().toPath();
+		int segment = 1 << 14;
+		ThumborDiskCache cache = new ThumborDiskCache(dir, 4 * segment, segment);
+		// entries of about 1kB, 15 to a segment
+		for(int i = 0; i < 100; i++) {
+			cache.put("/" + i, value(i, 1000));
+			if(i == 3) {
+				cache.get("/0"); // referenced before its segment is evicted
+			}
+			cache.compact();
+			assertTrue(cache.getBytes() <= 4 * segment);
+		}
+		assertArrayEquals(value(0, 1000), bytes(cache.get("/0")));
+		assertNull(cache.get("/1"));
+		assertNotNull(cache.get("/99"));
+		assertTrue(Files.list(dir).count() <= 5);
+		cache.close();
+
+		// a restart sees the same entries
+		cache = new ThumborDiskCache(dir, 4 * segment, segment);
+		assertNotNull(cache.get("/0"));
+		assertNull(cache.get("/1"));
+		cache.close();
+	}
+
+	@Test
+	public void testCompactsOverwrittenSegments() throws Exception {
+		int segment = 1 << 14;
+		ThumborDiskCache cache = new ThumborDiskCache(mFolder.getRoot().toPath(), 64 * segment, segment);
+		for(int round = 0; round < 10; round++) {
+			for(int i = 0; i < 10; i++) {
+				cache.put("/" + i, value(round * 10 + i, 1000));
+			}
+		}
+		long before = cache.getBytes();
+		cache.compact();
+		assertTrue(cache.getBytes() < before / 4);
+		for(int i = 0; i < 10; i++) {
+			assertArrayEquals(value(90 + i, 1000), bytes(cache.get("/" + i)));
+		}
+		cache.close();
+	}
+
+	@Test
+	public void testReportsBackgroundCompactionFailure() throws Exception {
+		int segment = 1 << 14;
+		CountDownLatch attempted = new CountDownLatch(1);
+		ThumborDiskCache cache = new ThumborDiskCache(mFolder.getRoot().toPath(), 2 * segment, segment) {
+			@Override
+			void compact() {
+				// only the first fails, so the failure is reported just once
+				if(attempted.getCount() > 0) {
+					attempted.countDown();
+					throw new UncheckedIOException(new IOException("disk full"));
+				}
+				super.compact();
+			}
+		};
+		// over the maximum, so compaction runs, and the failure is thrown from a later put, once
+		UncheckedIOException failure = null;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		for(int i = 0; failure == null && System.nanoTime() < deadline; i++) {
+			try {
+				cache.put("/" + i % 100, value(i, 1000));
+				if(attempted.getCount() == 0) {
+					Thread.sleep(1);
+				}
+			} catch(UncheckedIOException e) {
+				failure = e;
+			}
+		}
+		assertTrue(attempted.await(0, TimeUnit.SECONDS));
+		assertNotNull(failure);
+		assertEquals("disk full", failure.getCause().getMessage());
+		assertTrue(cache.put("/probe", value(0, 10)));
+		cache.close();
+	}
+
+	@Test
+	public void testSkipsPaddingFromUnfinishedCopy() throws Exception {
+		Path dir = mFolder.getRoot().toPath();
+		ThumborDiskCache cache = new ThumborDiskCache(dir, 1 << 20, 1 << 16);
+		cache.put("/first", value(1, 100));
+		cache.close();
+
+		// space a compaction reserved but never filled, then a record put after it
+		Path segment = Files.list(dir).findFirst().get();
+		byte[] key = "/after".getBytes("UTF-8");
+		byte[] after = value(2, 100);
+		CRC32 crc = new CRC32();
+		crc.update(key);
+		crc.update(after);
+		try(RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			file.seek(12 + "/first".length() + 100);
+			file.writeInt(-1);
+			file.writeInt(50);
+			file.writeInt(0);
+			file.write(new byte[50]);
+			file.writeInt(key.length);
+			file.writeInt(after.length);
+			file.writeInt((int) crc.getValue());
+			file.write(key);
+			file.write(after);
+		}
+
+		cache = new ThumborDiskCache(dir, 1 << 20, 1 << 16);
+		assertEquals(2, cache.size());
+		assertArrayEquals(value(1, 100), bytes(cache.get("/first")));
+		assertArrayEquals(after, bytes(cache.get("/after")));
+		cache.close();
+	}
+
+	@Test
+	public void testCompactionAlongsideGetsAndPuts() throws Exception {
+		Path dir = mFolder.getRoot().toPath();
+		int segment = 1 << 14;
+		ThumborDiskCache cache = new ThumborDiskCache(dir, 8 * segment, segment);
+		// values carry their key and version, so a reader can tell if it got another's
+		int keys = 200;
+		AtomicIntegerArray versions = new AtomicIntegerArray(keys);
+		AtomicBoolean done = new AtomicBoolean();
+		List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+		Thread writer = new Thread(() -> {
+			try {
+				Random random = new Random(2);
+				for(int i = 0; i < 20000; i++) {
+					int key = random.nextInt(keys);
+					int version = versions.get(key) + 1;
+					cache.put("/" + key, ByteBuffer.allocate(300).putInt(0, key).putInt(4, version));
+					versions.set(key, version);
+				}
+			} catch(Throwable e) {
+				failures.add(e);
+			} finally {
+				done.set(true);
+			}
+		});
+		Thread reader = new Thread(() -> {
+			try {
+				Random random = new Random(3);
+				while(!done.get()) {
+					int key = random.nextInt(keys);
+					ByteBuffer hit = cache.get("/" + key);
+					if(hit != null) {
+						assertEquals(key, hit.getInt(0));
+					}
+				}
+			} catch(Throwable e) {
+				failures.add(e);
+			}
+		});
+		writer.start();
+		reader.start();
+		while(!done.get()) {
+			cache.compact();
+		}
+		writer.join();
+		reader.join();
+		assertTrue(failures.toString(), failures.isEmpty());
+		cache.compact();
+		assertTrue(cache.getBytes() <= 8 * segment);
+
+		// whatever survived is the latest version, before and after a restart
+		Map<Integer, Integer> survivors = new HashMap<Integer, Integer>();
+		for(int key = 0; key < keys; key++) {
+			ByteBuffer hit = cache.get("/" + key);
+			if(hit != null) {
+				assertEquals(versions.get(key), hit.getInt(4));
+				survivors.put(key, hit.getInt(4));
+			}
+		}
+		assertFalse(survivors.isEmpty());
+		cache.close();
+		ThumborDiskCache reopened = new ThumborDiskCache(dir, 8 * segment, segment);
+		for(int key : survivors.keySet()) {
+			assertEquals((int) survivors.get(key), reopened.get("/" + key).getInt(4));
+		}
+		reopened.close();
+	}
+
+	@Test
+	public void testIndexLimit() {
+		try {
+			new DiskCacheIndex(DiskCacheIndex.MAX_ENTRIES + 1);
+			fail();
+		} catch(IllegalArgumentException e) {
+			// good
+		}
+		assertEquals(50331648, ThumborDiskCache.MAX_ENTRIES);
+	}
+
+	@Test
+	public void testManyEntriesMatchMap() throws Exception {
+		ThumborDiskCache cache = new ThumborDiskCache(mFolder.getRoot().toPath(), 1L << 30, 1 << 20);
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		Random random = new Random(1);
+		for(int i = 0; i < 50000; i++) {
+			String key = "/" + random.nextInt(20000);
+			cache.put(key, ByteBuffer.allocate(4).putInt(0, i));
+			expected.put(key, i);
+		}
+		assertEquals(expected.size(), cache.size());
+		for(Map.Entry<String, Integer> e : expected.entrySet()) {
+			assertEquals((int) e.getValue(), cache.get(e.getKey()).getInt(0));
+		}
+		cache.close();
+	}
+
+	@Test
+	public void testClientServesFromDiskCache() throws Exception {
+		ThumborStandInServer standIn = new ThumborStandInServer("my-security-key", SigningMode.AES_TOKEN).start(0);
+		try {
+			ThumborDiskCache cache = new ThumborDiskCache(mFolder.getRoot().toPath(), 1 << 22);
+			ThumborClient client = new ThumborClient(new ThumborServer(standIn.getServerUrl(), "my-security-key")).setDiskCache(cache);
+			Options options = new Options().resize(30, 20);
+			byte[] fetched = client.fetch("my.server.com/image.jpg", options).get(10, TimeUnit.SECONDS);
+			assertArrayEquals(fetched, client.fetch("my.server.com/image.jpg", options).get(10, TimeUnit.SECONDS));
+			assertEquals(1, standIn.getRequestCount());
+
+			String url = client.getServer().getSecureUrl("my.server.com/image.jpg", options);
+			assertArrayEquals(fetched, bytes(cache.get(ThumborClient.cachePath(url))));
+			cache.close();
+		} finally {
+			standIn.close();
+		}
+	}
+}
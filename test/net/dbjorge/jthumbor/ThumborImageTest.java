@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.Test;
+
+public class ThumborImageTest {
+	private static final String IMAGE = "my.server.com/some/path/to/image.jpg";
+
+	private static final Options[] SRCSET = {
+		new Options().resize(160, 0),
+		new Options().resize(320, 0),
+		new Options().resize(640, 0),
+		new Options().resize(1280, 0).smart(),
+		new Options().fitIn().resize(300, 200).meta(),
+	};
+
+	@Test
+	public void testPreparedImage() {
+		ThumborImage image = ThumborImage.of("http://" + IMAGE);
+		assertEquals(IMAGE, image.getPath());
+		assertEquals("84996242f65a4d864aceb125e1c4c5ba", image.getHash());
+		assertEquals(ThumborImage.of(IMAGE), image);
+	}
+
+	@Test
+	public void testMemoReturnsSameInstance() {
+		assertSame(ThumborImage.of(IMAGE), ThumborImage.of(IMAGE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsOtherProtocols() {
+		ThumborImage.of("https://" + IMAGE);
+	}
+
+	private void checkServer(ThumborServer s) throws Exception {
+		ThumborImage image = ThumborImage.of(IMAGE);
+		String[] variants = s.getSecureUrls(image, SRCSET);
+		assertEquals(SRCSET.length, variants.length);
+		for(int i = 0; i < SRCSET.length; i++) {
+			String expected = s.getSecureUrl(IMAGE, SRCSET[i]);
+			assertEquals(expected, variants[i]);
+			assertEquals(expected, s.getSecureUrl(image, SRCSET[i]));
+			assertEquals(s.getSecureToken(IMAGE, SRCSET[i]), s.getSecureToken(image, SRCSET[i]));
+
+			ByteBuffer b = ByteBuffer.allocate(512);
+			s.appendSecureUrl(image, SRCSET[i], b);
+			b.flip();
+			assertEquals(expected, new String(b.array(), 0, b.limit(), "US-ASCII"));
+		}
+	}
+
+	@Test
+	public void testAesVariantsMatchUnprepared() throws Exception {
+		checkServer(new ThumborServer("http://dbjorge.net", "my-security-key"));
+	}
+
+	@Test
+	public void testHmacVariantsMatchUnprepared() throws Exception {
+		checkServer(new ThumborServer("http://dbjorge.net", "my-security-key", SigningMode.HMAC_SHA1));
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThumborServerBulkTest {
+	private static final int COUNT = 5000;
+
+	private ForkJoinPool mPool;
+	private String[] mImages;
+	private Options[] mOptions;
+
+	@Before
+	public void setup() {
+		mPool = new ForkJoinPool(8);
+		mImages = new String[COUNT];
+		mOptions = new Options[COUNT];
+		for(int i = 0; i < COUNT; i++) {
+			mImages[i] = "my.server.com/catalog/" + i + "/image.jpg";
+			mOptions[i] = new Options().resize(100 + i % 7, 50 + i % 3);
+			if(i % 5 == 0) { mOptions[i].smart(); }
+		}
+	}
+
+	@After
+	public void teardown() {
+		mPool.shutdown();
+	}
+
+	private void checkServer(ThumborServer s) {
+		s.setBulkSigningPool(mPool);
+
+		String[] pairwise = s.getSecureUrls(mImages, mOptions);
+		Options shared = new Options().fitIn().resize(300, 200);
+		String[] same = s.getSecureUrls(mImages, shared);
+		for(int i = 0; i < COUNT; i++) {
+			assertEquals(s.getSecureUrl(mImages[i], mOptions[i]), pairwise[i]);
+			assertEquals(s.getSecureUrl(mImages[i], shared), same[i]);
+		}
+
+		assertEquals(Arrays.asList(pairwise), s.getSecureUrls(Arrays.asList(mImages), Arrays.asList(mOptions)));
+		assertEquals(Arrays.asList(same), s.getSecureUrls(Arrays.asList(mImages), shared));
+		assertEquals(Arrays.asList(same), s.getSecureUrls(Arrays.stream(mImages), shared));
+	}
+
+	@Test
+	public void testAesBulkMatchesSingle() {
+		checkServer(new ThumborServer("http://dbjorge.net", "my-security-key"));
+	}
+
+	@Test
+	public void testHmacBulkMatchesSingle() {
+		checkServer(new ThumborServer("http://dbjorge.net", "my-security-key", SigningMode.HMAC_SHA1));
+	}
+
+	@Test
+	public void testCipherBatchesMatchSingle() {
+		ThumborServer s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		Options[] shared = { new Options().meta().crop(1, 2, 3, 4) };
+		for(int batch : new int[] { 1, 2, 15, 16, 17, 300 }) {
+			String[] results = new String[COUNT];
+			for(int i = 0; i < COUNT; i += batch) {
+				s.signBatch(mImages, mOptions, i, Math.min(COUNT, i + batch), results);
+			}
+			String[] sharedResults = new String[batch];
+			s.signBatch(mImages, shared, 0, batch, sharedResults);
+
+			for(int i = 0; i < COUNT; i++) {
+				assertEquals(s.getSecureUrl(mImages[i], mOptions[i]), results[i]);
+			}
+			for(int i = 0; i < batch; i++) {
+				assertEquals(s.getSecureUrl(mImages[i], shared[0]), sharedResults[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testSmallAndEmptyBatches() {
+		ThumborServer s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		assertArrayEquals(new String[0], s.getSecureUrls(new String[0], new Options()));
+
+		List<String> one = new ArrayList<String>();
+		one.add("my.server.com/some/path/to/image.jpg");
+		assertEquals(
+			Arrays.asList("http://dbjorge.net/l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ/my.server.com/some/path/to/image.jpg"),
+			s.getSecureUrls(one, new Options().resize(300, 200)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMismatchedLengths() {
+		new ThumborServer("dbjorge.net", "key").getSecureUrls(new String[2], new Options[3]);
+	}
+}
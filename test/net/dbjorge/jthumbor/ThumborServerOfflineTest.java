@@ -17,9 +17,21 @@
 package net.dbjorge.jthumbor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+import net.dbjorge.jthumbor.ThumborServer.FrozenOptions;
 import net.dbjorge.jthumbor.ThumborServer.Options;
 import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
 import net.dbjorge.jthumbor.ThumborServer.Options.VerticalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.Preset;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -165,4 +177,215 @@ public class ThumborServerOfflineTest {
 				"l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ",
 				s.getSecureToken("my.server.com/some/path/to/image.jpg", new Options().resize(300, 200)));
 	}
+
+	@Test
+	public void testExtremeOptions() {
+		assertEquals("1x-2147483648:2147483647x0/--2147483647x-0/", s.getOptionsPath(new Options()
+			.crop(1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0)
+			.resize(-Integer.MAX_VALUE, 0)
+			.flipHorizontal()
+			.flipVertical()));
+	}
+
+	@Test
+	public void testLongTokenHasNoLineBreaks() {
+		s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		String token = s.getSecureToken("my.server.com/some/path/to/image.jpg", new Options()
+			.crop(20,30,40,50)
+			.smart()
+			.fitIn()
+			.meta());
+		assertEquals("dWt-_EDIxqp6qFRM50f3LStAUDeAGrnmmNLWQ1gZxaqafy8M0a-2hIC2LQwacgMFE8HdsdU7Ga-sjh2aQRf2BQ==", token);
+	}
+
+	@Test
+	public void testAppendSecureUrl() throws Exception {
+		s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		String expected = "http://dbjorge.net/l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ/my.server.com/some/path/to/image.jpg";
+		Options opts = new Options().resize(300, 200);
+
+		StringBuilder sb = new StringBuilder("prefix:");
+		s.appendSecureUrl("http://my.server.com/some/path/to/image.jpg", opts, sb);
+		assertEquals("prefix:" + expected, sb.toString());
+
+		StringWriter w = new StringWriter();
+		s.appendSecureUrl(new StringBuilder("my.server.com/some/path/to/image.jpg"), opts, w);
+		assertEquals(expected, w.toString());
+
+		ByteBuffer b = ByteBuffer.allocate(512);
+		s.appendSecureUrl("my.server.com/some/path/to/image.jpg", opts, b);
+		b.flip();
+		assertEquals(expected, new String(b.array(), 0, b.limit(), "US-ASCII"));
+	}
+
+	@Test
+	public void testNonAsciiImageUrl() throws Exception {
+		s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		String image = "my.server.com/some/p\u00e4th/to/\u753b\u50cf.jpg";
+		Options opts = new Options().resize(300, 200);
+
+		String optionsUrl = s.getOptionsUrl(image, opts);
+		while(optionsUrl.length() % 16 != 0) optionsUrl += "{";
+		String token = ThumborUtils.urlSafeBase64Encode(ThumborUtils.aesEncrypt("my-security-keym", optionsUrl));
+		assertEquals(token, s.getSecureToken(image, opts));
+		assertEquals("http://dbjorge.net/" + token + "/" + image, s.getSecureUrl(image, opts));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAppendSecureUrlRejectsWrongProtocol() {
+		s.appendSecureUrl("https://my.server.com/image.jpg", new Options(), new StringBuilder());
+	}
+
+	@Test
+	public void testHmacSignedUrls() throws Exception {
+		s = new ThumborServer("http://dbjorge.net", "my-security-key", SigningMode.HMAC_SHA1);
+		assertEquals(SigningMode.HMAC_SHA1, s.getSigningMode());
+
+		assertEquals("8ammJH8D-7tXy6kU3lTvoXlhu4o=",
+				s.getSecureToken("my.server.com/some/path/to/image.jpg", new Options().resize(300, 200)));
+		assertEquals("/8ammJH8D-7tXy6kU3lTvoXlhu4o=/300x200/my.server.com/some/path/to/image.jpg",
+				s.getSecureUrlPath("http://my.server.com/some/path/to/image.jpg", new Options().resize(300, 200)));
+		assertEquals("http://dbjorge.net/w604AzX3JeZ6sexJMBvZIzupjIM=/my.server.com/some/path/to/image.jpg",
+				s.getSecureUrl("my.server.com/some/path/to/image.jpg", new Options()));
+
+		Options opts = new Options()
+			.crop(20,30,40,50)
+			.verticalAlign(VerticalAlignment.TOP)
+			.resize(20, 20)
+			.flipHorizontal()
+			.smart()
+			.horizontalAlign(HorizontalAlignment.RIGHT)
+			.fitIn()
+			.meta();
+		String expected = "http://dbjorge.net/q5O_XEjF6vFL011KWrE-YnPZNuk=/meta/20x30:40x50/fit-in/-20x20/right/top/smart/my.server.com/some/path/to/image.jpg";
+		assertEquals(expected, s.getSecureUrl("my.server.com/some/path/to/image.jpg", opts));
+
+		ByteBuffer b = ByteBuffer.allocate(512);
+		s.appendSecureUrl("my.server.com/some/path/to/image.jpg", opts, b);
+		b.flip();
+		assertEquals(expected, new String(b.array(), 0, b.limit(), "US-ASCII"));
+	}
+
+	@Test
+	public void testHmacUsesWholeKey() {
+		// AES keys are cut to 16 characters, HMAC keys must not be
+		ThumborServer a = new ThumborServer("dbjorge.net", "0123456789abcdef-one", SigningMode.HMAC_SHA1);
+		ThumborServer b = new ThumborServer("dbjorge.net", "0123456789abcdef-two", SigningMode.HMAC_SHA1);
+		Options opts = new Options().resize(300, 200);
+		assertFalse(a.getSecureToken("my.server.com/image.jpg", opts).equals(b.getSecureToken("my.server.com/image.jpg", opts)));
+	}
+
+	@Test
+	public void testFrozenOptionsRoundTrip() {
+		Options[] all = {
+			new Options(),
+			new Options().resize(300, 200),
+			new Options().meta().crop(20,30,40,50).fitIn().smart(),
+			new Options().resize(20, 20).flipHorizontal().flipVertical()
+				.horizontalAlign(HorizontalAlignment.RIGHT).verticalAlign(VerticalAlignment.BOTTOM),
+			new Options().crop(FrozenOptions.MAX_VALUE, FrozenOptions.MAX_VALUE, FrozenOptions.MAX_VALUE, FrozenOptions.MAX_VALUE)
+				.resize(FrozenOptions.MAX_VALUE, FrozenOptions.MAX_VALUE).meta().flipHorizontal().flipVertical().fitIn().smart()
+				.horizontalAlign(HorizontalAlignment.LEFT).verticalAlign(VerticalAlignment.TOP),
+		};
+		for(Options o : all) {
+			FrozenOptions frozen = o.freeze();
+			assertEquals(o, frozen.thaw());
+			assertNotSame(frozen.thaw(), frozen.thaw());
+			assertEquals(frozen, frozen.thaw().freeze());
+			assertEquals(frozen.hashCode(), o.copy().freeze().hashCode());
+			assertEquals(s.getOptionsPath(o), frozen.toString());
+		}
+		for(int i = 0; i < all.length; i++) {
+			for(int j = 0; j < all.length; j++) {
+				assertEquals(i == j, all[i].freeze().equals(all[j].freeze()));
+			}
+		}
+	}
+
+	@Test
+	public void testFrozenOptionsRejectsValuesItCannotHold() {
+		Options[] bad = {
+			new Options().resize(FrozenOptions.MAX_VALUE + 1, 1),
+			new Options().resize(1, -1),
+			new Options().crop(0, 0, 0, Integer.MIN_VALUE),
+		};
+		for(Options o : bad) {
+			try {
+				o.freeze();
+				fail();
+			} catch(IllegalArgumentException e) {
+				// good
+			}
+		}
+	}
+
+	@Test
+	public void testSecureUrlWithFrozenOptions() {
+		s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		Options opts = new Options().meta().crop(20,30,40,50).fitIn().smart();
+		String image = "my.server.com/some/path/to/image.jpg";
+		assertEquals(s.getSecureUrl(image, opts), s.getSecureUrl(image, opts.freeze()));
+		assertEquals(s.getSecureUrl(image, opts), s.getSecureUrl(ThumborImage.of(image), opts.freeze()));
+	}
+
+	@Test
+	public void testPresetsSignLikeTheirOptions() throws Exception {
+		String image = "my.server.com/some/path/to/image.jpg";
+		Options hero = new Options().meta().crop(20,30,40,50).fitIn().smart()
+			.horizontalAlign(HorizontalAlignment.RIGHT).verticalAlign(VerticalAlignment.TOP);
+		for(SigningMode mode : SigningMode.values()) {
+			s = new ThumborServer("http://dbjorge.net", "my-security-key", mode);
+			Preset card = s.registerPreset("card", new Options().resize(300, 200));
+			s.registerPreset("hero", hero);
+			assertSame(card, s.getPreset("card"));
+			assertEquals("card", card.getName());
+			assertEquals(new Options().resize(300, 200), card.getOptions());
+			assertNull(s.getPreset("avatar"));
+
+			assertEquals(s.getSecureUrl(image, new Options().resize(300, 200)), s.getSecureUrl(image, "card"));
+			assertEquals(s.getSecureUrl(image, hero), s.getSecureUrl(image, "hero"));
+			assertEquals(s.getSecureUrl(image, hero), s.getSecureUrl("http://" + image, s.getPreset("hero")));
+			assertEquals(s.getSecureUrl(image, hero), s.getSecureUrl(ThumborImage.of(image), s.getPreset("hero")));
+
+			StringBuilder b = new StringBuilder();
+			s.appendSecureUrl(image, card, b);
+			assertEquals(s.getSecureUrl(image, new Options().resize(300, 200)), b.toString());
+
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+			s.appendSecureUrl(image, card, buffer);
+			assertEquals(s.getSecureUrl(image, new Options().resize(300, 200)), new String(buffer.array(), 0, buffer.position()));
+		}
+
+		s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		s.registerPreset("card", new Options().resize(300, 200));
+		assertEquals("http://dbjorge.net/l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ/" + image,
+				s.getSecureUrl(image, "card"));
+	}
+
+	@Test
+	public void testPresetIsUnaffectedByLaterChanges() {
+		Options opts = new Options().resize(300, 200);
+		s.registerPreset("card", opts);
+		opts.smart();
+		assertEquals(new Options().resize(300, 200), s.getPreset("card").getOptions());
+
+		s.registerPreset("card", opts);
+		assertEquals(opts, s.getPreset("card").getOptions());
+	}
+
+	@Test
+	public void testUnknownPreset() {
+		try {
+			s.getSecureUrl("my.server.com/image.jpg", "missing");
+			fail();
+		} catch(IllegalArgumentException e) {
+			// good
+		}
+		try {
+			s.registerPreset("", new Options());
+			fail();
+		} catch(IllegalArgumentException e) {
+			// good
+		}
+	}
 }
@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.Test;
+
+public class ThumborServerVerifyTest {
+	private static final String IMAGE = "my.server.com/some/path/to/image.jpg";
+	private static final Options OPTIONS = new Options().crop(20, 30, 40, 50).resize(300, 200).horizontalAlign(HorizontalAlignment.LEFT).smart();
+
+	@Test
+	public void testAesPaths() {
+		checkPaths(new ThumborServer("http://dbjorge.net", "my-security-key"), new ThumborServer("http://dbjorge.net", "other-security-key"));
+	}
+
+	@Test
+	public void testHmacPaths() {
+		checkPaths(new ThumborServer("http://dbjorge.net", "my-security-key", SigningMode.HMAC_SHA1),
+				new ThumborServer("http://dbjorge.net", "other-security-key", SigningMode.HMAC_SHA1));
+	}
+
+	private void checkPaths(ThumborServer s, ThumborServer other) {
+		String path = s.getSecureUrlPath(IMAGE, OPTIONS);
+		assertTrue(s.verify(path));
+		assertTrue(s.verify(path.substring(1)));
+		assertTrue(s.verify(s.getSecureUrlPath(IMAGE, new Options())));
+		assertTrue(s.verify(s.getSecureUrlPath("http://" + IMAGE + "?w=1", OPTIONS)));
+
+		assertFalse(other.verify(path));
+		assertFalse(s.verify(path.replace("image.jpg", "image.png")));
+		assertFalse(s.verify(path + "x"));
+		assertFalse(s.verify(s.getSecureUrlPath(IMAGE, OPTIONS).replace("/" + IMAGE, "/300x200/" + IMAGE)));
+		assertFalse(s.verify(""));
+		assertFalse(s.verify("/"));
+		assertFalse(s.verify("//" + IMAGE));
+		assertFalse(s.verify("/unsafe/300x200/" + IMAGE));
+		assertFalse(s.verify(path.substring(0, path.indexOf('/', 1) + 1)));
+
+		// tamper with each character of the token or signature in turn
+		int end = path.indexOf('/', 1);
+		for(int i = 1; i < end; i++) {
+			char c = path.charAt(i);
+			String forged = path.substring(0, i) + (c == 'A' ? 'B' : 'A') + path.substring(i + 1);
+			assertFalse(forged, s.verify(forged));
+		}
+	}
+
+	@Test
+	public void testHmacOptionsAreCovered() {
+		ThumborServer s = new ThumborServer("http://dbjorge.net", "my-security-key", SigningMode.HMAC_SHA1);
+		String path = s.getSecureUrlPath(IMAGE, new Options().resize(300, 200));
+		assertTrue(s.verify(path));
+		assertFalse(s.verify(path.replace("/300x200/", "/3000x2000/")));
+		assertFalse(s.verify(path.replace("/300x200/", "/")));
+	}
+
+	@Test
+	public void testAnswersAreCached() {
+		ThumborServer s = new ThumborServer("http://dbjorge.net", "my-security-key");
+		String good = s.getSecureUrlPath(IMAGE, OPTIONS);
+		String bad = good.replace("image.jpg", "forged.jpg");
+
+		for(int i = 0; i < 100; i++) {
+			assertTrue(s.verify(good));
+			assertFalse(s.verify(bad));
+		}
+		PathVerifier verifier = s.getVerifier();
+		assertEquals(99, verifier.mVerified.getHitCount());
+		assertEquals(99, verifier.mRejected.getHitCount());
+		assertEquals(1, verifier.mVerified.size());
+		assertEquals(1, verifier.mRejected.size());
+
+		s.setVerifyCacheSizes(10, 10);
+		assertTrue(s.verify(good));
+		assertEquals(0, s.getVerifier().mVerified.getHitCount());
+	}
+
+	@Test
+	public void testConstantTimeEquals() {
+		assertTrue(PathVerifier.constantTimeEquals(new byte[] {1, 2, 3}, new byte[] {1, 2, 3}));
+		assertTrue(PathVerifier.constantTimeEquals(new byte[0], new byte[0]));
+		assertFalse(PathVerifier.constantTimeEquals(new byte[] {1, 2, 3}, new byte[] {1, 2, 4}));
+		assertFalse(PathVerifier.constantTimeEquals(new byte[] {1, 2, 3}, new byte[] {1, 2}));
+		assertFalse(PathVerifier.constantTimeEquals(new byte[] {(byte) 0x80}, new byte[] {0}));
+	}
+}
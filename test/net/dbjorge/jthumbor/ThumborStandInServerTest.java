@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ThumborStandInServerTest {
+	private static final String KEY = "my-security-key";
+	private static final String IMAGE = "my.server.com/some/path/to/image.jpg";
+
+	private ThumborStandInServer mStandIn;
+
+	@After
+	public void tearDown() {
+		if(mStandIn != null) {
+			mStandIn.close();
+		}
+	}
+
+	private ThumborServer start(SigningMode mode) {
+		mStandIn = new ThumborStandInServer(KEY, mode).start(0);
+		return new ThumborServer(mStandIn.getServerUrl(), KEY, mode);
+	}
+
+	@Test
+	public void testServesAesUrls() throws IOException {
+		checkServes(start(SigningMode.AES_TOKEN));
+	}
+
+	@Test
+	public void testServesHmacUrls() throws IOException {
+		checkServes(start(SigningMode.HMAC_SHA1));
+	}
+
+	private void checkServes(ThumborServer s) throws IOException {
+		Response r = fetch(s.getSecureUrl(IMAGE, new Options().resize(300, 200)));
+		assertEquals(200, r.mStatus);
+		assertEquals("image/png", r.mContentType);
+		assertPng(300, 200, r.mBody);
+
+		// the same URL gives the same bytes
+		assertArrayEquals(r.mBody, fetch(s.getSecureUrl(IMAGE, new Options().resize(300, 200))).mBody);
+
+		assertPng(1024, 768, fetch(s.getSecureUrl(IMAGE, new Options())).mBody);
+		assertPng(150, 113, fetch(s.getSecureUrl(IMAGE, new Options().resize(150, 0))).mBody);
+		assertPng(20, 20, fetch(s.getSecureUrl(IMAGE, new Options().crop(10, 10, 30, 30))).mBody);
+		assertPng(100, 75, fetch(s.getSecureUrl("http://" + IMAGE + "?w=1", new Options().fitIn().resize(100, 100))).mBody);
+		assertEquals(0, mStandIn.getRejectedCount());
+	}
+
+	@Test
+	public void testRejectsBadPaths() throws IOException {
+		ThumborServer s = start(SigningMode.HMAC_SHA1);
+		String url = s.getSecureUrl(IMAGE, new Options().resize(300, 200));
+
+		assertEquals(403, fetch(url.replace("image.jpg", "image.png")).mStatus);
+		assertEquals(403, fetch(new ThumborServer(mStandIn.getServerUrl(), "other-key", SigningMode.HMAC_SHA1).getSecureUrl(IMAGE, new Options())).mStatus);
+		assertEquals(403, fetch(mStandIn.getServerUrl() + "/unsafe/300x200/" + IMAGE).mStatus);
+		assertEquals(400, fetch(mStandIn.getServerUrl() + "/").mStatus);
+		assertEquals(400, fetch(s.getSecureUrl(IMAGE, new Options().resize(5000, 10))).mStatus);
+		assertEquals(5, mStandIn.getRejectedCount());
+		assertEquals(5, mStandIn.getRequestCount());
+	}
+
+	@Test
+	public void testRejectsBadAesPaths() throws IOException {
+		ThumborServer s = start(SigningMode.AES_TOKEN);
+		String url = s.getSecureUrl(IMAGE, new Options().resize(300, 200));
+
+		assertEquals(403, fetch(url.replace("image.jpg", "image.png")).mStatus);
+		assertEquals(403, fetch(new ThumborServer(mStandIn.getServerUrl(), "other-key").getSecureUrl(IMAGE, new Options())).mStatus);
+		assertEquals(403, fetch(mStandIn.getServerUrl() + "/unsafe/" + IMAGE).mStatus);
+		assertEquals(3, mStandIn.getRejectedCount());
+
+		// an image which looks like options is still the image, as the options are in the token
+		assertPng(30, 20, fetch(s.getSecureUrl("top/300x200/a.jpg", new Options().resize(30, 20))).mBody);
+	}
+
+	@Test
+	public void testInjectsErrors() throws IOException {
+		ThumborServer s = start(SigningMode.AES_TOKEN);
+		String url = s.getSecureUrl(IMAGE, new Options().resize(30, 20));
+
+		mStandIn.setErrorRate(1);
+		assertEquals(500, fetch(url).mStatus);
+		mStandIn.setErrorRate(0.5).setSeed(42);
+		int errors = 0;
+		for(int i = 0; i < 100; i++) {
+			if(fetch(url).mStatus == 500) errors++;
+		}
+		assertTrue(errors > 20 && errors < 80);
+		assertEquals(errors + 1, mStandIn.getErrorCount());
+
+		// the same seed makes the same choices
+		mStandIn.setSeed(42);
+		int repeated = 0;
+		for(int i = 0; i < 100; i++) {
+			if(fetch(url).mStatus == 500) repeated++;
+		}
+		assertEquals(errors, repeated);
+	}
+
+	@Test
+	public void testInjectsLatency() throws IOException {
+		ThumborServer s = start(SigningMode.AES_TOKEN);
+		String url = s.getSecureUrl(IMAGE, new Options().resize(30, 20));
+		mStandIn.setLatency(100, 150, TimeUnit.MILLISECONDS);
+
+		long start = System.nanoTime();
+		assertEquals(200, fetch(url).mStatus);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+	@Test
+	public void testOutputSize() {
+		int[] size = new int[2];
+		assertTrue(ThumborStandInServer.outputSize(new Options().resize(-300, 200), 1024, 768, size));
+		assertArrayEquals(new int[] { 300, 200 }, size);
+		assertTrue(ThumborStandInServer.outputSize(new Options().resize(0, 384), 1024, 768, size));
+		assertArrayEquals(new int[] { 512, 384 }, size);
+		// fit-in never enlarges
+		assertTrue(ThumborStandInServer.outputSize(new Options().fitIn().resize(2000, 2000), 1024, 768, size));
+		assertArrayEquals(new int[] { 1024, 768 }, size);
+		assertTrue(ThumborStandInServer.outputSize(new Options().fitIn().resize(0, 76), 1024, 768, size));
+		assertArrayEquals(new int[] { 101, 76 }, size);
+		assertFalse(ThumborStandInServer.outputSize(new Options().resize(10, 4097), 1024, 768, size));
+	}
+
+	private static void assertPng(int width, int height, byte[] png) {
+		assertEquals((byte) 0x89, png[0]);
+		assertEquals('P', png[1]);
+		ByteBuffer header = ByteBuffer.wrap(png, 16, 8);
+		assertEquals(width, header.getInt());
+		assertEquals(height, header.getInt());
+	}
+
+	private static class Response {
+		int mStatus;
+		String mContentType;
+		byte[] mBody;
+	}
+
+	private static Response fetch(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		Response r = new Response();
+		r.mStatus = connection.getResponseCode();
+		r.mContentType = connection.getContentType();
+		InputStream in = r.mStatus == 200 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if(in != null) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while((n = in.read(buffer)) > 0) {
+				body.write(buffer, 0, n);
+			}
+			in.close();
+		}
+		r.mBody = body.toByteArray();
+		return r;
+	}
+}
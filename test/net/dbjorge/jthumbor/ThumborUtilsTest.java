@@ -20,6 +20,10 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 import org.junit.Test;
 
 public class ThumborUtilsTest {
@@ -40,11 +44,103 @@ public class ThumborUtilsTest {
 		assertArrayEquals(t1expectedEncrypted, ThumborUtils.aesEncrypt(t1key, t1plaintext));
 	}
 
+	@Test
+	public void testAesEncryptBatch() {
+		String[] plaintexts = {
+			t1plaintext,
+			"84996242f65a4d864aceb125e1c4c5ba",
+			"meta/20x30:40x50/fit-in/20x20/right/top/smart/84996242f65a4d864aceb125e1c4c5ba{{",
+			t1plaintext
+		};
+		byte[][] batch = ThumborUtils.aesEncrypt(t1key, plaintexts);
+		assertEquals(plaintexts.length, batch.length);
+		assertArrayEquals(t1expectedEncrypted, batch[0]);
+		for(int i = 0; i < plaintexts.length; i++) {
+			assertArrayEquals(ThumborUtils.aesEncrypt(t1key, plaintexts[i]), batch[i]);
+		}
+		assertEquals(0, ThumborUtils.aesEncrypt(t1key, new String[0]).length);
+	}
+
 	@Test
 	public void testUrlSafeBase64Encode() {
 		assertEquals(t1expectedEncoded, ThumborUtils.urlSafeBase64Encode(t1expectedEncrypted));
 	}
 
+	@Test
+	public void testUrlSafeBase64EncodePadsLikePython() {
+		// expected values from python's base64.urlsafe_b64encode
+		assertEquals("", ThumborUtils.urlSafeBase64Encode(new byte[0]));
+		assertEquals("YQ==", ThumborUtils.urlSafeBase64Encode("a".getBytes()));
+		assertEquals("YWI=", ThumborUtils.urlSafeBase64Encode("ab".getBytes()));
+		assertEquals("AAECAwQ=", ThumborUtils.urlSafeBase64Encode(new byte[] {0, 1, 2, 3, 4}));
+		assertEquals("-_-_", ThumborUtils.urlSafeBase64Encode(new byte[] {(byte) 0xFB, (byte) 0xFF, (byte) 0xBF}));
+	}
+
+	@Test
+	public void testUrlSafeBase64Decode() {
+		assertArrayEquals(t1expectedEncrypted, ThumborUtils.urlSafeBase64Decode(t1expectedEncoded));
+		assertArrayEquals("a".getBytes(), ThumborUtils.urlSafeBase64Decode("YQ=="));
+		assertArrayEquals("a".getBytes(), ThumborUtils.urlSafeBase64Decode("YQ"));
+		assertArrayEquals("ab".getBytes(), ThumborUtils.urlSafeBase64Decode("YWI="));
+		assertArrayEquals(new byte[0], ThumborUtils.urlSafeBase64Decode(""));
+
+		Random random = new Random(42);
+		for(int length = 0; length < 100; length++) {
+			byte[] input = new byte[length];
+			random.nextBytes(input);
+			assertArrayEquals(input, ThumborUtils.urlSafeBase64Decode(ThumborUtils.urlSafeBase64Encode(input)));
+		}
+
+		// canonical only: padded, and no stray bits in the last character
+		byte[] out = new byte[3];
+		assertEquals(1, ThumborUtils.urlSafeBase64DecodeCanonical("YQ==", 0, 4, out, 0));
+		assertEquals(2, ThumborUtils.urlSafeBase64DecodeCanonical("YWI=", 0, 4, out, 0));
+		assertEquals(-1, ThumborUtils.urlSafeBase64DecodeCanonical("YQ", 0, 2, out, 0));
+		assertEquals(-1, ThumborUtils.urlSafeBase64DecodeCanonical("YR==", 0, 4, out, 0));
+		assertEquals(-1, ThumborUtils.urlSafeBase64DecodeCanonical("YWJ=", 0, 4, out, 0));
+
+		for(String bad : new String[] { "Y", "YQ===", "a+b/", "YQ=a", "\u00e9AAA" }) {
+			try {
+				ThumborUtils.urlSafeBase64Decode(bad);
+				fail(bad);
+			} catch(IllegalArgumentException e) {
+				// good
+			}
+		}
+	}
+
+	@Test
+	public void testUrlSafeBase64EncodeIntoBuffers() {
+		byte[] input = new byte[t1expectedEncrypted.length + 2];
+		System.arraycopy(t1expectedEncrypted, 0, input, 1, t1expectedEncrypted.length);
+		int length = ThumborUtils.urlSafeBase64Length(t1expectedEncrypted.length);
+
+		byte[] bytes = new byte[length + 3];
+		assertEquals(length + 2, ThumborUtils.urlSafeBase64Encode(input, 1, t1expectedEncrypted.length, bytes, 2));
+		assertEquals(t1expectedEncoded, new String(bytes, 2, length));
+
+		char[] chars = new char[length + 3];
+		assertEquals(length + 2, ThumborUtils.urlSafeBase64Encode(input, 1, t1expectedEncrypted.length, chars, 2));
+		assertEquals(t1expectedEncoded, new String(chars, 2, length));
+
+		for(ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(length + 3), ByteBuffer.allocateDirect(length + 3) }) {
+			buffer.position(2);
+			ThumborUtils.urlSafeBase64Encode(input, 1, t1expectedEncrypted.length, buffer);
+			assertEquals(length + 2, buffer.position());
+			byte[] written = new byte[length];
+			buffer.position(2);
+			buffer.get(written);
+			assertEquals(t1expectedEncoded, new String(written));
+		}
+
+		try {
+			ThumborUtils.urlSafeBase64Encode(input, 1, t1expectedEncrypted.length, ByteBuffer.allocate(length - 1));
+			fail();
+		} catch(BufferOverflowException e) {
+			// good
+		}
+	}
+
 	@Test
 	public void testSanitizeUrlWithoutProtocol() {
 		assertEquals("test.com", ThumborUtils.sanitizeUrlWithoutProtocol("test.com", "http"));
@@ -80,6 +176,19 @@ public class ThumborUtilsTest {
 	@Test
 	public void testMd5String() {
 		assertEquals("84996242f65a4d864aceb125e1c4c5ba", ThumborUtils.md5String("my.server.com/some/path/to/image.jpg"));
+		// digests with leading zero nibbles must keep them
+		assertEquals("0cc175b9c0f1b6a831c399e269772661", ThumborUtils.md5String("a"));
+		assertEquals("84996242f65a4d864aceb125e1c4c5ba", ThumborUtils.md5String("my.server.com/some/path/to/image.jpg"));
+	}
+
+	@Test
+	public void testMd5Hex() {
+		byte[] input = "xxmy.server.com/some/path/to/image.jpgyy".getBytes();
+		byte[] out = new byte[36];
+		assertEquals(34, ThumborUtils.md5Hex(input, 2, input.length - 4, out, 2));
+		assertEquals("84996242f65a4d864aceb125e1c4c5ba", new String(out, 2, 32));
+		assertEquals(0, out[0]);
+		assertEquals(0, out[35]);
 	}
 
 }
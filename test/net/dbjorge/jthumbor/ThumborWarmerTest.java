@@ -0,0 +1,224 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Preset;
+import net.dbjorge.jthumbor.ThumborServer.SigningMode;
+import net.dbjorge.jthumbor.ThumborWarmer.Progress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThumborWarmerTest {
+	private static final String KEY = "my-security-key";
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private ThumborStandInServer mStandIn;
+	private ThumborServer mServer;
+	private List<Preset> mPresets;
+
+	@Before
+	public void setUp() {
+		mStandIn = new ThumborStandInServer(KEY, SigningMode.HMAC_SHA1).start(0);
+		mServer = new ThumborServer(mStandIn.getServerUrl(), KEY, SigningMode.HMAC_SHA1);
+		mPresets = Arrays.asList(
+			mServer.registerPreset("thumb", new Options().resize(60, 40)),
+			mServer.registerPreset("hero", new Options().fitIn().resize(200, 200)));
+	}
+
+	@After
+	public void tearDown() {
+		mStandIn.close();
+	}
+
+	private static Stream<String> images(int count) {
+		return IntStream.range(0, count).mapToObj(i -> "my.server.com/catalog/" + i + ".jpg");
+	}
+
+	private ThumborWarmer warmer() {
+		// no coalescing, so every fetch reaches the stand-in
+		return new ThumborWarmer(new ThumborClient(mServer).setCoalescing(false), mPresets);
+	}
+
+	@Test
+	public void testWarmsEveryPreset() throws Exception {
+		Path checkpoint = mFolder.getRoot().toPath().resolve("warm.checkpoint");
+		Progress progress = warmer().setMaxConcurrency(8).setCheckpoint(checkpoint).run(images(30));
+		assertEquals(30, progress.getImagesDone());
+		assertEquals(60, progress.getSucceeded());
+		assertEquals(0, progress.getFailed());
+		assertEquals(60, mStandIn.getRequestCount());
+		assertEquals(0, mStandIn.getRejectedCount());
+		assertEquals("30", new String(Files.readAllBytes(checkpoint), "US-ASCII").trim());
+	}
+
+	@Test
+	public void testResumesFromCheckpoint() throws Exception {
+		Path checkpoint = mFolder.getRoot().toPath().resolve("warm.checkpoint");
+		warmer().setCheckpoint(checkpoint).run(images(10));
+		Progress progress = warmer().setCheckpoint(checkpoint).run(images(25));
+		assertEquals(25, progress.getImagesDone());
+		assertEquals(30, progress.getSucceeded());
+		assertEquals(50, mStandIn.getRequestCount());
+	}
+
+	@Test
+	public void testRetriesServerErrors() throws Exception {
+		mStandIn.setErrorRate(0.3).setSeed(7);
+		Progress progress = warmer().setRetries(20, Duration.ofMillis(1)).run(images(20));
+		assertEquals(40, progress.getSucceeded());
+		assertEquals(0, progress.getFailed());
+		assertTrue(progress.getRetries() > 0);
+		assertEquals(40 + progress.getRetries(), mStandIn.getRequestCount());
+		assertTrue(progress.getErrorRate() > 0.1 && progress.getErrorRate() < 0.5);
+	}
+
+	@Test
+	public void testDoesNotRetryClientErrors() throws Exception {
+		ThumborServer wrongKey = new ThumborServer(mStandIn.getServerUrl(), "other-key", SigningMode.HMAC_SHA1);
+		Preset preset = wrongKey.registerPreset("thumb", new Options().resize(60, 40));
+		Progress progress = new ThumborWarmer(new ThumborClient(wrongKey), Arrays.asList(preset))
+			.setRetries(5, Duration.ofMillis(1)).run(images(10));
+		assertEquals(10, progress.getImagesDone());
+		assertEquals(10, progress.getFailed());
+		assertEquals(0, progress.getRetries());
+		assertEquals(10, mStandIn.getRejectedCount());
+	}
+
+	@Test
+	public void testRateLimitAndProgress() throws Exception {
+		mStandIn.setLatency(5, 10, TimeUnit.MILLISECONDS);
+		List<Progress> reports = new CopyOnWriteArrayList<Progress>();
+		long start = System.nanoTime();
+		Progress progress = warmer().setRateLimit(100)
+			.setProgressListener(reports::add, Duration.ofMillis(50))
+			.run(images(15));
+		// 30 fetches at 100 a second
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(280));
+		assertTrue(progress.getThroughput() <= 110);
+		assertTrue(progress.getLatencyP50() >= TimeUnit.MILLISECONDS.toNanos(5));
+		assertTrue(progress.getLatencyP99() <= progress.getLatencyMax());
+		assertTrue(reports.size() >= 3);
+		assertEquals(progress.getSucceeded(), reports.get(reports.size() - 1).getSucceeded());
+	}
+
+	@Test
+	public void testRateLimitCoversRetries() throws Exception {
+		ThumborWarmer warmer = warmer().setRateLimit(100).setRetries(2, Duration.ofMillis(1));
+		// a first run without errors, so connecting does not count against the timing
+		warmer.run(images(1));
+
+		mStandIn.setErrorRate(1);
+		long start = System.nanoTime();
+		Progress progress = warmer.run(images(10));
+		// 20 first attempts and 40 retries, all at 100 a second
+		assertEquals(40, progress.getRetries());
+		assertEquals(20, progress.getFailed());
+		assertEquals(62, mStandIn.getRequestCount());
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(580));
+	}
+
+	@Test
+	public void testFinalReportFailureDoesNotHideRunFailure() throws Exception {
+		RuntimeException failure = new RuntimeException("catalog broken");
+		Iterator<String> images = new Iterator<String>() {
+			public boolean hasNext() {
+				return true;
+			}
+
+			public String next() {
+				throw failure;
+			}
+		};
+		// a checkpoint which cannot be written
+		Path checkpoint = mFolder.getRoot().toPath().resolve("missing").resolve("checkpoint");
+		try {
+			warmer().setCheckpoint(checkpoint).run(images);
+			fail();
+		} catch(RuntimeException e) {
+			assertSame(failure, e);
+			assertEquals(1, e.getSuppressed().length);
+			assertTrue(e.getSuppressed()[0] instanceof UncheckedIOException);
+		}
+	}
+
+	@Test
+	public void testReportsContinueAfterFailure() throws Exception {
+		mStandIn.setLatency(5, 10, TimeUnit.MILLISECONDS);
+		RuntimeException failure = new RuntimeException("listener failed");
+		List<Progress> reports = new CopyOnWriteArrayList<Progress>();
+		ThumborWarmer warmer = warmer().setRateLimit(100).setProgressListener(progress -> {
+			reports.add(progress);
+			if(reports.size() == 1) {
+				throw failure;
+			}
+		}, Duration.ofMillis(50));
+		warmer.run(images(15));
+		assertTrue(reports.size() >= 3);
+		assertSame(failure, warmer.getReportFailure());
+
+		warmer.setProgressListener(null, Duration.ofMillis(50)).run(images(1));
+		assertNull(warmer.getReportFailure());
+	}
+
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.percentile(0.5));
+		List<Long> values = new ArrayList<Long>();
+		for(long v = 1; v <= 1000000; v++) {
+			histogram.record(v * 1000);
+			values.add(v * 1000);
+		}
+		for(double p : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+			long exact = values.get((int) Math.ceil(p * values.size()) - 1);
+			long approx = histogram.percentile(p);
+			assertTrue(approx >= exact && approx <= exact * 1.13);
+		}
+		assertEquals(1000000000L, histogram.percentile(1));
+		for(long v : new long[] { 0, 7, 8, 15, 16, 1234567, Long.MAX_VALUE }) {
+			int bucket = LatencyHistogram.bucket(v);
+			assertTrue(v <= LatencyHistogram.top(bucket));
+			assertTrue(bucket == 0 || v > LatencyHistogram.top(bucket - 1));
+		}
+	}
+}
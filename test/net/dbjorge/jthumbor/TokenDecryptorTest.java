@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2011 Dan Bjorge
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.dbjorge.jthumbor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Map;
+import java.util.Random;
+
+import net.dbjorge.jthumbor.ThumborServer.Options;
+import net.dbjorge.jthumbor.ThumborServer.Options.HorizontalAlignment;
+import net.dbjorge.jthumbor.ThumborServer.Options.VerticalAlignment;
+import net.dbjorge.jthumbor.TokenDecryptor.DecryptedToken;
+
+import org.junit.Test;
+
+/**
+ * In-JVM counterpart of {@link ThumborServerOnlineTest}: decrypts tokens the way Thumbor would,
+ * so round trips can be checked in bulk without Thumbor installed.
+ */
+public class TokenDecryptorTest {
+	private static final String KEY = "my-security-key";
+	private static final String IMAGE = "my.server.com/some/path/to/image.jpg";
+	private static final String IMAGE_HASH = "84996242f65a4d864aceb125e1c4c5ba";
+
+	private static final int ROUND_TRIPS = 5000;
+
+	@Test
+	public void testWithResize() {
+		DecryptedToken token = new TokenDecryptor(KEY).decrypt("l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ");
+		Map<String, Object> r = token.toMap();
+
+		assertEquals(false, r.get("horizontal_flip"));
+		assertEquals(false, r.get("vertical_flip"));
+		assertEquals(false, r.get("smart"));
+		assertEquals(false, r.get("meta"));
+		assertEquals(false, r.get("fit_in"));
+		Map<?, ?> crop = (Map<?, ?>) r.get("crop");
+		assertEquals(0, crop.get("left"));
+		assertEquals(0, crop.get("top"));
+		assertEquals(0, crop.get("right"));
+		assertEquals(0, crop.get("bottom"));
+		assertEquals("middle", r.get("valign"));
+		assertEquals("center", r.get("halign"));
+		assertEquals(300, r.get("width"));
+		assertEquals(200, r.get("height"));
+		assertEquals(IMAGE_HASH, r.get("image_hash"));
+
+		assertEquals(new Options().resize(300, 200), token.getOptions());
+		assertEquals(IMAGE_HASH, token.getImageHash());
+	}
+
+	@Test
+	public void testWithEverything() {
+		ThumborServer s = new ThumborServer("irrelevant", KEY);
+		Options opts = new Options()
+			.meta()
+			.crop(20, 30, 40, 50)
+			.fitIn()
+			.resize(640, 480)
+			.flipHorizontal()
+			.flipVertical()
+			.horizontalAlign(HorizontalAlignment.LEFT)
+			.verticalAlign(VerticalAlignment.BOTTOM)
+			.smart();
+		Map<String, Object> r = new TokenDecryptor(KEY).decrypt(s.getSecureToken(IMAGE, opts)).toMap();
+
+		assertEquals(true, r.get("meta"));
+		Map<?, ?> crop = (Map<?, ?>) r.get("crop");
+		assertEquals(20, crop.get("left"));
+		assertEquals(30, crop.get("top"));
+		assertEquals(40, crop.get("right"));
+		assertEquals(50, crop.get("bottom"));
+		assertEquals(true, r.get("fit_in"));
+		assertEquals(640, r.get("width"));
+		assertEquals(480, r.get("height"));
+		assertEquals(true, r.get("horizontal_flip"));
+		assertEquals(true, r.get("vertical_flip"));
+		assertEquals("left", r.get("halign"));
+		assertEquals("bottom", r.get("valign"));
+		assertEquals(true, r.get("smart"));
+		assertEquals(IMAGE_HASH, r.get("image_hash"));
+	}
+
+	@Test
+	public void testRandomRoundTrips() {
+		Random random = new Random(20111017);
+		String[] keys = { KEY, "k", "a-much-longer-security-key-value" };
+		ThumborServer[] servers = new ThumborServer[keys.length];
+		TokenDecryptor[] decryptors = new TokenDecryptor[keys.length];
+		for(int k = 0; k < keys.length; k++) {
+			servers[k] = new ThumborServer("irrelevant", keys[k]);
+			decryptors[k] = new TokenDecryptor(keys[k]);
+		}
+
+		for(int i = 0; i < ROUND_TRIPS; i++) {
+			int k = random.nextInt(keys.length);
+			Options opts = randomOptions(random);
+			String image = "img" + random.nextInt(1000) + ".example.com/" + Long.toHexString(random.nextLong()) + "/photo.jpg";
+
+			DecryptedToken token = decryptors[k].decrypt(servers[k].getSecureToken(image, opts));
+			assertEquals(opts, token.getOptions());
+			assertEquals(ThumborUtils.md5String(image), token.getImageHash());
+		}
+	}
+
+	private static Options randomOptions(Random random) {
+		Options opts = new Options();
+		if(random.nextBoolean()) opts.meta();
+		if(random.nextBoolean()) opts.crop(random.nextInt(5000), random.nextInt(5000), random.nextInt(5000), random.nextInt(5000));
+		if(random.nextBoolean()) opts.fitIn();
+		if(random.nextBoolean()) opts.resize(random.nextInt(5000), random.nextInt(5000));
+		if(random.nextBoolean()) opts.flipHorizontal();
+		if(random.nextBoolean()) opts.flipVertical();
+		opts.horizontalAlign(HorizontalAlignment.values()[random.nextInt(HorizontalAlignment.values().length)]);
+		opts.verticalAlign(VerticalAlignment.values()[random.nextInt(VerticalAlignment.values().length)]);
+		if(random.nextBoolean()) opts.smart();
+		return opts;
+	}
+
+	@Test
+	public void testOnlyCanonicalTokens() {
+		// every other spelling of a token is rejected, so each has only the one Thumbor writes
+		TokenDecryptor decryptor = new TokenDecryptor(KEY);
+		ThumborServer s = new ThumborServer("irrelevant", KEY);
+		String token = s.getSecureToken(IMAGE, new Options().meta().crop(20, 30, 40, 50).fitIn().smart());
+		assertEquals("==", token.substring(token.length() - 2));
+		assertEquals(IMAGE_HASH, decryptor.decrypt(token).getImageHash());
+
+		// without its padding
+		assertNull(decryptor.decrypt(token.substring(0, token.length() - 2)));
+		assertNull(decryptor.decrypt(token.substring(0, token.length() - 1)));
+		// with the unused low bits of the last character set, which decodes to the same bytes
+		int last = token.length() - 3;
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+		char flipped = alphabet.charAt(alphabet.indexOf(token.charAt(last)) ^ 1);
+		assertNull(decryptor.decrypt(token.substring(0, last) + flipped + "=="));
+	}
+
+	@Test
+	public void testInvalidTokens() {
+		TokenDecryptor decryptor = new TokenDecryptor(KEY);
+		String token = "l42l54VqaV_J-EcB5quNMP6CnsN9BX7htrh-QbPuDv0C7adUXX7LTo6DHm_woJtZ";
+
+		assertNull(new TokenDecryptor("another-key").decrypt(token));
+		assertNull(decryptor.decrypt(""));
+		assertNull(decryptor.decrypt("not a token"));
+		assertNull(decryptor.decrypt(token.substring(0, 60)));
+		assertNull(decryptor.decrypt(token.replace('l', 'm')));
+		StringBuilder tooLong = new StringBuilder();
+		while(tooLong.length() <= TokenDecryptor.MAX_TOKEN_LENGTH) {
+			tooLong.append(token);
+		}
+		assertNull(decryptor.decrypt(tooLong));
+	}
+}